@@ -0,0 +1,174 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.cocolian.mysql.bench.Medium;
+import org.cocolian.mysql.bench.Small;
+import org.cocolian.mysql.bench.Wide;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * 基准测试用的message和数据，见bench.proto：small/medium/wide分别有5/30/150个字段
+ *
+ * @version 1.0.0
+ */
+final class BenchmarkMessages {
+
+    static final String SMALL = "small";
+    static final String MEDIUM = "medium";
+    static final String WIDE = "wide";
+
+    private BenchmarkMessages() {
+    }
+
+    static Message prototype(String size) {
+        switch (size) {
+            case SMALL:
+                return Small.getDefaultInstance();
+            case MEDIUM:
+                return Medium.getDefaultInstance();
+            case WIDE:
+                return Wide.getDefaultInstance();
+            default:
+                throw new IllegalArgumentException("Unknown message size: " + size);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static JdbcProtobufTemplate<Message> template(JdbcTemplate jdbcTemplate, String size) {
+        return new JdbcProtobufTemplate<Message>(jdbcTemplate, (Class<Message>) prototype(size).getClass());
+    }
+
+    /**
+     * 所有字段都有值的记录
+     *
+     * @param prototype
+     * @param id
+     * @return
+     */
+    static Message full(Message prototype, long id) {
+        Message.Builder builder = prototype.newBuilderForType();
+        for (FieldDescriptor field : prototype.getDescriptorForType().getFields()) {
+            builder.setField(field, value(field, id));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 只有主键和三分之一字段有值的记录，用于部分更新
+     *
+     * @param prototype
+     * @param id
+     * @return
+     */
+    static Message partial(Message prototype, long id) {
+        Message.Builder builder = prototype.newBuilderForType();
+        for (FieldDescriptor field : prototype.getDescriptorForType().getFields()) {
+            if (field.getNumber() == 1 || field.getNumber() % 3 == 0) {
+                builder.setField(field, value(field, id));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * 所有列都有值的内存结果集，列标签为字段名
+     *
+     * @param descriptor
+     * @param rowCount
+     * @return
+     */
+    static ResultSet resultSet(Descriptors.Descriptor descriptor, int rowCount) {
+        List<FieldDescriptor> fields = descriptor.getFields();
+        String[] labels = new String[fields.size()];
+        int[] sqlTypes = new int[fields.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = fields.get(i).getName();
+            sqlTypes[i] = sqlType(fields.get(i));
+        }
+        Object[][] rows = new Object[rowCount][];
+        for (int r = 0; r < rowCount; r++) {
+            rows[r] = new Object[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                rows[r][i] = value(fields.get(i), r);
+            }
+        }
+        return InMemoryJdbc.resultSet(labels, sqlTypes, rows);
+    }
+
+    /**
+     * 建表语句，列名为字段名，主键为id
+     *
+     * @param descriptor
+     * @param tableName
+     * @return
+     */
+    static String createTable(Descriptors.Descriptor descriptor, String tableName) {
+        StringBuilder ddl = new StringBuilder("create table `").append(tableName).append("` (");
+        for (FieldDescriptor field : descriptor.getFields()) {
+            ddl.append('`').append(field.getName()).append("` ").append(columnType(field));
+            ddl.append(field.getNumber() == 1 ? " primary key, " : ", ");
+        }
+        ddl.setLength(ddl.length() - 2);
+        return ddl.append(')').toString();
+    }
+
+    private static Object value(FieldDescriptor field, long id) {
+        if (field.getNumber() == 1) {
+            return id;
+        }
+        switch (field.getJavaType()) {
+            case STRING:
+                return "value-" + field.getNumber() + "-" + id;
+            case INT:
+                return (int) (id * field.getNumber());
+            case LONG:
+                return id * 1000003L + field.getNumber();
+            case DOUBLE:
+                return id / 7.0 + field.getNumber();
+            case BOOLEAN:
+                return (id + field.getNumber()) % 2 == 0;
+            default:
+                throw new IllegalArgumentException("Unsupported field type: " + field.getFullName());
+        }
+    }
+
+    private static int sqlType(FieldDescriptor field) {
+        switch (field.getJavaType()) {
+            case STRING:
+                return Types.VARCHAR;
+            case INT:
+                return Types.INTEGER;
+            case LONG:
+                return Types.BIGINT;
+            case DOUBLE:
+                return Types.DOUBLE;
+            case BOOLEAN:
+                return Types.BIT;
+            default:
+                throw new IllegalArgumentException("Unsupported field type: " + field.getFullName());
+        }
+    }
+
+    private static String columnType(FieldDescriptor field) {
+        switch (field.getJavaType()) {
+            case STRING:
+                return "varchar(64)";
+            case INT:
+                return "int";
+            case LONG:
+                return "bigint";
+            case DOUBLE:
+                return "double";
+            case BOOLEAN:
+                return "bit";
+            default:
+                throw new IllegalArgumentException("Unsupported field type: " + field.getFullName());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 参数绑定的开销：bind从message中按占位符顺序取值，populate按类型调用PreparedStatement的setXxx；
+ * bindDirect由MessageBinder直接从message绑定，写入路径使用这种方式。
+ * PreparedStatement为内存代理，不包含驱动的开销。
+ *
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingBenchmark {
+
+    @Param({BenchmarkMessages.SMALL, BenchmarkMessages.MEDIUM, BenchmarkMessages.WIDE})
+    public String size;
+
+    private MessageSql<Message> messageSql;
+    private SqlTemplate insertTemplate;
+    private Message message;
+    private List<Object> args;
+    private PreparedStatement ps;
+
+    @Setup
+    public void setup() {
+        JdbcProtobufTemplate<Message> template = BenchmarkMessages.template(
+                new JdbcTemplate(InMemoryJdbc.dataSource()), size);
+        messageSql = template.getMessageSql();
+        message = BenchmarkMessages.full(BenchmarkMessages.prototype(size), 1);
+        insertTemplate = messageSql.getSqlTemplate(
+                messageSql.shapeOf(SqlShape.Operation.INSERT, template.getTableName(null), message));
+        args = messageSql.bind(insertTemplate, message);
+        ps = InMemoryJdbc.preparedStatement();
+    }
+
+    @Benchmark
+    public List<Object> bind() {
+        return messageSql.bind(insertTemplate, message);
+    }
+
+    @Benchmark
+    public PreparedStatement populate() throws SQLException {
+        MessageSql.populate(ps, args);
+        return ps;
+    }
+
+    @Benchmark
+    public PreparedStatement bindAndPopulate() throws SQLException {
+        MessageSql.populate(ps, messageSql.bind(insertTemplate, message));
+        return ps;
+    }
+
+    @Benchmark
+    public PreparedStatement bindDirect() throws SQLException {
+        messageSql.populate(ps, insertTemplate, message);
+        return ps;
+    }
+}
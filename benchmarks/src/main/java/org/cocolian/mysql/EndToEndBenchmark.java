@@ -0,0 +1,108 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端测试，使用MySQL兼容模式的内存H2数据库。结果包含H2本身的开销，用于对比模板开销所占的比例。
+ *
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final int ROWS = 1000;
+    private static final int QUERY_LIMIT = 100;
+
+    @Param({BenchmarkMessages.SMALL, BenchmarkMessages.MEDIUM, BenchmarkMessages.WIDE})
+    public String size;
+
+    private SingleConnectionDataSource dataSource;
+    private JdbcProtobufTemplate<Message> template;
+    private List<Message> rows;
+    private Message prototype;
+    private Message partial;
+    private String querySql;
+    private long nextId;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        dataSource = new SingleConnectionDataSource(
+                "jdbc:h2:mem:bench_" + size + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "", true);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        template = BenchmarkMessages.template(jdbcTemplate, size);
+        prototype = BenchmarkMessages.prototype(size);
+        String tableName = template.getTableName(null);
+        jdbcTemplate.execute("drop table if exists `" + tableName + "`");
+        jdbcTemplate.execute(BenchmarkMessages.createTable(prototype.getDescriptorForType(), tableName));
+        rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            rows.add(BenchmarkMessages.full(prototype, i));
+        }
+        template.insertAll(rows);
+        partial = BenchmarkMessages.partial(prototype, ROWS / 2);
+        querySql = "select * from `" + tableName + "` where id >= ? limit " + QUERY_LIMIT;
+        nextId = ROWS;
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataSource.destroy();
+    }
+
+    private Message next() {
+        cursor = (cursor + 1) % ROWS;
+        return rows.get(cursor);
+    }
+
+    @Benchmark
+    public Message get() {
+        cursor = (cursor + 1) % ROWS;
+        return template.get((long) cursor);
+    }
+
+    @Benchmark
+    public List<Message> query() {
+        cursor = (cursor + QUERY_LIMIT) % ROWS;
+        return template.query(querySql, cursor);
+    }
+
+    @Benchmark
+    public long insert() {
+        // 构造message的开销也计入结果
+        return template.insert(BenchmarkMessages.full(prototype, nextId++));
+    }
+
+    @Benchmark
+    public int update() {
+        return template.update(next());
+    }
+
+    @Benchmark
+    public int partialUpdate() {
+        return template.partialUpdate(partial);
+    }
+}
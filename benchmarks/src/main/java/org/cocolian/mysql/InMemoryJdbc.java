@@ -0,0 +1,230 @@
+package org.cocolian.mysql;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * 基准测试用的内存JDBC对象，基于动态代理实现，不访问数据库：
+ * 结果集按行返回预先准备的值；PreparedStatement忽略参数，executeUpdate返回1。
+ *
+ * @version 1.0.0
+ */
+final class InMemoryJdbc {
+
+    private InMemoryJdbc() {
+    }
+
+    /**
+     * 内存结果集，调用beforeFirst可以重新遍历
+     *
+     * @param labels   列标签
+     * @param sqlTypes 列类型，见{@link java.sql.Types}
+     * @param rows     每行按列顺序的值，null表示NULL
+     * @return
+     */
+    static ResultSet resultSet(String[] labels, int[] sqlTypes, Object[][] rows) {
+        return proxy(ResultSet.class, new ResultSetHandler(labels, sqlTypes, rows));
+    }
+
+    /**
+     * 不访问数据库的数据源，连接上的PreparedStatement忽略所有参数
+     *
+     * @return
+     */
+    static DataSource dataSource() {
+        final Connection connection = proxy(Connection.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        return preparedStatement();
+                    case "getAutoCommit":
+                        return true;
+                    case "isClosed":
+                    case "isReadOnly":
+                        return false;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+
+        });
+        return new DataSource() {
+
+            @Override
+            public Connection getConnection() {
+                return connection;
+            }
+
+            @Override
+            public Connection getConnection(String username, String password) {
+                return connection;
+            }
+
+            @Override
+            public PrintWriter getLogWriter() {
+                return null;
+            }
+
+            @Override
+            public void setLogWriter(PrintWriter out) {
+            }
+
+            @Override
+            public void setLoginTimeout(int seconds) {
+            }
+
+            @Override
+            public int getLoginTimeout() {
+                return 0;
+            }
+
+            @Override
+            public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+                throw new SQLFeatureNotSupportedException();
+            }
+
+            @Override
+            public <T> T unwrap(Class<T> iface) throws SQLException {
+                throw new SQLException("Not a wrapper for " + iface);
+            }
+
+            @Override
+            public boolean isWrapperFor(Class<?> iface) {
+                return false;
+            }
+
+        };
+    }
+
+    /**
+     * 忽略参数的PreparedStatement，executeUpdate返回1
+     *
+     * @return
+     */
+    static PreparedStatement preparedStatement() {
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+
+            private int batch;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "executeUpdate":
+                        return 1;
+                    case "addBatch":
+                        batch++;
+                        return null;
+                    case "executeBatch":
+                        int[] counts = new int[batch];
+                        Arrays.fill(counts, 1);
+                        batch = 0;
+                        return counts;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(InMemoryJdbc.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0D;
+        }
+        if (type == float.class) {
+            return 0F;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == char.class) {
+            return (char) 0;
+        }
+        return 0;
+    }
+
+    private static final class ResultSetHandler implements InvocationHandler {
+
+        private final Object[][] rows;
+        private final ResultSetMetaData metaData;
+        private int cursor = -1;
+        private boolean wasNull;
+
+        private ResultSetHandler(final String[] labels, final int[] sqlTypes, Object[][] rows) {
+            this.rows = rows;
+            this.metaData = proxy(ResultSetMetaData.class, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return labels.length;
+                        case "getColumnLabel":
+                        case "getColumnName":
+                            return labels[(Integer) args[0] - 1];
+                        case "getColumnType":
+                            return sqlTypes[(Integer) args[0] - 1];
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                }
+
+            });
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "next":
+                    return ++cursor < rows.length;
+                case "beforeFirst":
+                    cursor = -1;
+                    return null;
+                case "getMetaData":
+                    return metaData;
+                case "wasNull":
+                    return wasNull;
+                case "isClosed":
+                    return false;
+                default:
+                    break;
+            }
+            if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                Object value = rows[cursor][(Integer) args[0] - 1];
+                wasNull = value == null;
+                return value == null ? defaultValue(method.getReturnType()) : value;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProtobufMessageRowMapper.mapRow的吞吐量，结果集在内存中，只测量行映射本身。每次操作映射一行。
+ *
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMapperBenchmark {
+
+    private static final int ROWS = 100;
+
+    @Param({BenchmarkMessages.SMALL, BenchmarkMessages.MEDIUM, BenchmarkMessages.WIDE})
+    public String size;
+
+    private JdbcProtobufTemplate<Message>.ProtobufMessageRowMapper<Message> rowMapper;
+    private ResultSet resultSet;
+
+    @Setup
+    public void setup() {
+        JdbcProtobufTemplate<Message> template = BenchmarkMessages.template(
+                new JdbcTemplate(InMemoryJdbc.dataSource()), size);
+        rowMapper = template.new ProtobufMessageRowMapper<Message>();
+        resultSet = BenchmarkMessages.resultSet(BenchmarkMessages.prototype(size).getDescriptorForType(), ROWS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void mapRow(Blackhole blackhole) throws SQLException {
+        resultSet.beforeFirst();
+        int rowNum = 0;
+        while (resultSet.next()) {
+            blackhole.consume(rowMapper.mapRow(resultSet, rowNum++));
+        }
+    }
+}
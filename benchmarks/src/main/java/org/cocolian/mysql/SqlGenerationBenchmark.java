@@ -0,0 +1,67 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * insert/update/partialUpdate中生成SQL的开销：计算message的SQL形状并从模板缓存中取出SQL，
+ * 这是每次写入都要做的部分，首次生成模板的开销在预热中摊销。
+ *
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlGenerationBenchmark {
+
+    @Param({BenchmarkMessages.SMALL, BenchmarkMessages.MEDIUM, BenchmarkMessages.WIDE})
+    public String size;
+
+    private MessageSql<Message> messageSql;
+    private String tableName;
+    private Message full;
+    private Message partial;
+
+    @Setup
+    public void setup() {
+        JdbcProtobufTemplate<Message> template = BenchmarkMessages.template(
+                new JdbcTemplate(InMemoryJdbc.dataSource()), size);
+        messageSql = template.getMessageSql();
+        tableName = template.getTableName(null);
+        Message prototype = BenchmarkMessages.prototype(size);
+        full = BenchmarkMessages.full(prototype, 1);
+        partial = BenchmarkMessages.partial(prototype, 1);
+    }
+
+    @Benchmark
+    public String insert() {
+        return messageSql.getSqlTemplate(messageSql.shapeOf(SqlShape.Operation.INSERT, tableName, full)).getSql();
+    }
+
+    @Benchmark
+    public String update() {
+        return messageSql.getSqlTemplate(messageSql.shapeOf(SqlShape.Operation.UPDATE, tableName, full)).getSql();
+    }
+
+    @Benchmark
+    public String partialUpdate() {
+        return messageSql.getSqlTemplate(messageSql.shapeOf(SqlShape.Operation.PARTIAL_UPDATE, tableName, partial))
+                .getSql();
+    }
+}
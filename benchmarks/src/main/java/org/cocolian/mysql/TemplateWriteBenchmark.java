@@ -0,0 +1,61 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过公开接口insert/update/partialUpdate写入内存数据源，测量模板自身的全部开销：
+ * SQL生成、参数绑定以及JdbcTemplate的调用，不包含驱动和数据库。
+ *
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateWriteBenchmark {
+
+    @Param({BenchmarkMessages.SMALL, BenchmarkMessages.MEDIUM, BenchmarkMessages.WIDE})
+    public String size;
+
+    private JdbcProtobufTemplate<Message> template;
+    private Message full;
+    private Message partial;
+
+    @Setup
+    public void setup() {
+        template = BenchmarkMessages.template(new JdbcTemplate(InMemoryJdbc.dataSource()), size);
+        full = BenchmarkMessages.full(BenchmarkMessages.prototype(size), 1);
+        partial = BenchmarkMessages.partial(BenchmarkMessages.prototype(size), 1);
+    }
+
+    @Benchmark
+    public long insert() {
+        return template.insert(full);
+    }
+
+    @Benchmark
+    public int update() {
+        return template.update(full);
+    }
+
+    @Benchmark
+    public int partialUpdate() {
+        return template.partialUpdate(partial);
+    }
+}
@@ -0,0 +1,471 @@
+package org.cocolian.mysql.protoc;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 为一个配置了table_option的message生成DAO类的源码。
+ * 生成的类继承<code>JdbcProtobufTemplate</code>，查询使用按类型直接读取、调用生成的setter的行映射，
+ * 另外提供使用固定SQL、按类型绑定参数的insertRow/insertRows/updateRow，通过模板的write/writeAll执行，
+ * 动态模板的其它方法照常可用。
+ *
+ * @version 1.0.0
+ */
+final class DaoGenerator {
+
+    /**
+     * 字段到列的映射，规则与运行时的ColumnMapping一致
+     */
+    private static final class Column {
+        final FieldDescriptor field;
+        final String columnName;
+        final boolean datetime;
+        final String accessor;
+
+        Column(FieldDescriptor field, String columnName, boolean datetime) {
+            this.field = field;
+            this.columnName = columnName;
+            this.datetime = datetime;
+            this.accessor = JavaNames.accessorName(field);
+        }
+    }
+
+    private final Descriptors.Descriptor message;
+    private final String tableName;
+    private final String messageClass;
+    private final String daoName;
+    private final boolean hasAccessors;
+    private final List<Column> columns = new ArrayList<>();
+    private Column keyColumn;
+    private String insertTail;
+    private String updateTail;
+    private final StringBuilder out = new StringBuilder();
+
+    DaoGenerator(Descriptors.Descriptor message, DynamicMessage tableOption, TaglibOptions options)
+            throws InvalidProtocolBufferException {
+        this.message = message;
+        this.tableName = TaglibOptions.getString(tableOption, "table_name");
+        this.messageClass = JavaNames.className(message);
+        this.daoName = message.getName() + "Dao";
+        // proto3的标量字段没有hasXxx方法
+        this.hasAccessors = !"proto3".equals(message.getFile().toProto().getSyntax());
+        String primaryKey = TaglibOptions.getString(tableOption, "primary_key");
+        for (FieldDescriptor field : message.getFields()) {
+            if (field.isRepeated() || field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                continue;
+            }
+            DynamicMessage columnOption = options.columnOption(field);
+            String columnName = TaglibOptions.getString(columnOption, "column_name");
+            String columnType = TaglibOptions.getEnumName(columnOption, "column_type");
+            Column column = new Column(field, columnName == null ? field.getName() : columnName,
+                    field.getJavaType() == FieldDescriptor.JavaType.LONG
+                            && ("DATETIME".equals(columnType) || "TIMESTAMP".equals(columnType)));
+            columns.add(column);
+            if (primaryKey != null && (primaryKey.equalsIgnoreCase(field.getName())
+                    || primaryKey.equalsIgnoreCase(column.columnName))) {
+                keyColumn = column;
+            }
+        }
+    }
+
+    /**
+     * 是否有<code>PROTOBUF_BLOB</code>列。生成的insertRow/updateRow按类型写入所有列，不支持blob列，
+     * 这样的message不生成DAO，直接使用JdbcProtobufTemplate
+     *
+     * @param message
+     * @param options
+     * @return
+     * @throws InvalidProtocolBufferException
+     */
+    static boolean hasBlobColumns(Descriptors.Descriptor message, TaglibOptions options)
+            throws InvalidProtocolBufferException {
+        for (FieldDescriptor field : message.getFields()) {
+            if ("PROTOBUF_BLOB".equals(TaglibOptions.getEnumName(options.columnOption(field), "column_type"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 生成的文件路径，相对于--dao_out目录
+     *
+     * @return
+     */
+    String getFileName() {
+        String javaPackage = JavaNames.javaPackage(message.getFile());
+        String directory = javaPackage.isEmpty() ? "" : javaPackage.replace('.', '/') + "/";
+        return directory + daoName + ".java";
+    }
+
+    String generate() {
+        String javaPackage = JavaNames.javaPackage(message.getFile());
+        if (!javaPackage.isEmpty()) {
+            line("package " + javaPackage + ";");
+            line("");
+        }
+        line("import org.cocolian.mysql.JdbcProtobufTemplate;");
+        line("import org.cocolian.mysql.RowWriter;");
+        line("import org.springframework.jdbc.core.JdbcTemplate;");
+        line("import org.springframework.jdbc.core.RowMapper;");
+        line("");
+        line("import java.sql.PreparedStatement;");
+        line("import java.sql.ResultSet;");
+        line("import java.sql.ResultSetMetaData;");
+        line("import java.sql.SQLException;");
+        line("import java.sql.Timestamp;");
+        line("import java.sql.Types;");
+        line("import java.util.Collection;");
+        line("import java.util.Locale;");
+        line("");
+        line("/**");
+        line(" * " + tableName + "表的数据访问对象，由protoc-gen-dao根据" + message.getFullName() + "生成，请勿修改。");
+        line(" * 查询使用生成的行映射，insertRow/insertRows/updateRow使用固定SQL写入所有列，");
+        line(" * 与动态模板的写入一样处理分表、主键生成、缓存失效和OperationListener。");
+        line(" */");
+        line("public class " + daoName + " extends JdbcProtobufTemplate<" + messageClass + "> {");
+        line("");
+        generateConstants();
+        line("    public " + daoName + "(JdbcTemplate jdbcTemplate) {");
+        line("        super(jdbcTemplate, " + messageClass + ".class);");
+        line("    }");
+        line("");
+        line("    @Override");
+        line("    protected RowMapper<" + messageClass + "> newRowMapper() {");
+        line("        return new " + message.getName() + "RowMapper();");
+        line("    }");
+        line("");
+        generateInsert();
+        if (keyColumn != null) {
+            generateUpdate();
+        }
+        generateBindInsert();
+        if (keyColumn != null) {
+            generateBindUpdate();
+        }
+        generateRowMapper();
+        line("}");
+        return out.toString();
+    }
+
+    private void generateConstants() {
+        StringBuilder columnList = new StringBuilder();
+        StringBuilder insertColumns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        StringBuilder sets = new StringBuilder();
+        for (Column column : columns) {
+            if (columnList.length() > 0) {
+                columnList.append(", ");
+                insertColumns.append(',');
+                values.append(", ");
+            }
+            columnList.append('`').append(column.columnName).append('`');
+            insertColumns.append('`').append(column.columnName).append('`');
+            values.append('?');
+            if (column != keyColumn) {
+                if (sets.length() > 0) {
+                    sets.append(", ");
+                }
+                sets.append('`').append(column.columnName).append("`=?");
+            }
+        }
+        constant("TABLE_NAME", tableName);
+        constant("COLUMNS", columnList.toString());
+        insertTail = "(" + insertColumns + ") values(" + values + ")";
+        constant("INSERT_SQL", "insert into " + tableName + insertTail);
+        if (keyColumn != null) {
+            String key = "`" + keyColumn.columnName + "`";
+            updateTail = " set " + sets + " where " + key + " = ?";
+            constant("UPDATE_SQL", "update " + tableName + updateTail);
+            constant("GET_SQL", "select " + columnList + " from " + tableName + " where " + key + "=?");
+        }
+        line("");
+    }
+
+    private void constant(String name, String value) {
+        line("    public static final String " + name + " = " + literal(value) + ";");
+    }
+
+    private static String literal(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * 生成RowWriter常量：表名与TABLE_NAME相同时使用SQL常量，分表时替换表名
+     */
+    private void writer(String name, String sqlConstant, String verb, String tail, String bindMethod) {
+        line("    private static final RowWriter<" + messageClass + "> " + name + " = new RowWriter<" + messageClass + ">() {");
+        line("");
+        line("        @Override");
+        line("        public String getSql(String tableName) {");
+        line("            return TABLE_NAME.equals(tableName) ? " + sqlConstant + " : " + literal(verb + " ")
+                + " + tableName + " + literal(tail) + ";");
+        line("        }");
+        line("");
+        line("        @Override");
+        line("        public void bind(PreparedStatement ps, " + messageClass + " message) throws SQLException {");
+        line("            " + bindMethod + "(ps, message);");
+        line("        }");
+        line("");
+        line("    };");
+        line("");
+    }
+
+    private void generateInsert() {
+        writer("INSERT_WRITER", "INSERT_SQL", "insert into", insertTail, "bindInsert");
+        line("    /**");
+        line("     * 插入所有列，没有设置的字段写入NULL。设置了idGenerator时为没有主键值的记录分配主键");
+        line("     *");
+        line("     * @param message");
+        line("     * @return");
+        line("     */");
+        line("    public int insertRow(" + messageClass + " message) {");
+        line("        return write(\"insertRow\", assignId(message), INSERT_WRITER);");
+        line("    }");
+        line("");
+        line("    /**");
+        line("     * 批量插入所有列，使用一条SQL的JDBC批量提交，分表时按表分组");
+        line("     *");
+        line("     * @param messages");
+        line("     * @return");
+        line("     */");
+        line("    public int[] insertRows(Collection<" + messageClass + "> messages) {");
+        line("        return writeAll(\"insertRows\", assignIds(messages), INSERT_WRITER);");
+        line("    }");
+        line("");
+    }
+
+    private void generateUpdate() {
+        writer("UPDATE_WRITER", "UPDATE_SQL", "update", updateTail, "bindUpdate");
+        line("    /**");
+        line("     * 根据主键更新所有列，没有设置的字段写入NULL");
+        line("     *");
+        line("     * @param message");
+        line("     * @return");
+        line("     */");
+        line("    public int updateRow(" + messageClass + " message) {");
+        line("        return write(\"updateRow\", message, UPDATE_WRITER);");
+        line("    }");
+        line("");
+    }
+
+    private void generateBindInsert() {
+        line("    /**");
+        line("     * 按INSERT_SQL的参数顺序绑定");
+        line("     *");
+        line("     * @param ps");
+        line("     * @param message");
+        line("     * @throws SQLException");
+        line("     */");
+        line("    public static void bindInsert(PreparedStatement ps, " + messageClass + " message) throws SQLException {");
+        int index = 1;
+        for (Column column : columns) {
+            bind(column, index++);
+        }
+        line("    }");
+        line("");
+    }
+
+    private void generateBindUpdate() {
+        line("    /**");
+        line("     * 按UPDATE_SQL的参数顺序绑定");
+        line("     *");
+        line("     * @param ps");
+        line("     * @param message");
+        line("     * @throws SQLException");
+        line("     */");
+        line("    public static void bindUpdate(PreparedStatement ps, " + messageClass + " message) throws SQLException {");
+        int index = 1;
+        for (Column column : columns) {
+            if (column != keyColumn) {
+                bind(column, index++);
+            }
+        }
+        bind(keyColumn, index);
+        line("    }");
+        line("");
+    }
+
+    private void bind(Column column, int index) {
+        String getter = "message.get" + column.accessor + "()";
+        String has = hasAccessors ? "message.has" + column.accessor + "()" : null;
+        String set;
+        String sqlType;
+        switch (column.field.getJavaType()) {
+            case INT:
+                set = "ps.setInt(" + index + ", " + getter + ");";
+                sqlType = "INTEGER";
+                break;
+            case LONG:
+                if (column.datetime) {
+                    // DATETIME/TIMESTAMP列存储为int64的毫秒数，0或者负数按NULL写入
+                    has = (has == null ? "" : has + " && ") + getter + " > 0";
+                    set = "ps.setTimestamp(" + index + ", new Timestamp(" + getter + "));";
+                    sqlType = "TIMESTAMP";
+                } else {
+                    set = "ps.setLong(" + index + ", " + getter + ");";
+                    sqlType = "BIGINT";
+                }
+                break;
+            case FLOAT:
+                set = "ps.setFloat(" + index + ", " + getter + ");";
+                sqlType = "FLOAT";
+                break;
+            case DOUBLE:
+                set = "ps.setDouble(" + index + ", " + getter + ");";
+                sqlType = "DOUBLE";
+                break;
+            case BOOLEAN:
+                set = "ps.setBoolean(" + index + ", " + getter + ");";
+                sqlType = "BOOLEAN";
+                break;
+            case STRING:
+                set = "ps.setString(" + index + ", " + getter + ");";
+                sqlType = "VARCHAR";
+                break;
+            case BYTE_STRING:
+                set = "ps.setBytes(" + index + ", " + getter + ".toByteArray());";
+                sqlType = "VARBINARY";
+                break;
+            case ENUM:
+                // 枚举按number存储
+                String number = hasAccessors ? getter + ".getNumber()" : "message.get" + column.accessor + "Value()";
+                set = "ps.setInt(" + index + ", " + number + ");";
+                sqlType = "INTEGER";
+                break;
+            default:
+                throw new IllegalStateException("Unsupported field: " + column.field.getFullName());
+        }
+        if (has == null) {
+            line("        " + set);
+        } else {
+            line("        if (" + has + ") {");
+            line("            " + set);
+            line("        } else {");
+            line("            ps.setNull(" + index + ", Types." + sqlType + ");");
+            line("        }");
+        }
+    }
+
+    private void generateRowMapper() {
+        String mapperName = message.getName() + "RowMapper";
+        line("    /**");
+        line("     * 按列标签匹配字段，每个结果集只解析一次元数据，之后按类型直接读取并调用生成的setter");
+        line("     */");
+        line("    public static class " + mapperName + " implements RowMapper<" + messageClass + "> {");
+        line("        private ResultSet planResultSet;");
+        line("        private int[] columns;");
+        line("");
+        line("        @Override");
+        line("        public " + messageClass + " mapRow(ResultSet rs, int rowNum) throws SQLException {");
+        line("            if (columns == null || planResultSet != rs) {");
+        line("                columns = resolveColumns(rs.getMetaData());");
+        line("                planResultSet = rs;");
+        line("            }");
+        line("            " + messageClass + ".Builder builder = " + messageClass + ".newBuilder();");
+        for (int i = 0; i < columns.size(); i++) {
+            read(columns.get(i), i);
+        }
+        line("            return builder.build();");
+        line("        }");
+        line("");
+        line("        private static int[] resolveColumns(ResultSetMetaData metaData) throws SQLException {");
+        line("            int[] columns = new int[" + columns.size() + "];");
+        line("            for (int i = 1; i <= metaData.getColumnCount(); i++) {");
+        line("                switch (metaData.getColumnLabel(i).toLowerCase(Locale.ROOT)) {");
+        Set<String> labels = new LinkedHashSet<>();
+        for (Column column : columns) {
+            labels.add(column.columnName.toLowerCase(Locale.ROOT));
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            line("                    case \"" + column.columnName.toLowerCase(Locale.ROOT) + "\":");
+            String fieldLabel = column.field.getName().toLowerCase(Locale.ROOT);
+            if (labels.add(fieldLabel)) {
+                // 也接受按字段名取别名的列
+                line("                    case \"" + fieldLabel + "\":");
+            }
+            line("                        columns[" + i + "] = i;");
+            line("                        break;");
+        }
+        line("                    default:");
+        line("                        break;");
+        line("                }");
+        line("            }");
+        line("            return columns;");
+        line("        }");
+        line("    }");
+    }
+
+    private void read(Column column, int index) {
+        String setter = "builder.set" + column.accessor;
+        String rsIndex = "columns[" + index + "]";
+        line("            if (" + rsIndex + " > 0) {");
+        switch (column.field.getJavaType()) {
+            case INT:
+                primitive("int", "rs.getInt(" + rsIndex + ")", setter + "(value);");
+                break;
+            case LONG:
+                if (column.datetime) {
+                    nullable("Timestamp", "rs.getTimestamp(" + rsIndex + ")", setter + "(value.getTime());");
+                } else {
+                    primitive("long", "rs.getLong(" + rsIndex + ")", setter + "(value);");
+                }
+                break;
+            case FLOAT:
+                primitive("float", "rs.getFloat(" + rsIndex + ")", setter + "(value);");
+                break;
+            case DOUBLE:
+                primitive("double", "rs.getDouble(" + rsIndex + ")", setter + "(value);");
+                break;
+            case BOOLEAN:
+                primitive("boolean", "rs.getBoolean(" + rsIndex + ")", setter + "(value);");
+                break;
+            case STRING:
+                nullable("String", "rs.getString(" + rsIndex + ")", setter + "(value);");
+                break;
+            case BYTE_STRING:
+                nullable("byte[]", "rs.getBytes(" + rsIndex + ")",
+                        setter + "(com.google.protobuf.ByteString.copyFrom(value));");
+                break;
+            case ENUM:
+                // 未知的number当作空值处理
+                String enumClass = JavaNames.className(column.field.getEnumType());
+                line("                int value = rs.getInt(" + rsIndex + ");");
+                line("                " + enumClass + " enumValue = rs.wasNull() ? null : " + enumClass + ".forNumber(value);");
+                line("                if (enumValue != null) {");
+                line("                    " + setter + "(enumValue);");
+                line("                }");
+                break;
+            default:
+                throw new IllegalStateException("Unsupported field: " + column.field.getFullName());
+        }
+        line("            }");
+    }
+
+    private void primitive(String type, String read, String set) {
+        line("                " + type + " value = " + read + ";");
+        line("                if (!rs.wasNull()) {");
+        line("                    " + set);
+        line("                }");
+    }
+
+    private void nullable(String type, String read, String set) {
+        line("                " + type + " value = " + read + ";");
+        line("                if (value != null) {");
+        line("                    " + set);
+        line("                }");
+    }
+
+    private void line(String line) {
+        out.append(line).append('\n');
+    }
+}
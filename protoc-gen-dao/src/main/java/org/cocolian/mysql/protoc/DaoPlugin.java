@@ -0,0 +1,63 @@
+package org.cocolian.mysql.protoc;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * protoc插件，为每个配置了table_option的message生成一个DAO类。
+ * 用法： protoc --plugin=protoc-gen-dao=src/main/scripts/protoc-gen-dao --dao_out=src/main/gen foo.proto
+ *
+ * @version 1.0.0
+ */
+public final class DaoPlugin {
+
+    private DaoPlugin() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        CodeGeneratorRequest request = CodeGeneratorRequest.parseFrom(System.in);
+        CodeGeneratorResponse response;
+        try {
+            response = generate(request);
+        } catch (Exception ex) {
+            response = CodeGeneratorResponse.newBuilder().setError(String.valueOf(ex.getMessage())).build();
+        }
+        response.writeTo(System.out);
+        System.out.flush();
+    }
+
+    static CodeGeneratorResponse generate(CodeGeneratorRequest request) throws Exception {
+        // proto_file按依赖顺序排列，依赖总是出现在使用它的文件之前
+        Map<String, Descriptors.FileDescriptor> files = new LinkedHashMap<>();
+        for (FileDescriptorProto proto : request.getProtoFileList()) {
+            Descriptors.FileDescriptor[] dependencies = new Descriptors.FileDescriptor[proto.getDependencyCount()];
+            for (int i = 0; i < dependencies.length; i++) {
+                dependencies[i] = files.get(proto.getDependency(i));
+            }
+            files.put(proto.getName(), Descriptors.FileDescriptor.buildFrom(proto, dependencies));
+        }
+        TaglibOptions options = TaglibOptions.of(files.values());
+        CodeGeneratorResponse.Builder response = CodeGeneratorResponse.newBuilder();
+        for (String fileName : request.getFileToGenerateList()) {
+            for (Descriptors.Descriptor message : files.get(fileName).getMessageTypes()) {
+                DynamicMessage tableOption = options.tableOption(message);
+                if (TaglibOptions.getString(tableOption, "table_name") == null
+                        || DaoGenerator.hasBlobColumns(message, options)) {
+                    continue;
+                }
+                DaoGenerator generator = new DaoGenerator(message, tableOption, options);
+                response.addFile(CodeGeneratorResponse.File.newBuilder()
+                        .setName(generator.getFileName())
+                        .setContent(generator.generate()));
+            }
+        }
+        return response.build();
+    }
+}
@@ -0,0 +1,127 @@
+package org.cocolian.mysql.protoc;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+
+/**
+ * 按protoc Java生成器的规则计算类名和方法名
+ *
+ * @version 1.0.0
+ */
+final class JavaNames {
+
+    private JavaNames() {
+    }
+
+    /**
+     * 下划线命名转为驼峰命名，数字之后的字母大写
+     *
+     * @param name
+     * @param capitalizeFirst
+     * @return
+     */
+    static String camelCase(String name, boolean capitalizeFirst) {
+        StringBuilder result = new StringBuilder(name.length());
+        boolean capitalizeNext = capitalizeFirst;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                result.append(capitalizeNext ? Character.toUpperCase(c) : c);
+                capitalizeNext = false;
+            } else if (c >= 'A' && c <= 'Z') {
+                result.append(i == 0 && !capitalizeFirst ? Character.toLowerCase(c) : c);
+                capitalizeNext = false;
+            } else if (c >= '0' && c <= '9') {
+                result.append(c);
+                capitalizeNext = true;
+            } else {
+                capitalizeNext = true;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * 字段访问方法的后缀，如 user_id 对应 getUserId 中的 UserId
+     *
+     * @param field
+     * @return
+     */
+    static String accessorName(Descriptors.FieldDescriptor field) {
+        return camelCase(field.getName(), true);
+    }
+
+    static String javaPackage(Descriptors.FileDescriptor file) {
+        DescriptorProtos.FileOptions options = file.getOptions();
+        if (options.hasJavaPackage()) {
+            return options.getJavaPackage();
+        }
+        return file.getPackage();
+    }
+
+    /**
+     * 文件的外部类名，java_outer_classname未设置时由文件名生成，与顶层类型重名时加OuterClass后缀
+     *
+     * @param file
+     * @return
+     */
+    static String outerClassName(Descriptors.FileDescriptor file) {
+        DescriptorProtos.FileOptions options = file.getOptions();
+        if (options.hasJavaOuterClassname()) {
+            return options.getJavaOuterClassname();
+        }
+        String name = file.getName();
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.endsWith(".proto")) {
+            name = name.substring(0, name.length() - ".proto".length());
+        }
+        String className = camelCase(name, true);
+        for (Descriptors.Descriptor message : file.getMessageTypes()) {
+            if (message.getName().equals(className)) {
+                return className + "OuterClass";
+            }
+        }
+        for (Descriptors.EnumDescriptor enumType : file.getEnumTypes()) {
+            if (enumType.getName().equals(className)) {
+                return className + "OuterClass";
+            }
+        }
+        return className;
+    }
+
+    /**
+     * message的完整Java类名
+     *
+     * @param message
+     * @return
+     */
+    static String className(Descriptors.Descriptor message) {
+        return className(message.getFile(), message.getFullName());
+    }
+
+    /**
+     * 枚举的完整Java类名
+     *
+     * @param enumType
+     * @return
+     */
+    static String className(Descriptors.EnumDescriptor enumType) {
+        return className(enumType.getFile(), enumType.getFullName());
+    }
+
+    private static String className(Descriptors.FileDescriptor file, String fullName) {
+        String relativeName = fullName;
+        if (!file.getPackage().isEmpty()) {
+            relativeName = fullName.substring(file.getPackage().length() + 1);
+        }
+        StringBuilder className = new StringBuilder();
+        String javaPackage = javaPackage(file);
+        if (!javaPackage.isEmpty()) {
+            className.append(javaPackage).append('.');
+        }
+        if (!file.getOptions().getJavaMultipleFiles()) {
+            className.append(outerClassName(file)).append('.');
+        }
+        return className.append(relativeName).toString();
+    }
+}
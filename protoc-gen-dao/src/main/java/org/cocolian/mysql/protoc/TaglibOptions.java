@@ -0,0 +1,133 @@
+package org.cocolian.mysql.protoc;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.Collection;
+
+/**
+ * 读取taglib.proto中定义的<code>table_option</code>和<code>column_option</code>。
+ * 插件不依赖taglib生成的Java类，而是从请求中的taglib.proto描述动态解析选项。
+ *
+ * @version 1.0.0
+ */
+final class TaglibOptions {
+
+    private static final String MESSAGE_OPTIONS = "google.protobuf.MessageOptions";
+    private static final String FIELD_OPTIONS = "google.protobuf.FieldOptions";
+
+    private final FieldDescriptor tableOption;
+    private final FieldDescriptor columnOption;
+    private final ExtensionRegistry registry = ExtensionRegistry.newInstance();
+
+    private TaglibOptions(FieldDescriptor tableOption, FieldDescriptor columnOption) {
+        this.tableOption = tableOption;
+        this.columnOption = columnOption;
+        if (tableOption != null) {
+            registry.add(tableOption, DynamicMessage.getDefaultInstance(tableOption.getMessageType()));
+        }
+        if (columnOption != null) {
+            registry.add(columnOption, DynamicMessage.getDefaultInstance(columnOption.getMessageType()));
+        }
+    }
+
+    /**
+     * 在所有文件中查找taglib的扩展定义
+     *
+     * @param files
+     * @return
+     */
+    static TaglibOptions of(Collection<Descriptors.FileDescriptor> files) {
+        FieldDescriptor tableOption = null;
+        FieldDescriptor columnOption = null;
+        for (Descriptors.FileDescriptor file : files) {
+            for (FieldDescriptor extension : file.getExtensions()) {
+                String extendee = extension.getContainingType().getFullName();
+                if ("table_option".equals(extension.getName()) && MESSAGE_OPTIONS.equals(extendee)) {
+                    tableOption = extension;
+                } else if ("column_option".equals(extension.getName()) && FIELD_OPTIONS.equals(extendee)) {
+                    columnOption = extension;
+                }
+            }
+        }
+        return new TaglibOptions(tableOption, columnOption);
+    }
+
+    /**
+     * message上的table_option
+     *
+     * @param message
+     * @return 没有设置时返回null
+     */
+    DynamicMessage tableOption(Descriptors.Descriptor message) throws InvalidProtocolBufferException {
+        if (tableOption == null) {
+            return null;
+        }
+        // 请求中的选项按未知字段保存，需要带上扩展重新解析
+        DescriptorProtos.MessageOptions options = DescriptorProtos.MessageOptions.parseFrom(
+                message.getOptions().toByteString(), registry);
+        if (!options.hasField(tableOption)) {
+            return null;
+        }
+        return (DynamicMessage) options.getField(tableOption);
+    }
+
+    /**
+     * 字段上的column_option
+     *
+     * @param field
+     * @return 没有设置时返回null
+     */
+    DynamicMessage columnOption(FieldDescriptor field) throws InvalidProtocolBufferException {
+        if (columnOption == null) {
+            return null;
+        }
+        DescriptorProtos.FieldOptions options = DescriptorProtos.FieldOptions.parseFrom(
+                field.getOptions().toByteString(), registry);
+        if (!options.hasField(columnOption)) {
+            return null;
+        }
+        return (DynamicMessage) options.getField(columnOption);
+    }
+
+    /**
+     * 读取选项中的字符串值
+     *
+     * @param option
+     * @param name
+     * @return 选项为null或者没有设置时返回null
+     */
+    static String getString(DynamicMessage option, String name) {
+        if (option == null) {
+            return null;
+        }
+        FieldDescriptor field = option.getDescriptorForType().findFieldByName(name);
+        if (field == null || !option.hasField(field)) {
+            return null;
+        }
+        String value = ((String) option.getField(field)).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * 读取选项中的枚举值名称
+     *
+     * @param option
+     * @param name
+     * @return 选项为null或者没有设置时返回null
+     */
+    static String getEnumName(DynamicMessage option, String name) {
+        if (option == null) {
+            return null;
+        }
+        FieldDescriptor field = option.getDescriptorForType().findFieldByName(name);
+        if (field == null || !option.hasField(field)) {
+            return null;
+        }
+        return ((Descriptors.EnumValueDescriptor) option.getField(field)).getName();
+    }
+}
@@ -0,0 +1,321 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link JdbcProtobufTemplate}的异步版本，每个操作在给定的executor上执行，返回<code>CompletableFuture</code>。
+ * <ul>
+ * <li>并发上限：按<code>DataSource</code>限制同时执行的操作数，避免耗尽连接池，见{@link ConcurrencyLimiter}；
+ * 写入按分片路由后的数据源计数，查询在提交前选定主库或者只读副本，按实际使用的数据源计数。
+ * 没有许可的操作在队列中等待，不占用executor的线程</li>
+ * <li>取消和超时：future被取消、超时或者异常完成时，通过<code>Statement.cancel()</code>中止正在执行的语句，
+ * 要求语句由{@link CancellableJdbcTemplate}创建</li>
+ * </ul>
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public class AsyncJdbcProtobufTemplate<M extends Message> {
+
+    private static final ScheduledExecutorService timer = newTimer();
+
+    private final JdbcProtobufTemplate<M> template;
+    private final Executor executor;
+    private ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter();
+    private long timeoutMillis = 0;
+
+    /**
+     * @param template 同步模板，主库和只读副本的JdbcTemplate为{@link CancellableJdbcTemplate}时才能取消语句
+     * @param executor 执行数据库操作的线程池
+     */
+    public AsyncJdbcProtobufTemplate(JdbcProtobufTemplate<M> template, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        this.template = template;
+        this.executor = executor;
+    }
+
+    /**
+     * 使用给定的JdbcTemplate创建同步模板，JdbcTemplate会被包装为{@link CancellableJdbcTemplate}
+     *
+     * @param jdbcTemplate
+     * @param messageClass
+     * @param executor
+     */
+    public AsyncJdbcProtobufTemplate(JdbcTemplate jdbcTemplate, Class<M> messageClass, Executor executor) {
+        this(new JdbcProtobufTemplate<M>(jdbcTemplate instanceof CancellableJdbcTemplate ? jdbcTemplate
+                : new CancellableJdbcTemplate(jdbcTemplate), messageClass), executor);
+    }
+
+    /**
+     * 每个任务一个虚拟线程的executor，需要JDK 21以上
+     *
+     * @return
+     * @throws UnsupportedOperationException 当前JDK不支持虚拟线程
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later.", ex);
+        }
+    }
+
+    public JdbcProtobufTemplate<M> getTemplate() {
+        return template;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * 设置并发限制，多个异步模板使用同一个实例时共用每个数据源的上限。默认每个异步模板一个，不做限制。
+     *
+     * @param concurrencyLimiter
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        if (concurrencyLimiter == null) {
+            throw new IllegalArgumentException("concurrencyLimiter must not be null");
+        }
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 设置每个操作的超时时间（毫秒），从提交时开始计算，包括排队和等待并发许可的时间。
+     * 超时后future以<code>QueryTimeoutException</code>结束，并取消正在执行的语句。默认为0，不超时。
+     *
+     * @param timeoutMillis
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 根据主键异步查询单记录
+     *
+     * @param <V>
+     * @param primaryKeyValue
+     * @return
+     */
+    public <V> CompletableFuture<M> getAsync(final V primaryKeyValue) {
+        return submitRead(new Callable<M>() {
+
+            @Override
+            public M call() {
+                return template.get(primaryKeyValue);
+            }
+
+        });
+    }
+
+    /**
+     * 异步查询单个记录
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public CompletableFuture<M> getAsync(final String sql, final Object... args) {
+        return submitRead(new Callable<M>() {
+
+            @Override
+            public M call() {
+                return template.get(sql, args);
+            }
+
+        });
+    }
+
+    /**
+     * 异步查询多个记录
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public CompletableFuture<List<M>> queryAsync(final String sql, final Object... args) {
+        return submitRead(new Callable<List<M>>() {
+
+            @Override
+            public List<M> call() {
+                return template.query(sql, args);
+            }
+
+        });
+    }
+
+    /**
+     * 异步插入
+     *
+     * @param message
+     * @return 插入的记录数
+     */
+    public CompletableFuture<Long> insertAsync(final M message) {
+        return submit(template.getJdbcTemplate(message).getDataSource(), new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return template.insert(message);
+            }
+
+        });
+    }
+
+    /**
+     * 异步更新
+     *
+     * @param message
+     * @return 更新的记录数
+     */
+    public CompletableFuture<Integer> updateAsync(final M message) {
+        return submit(template.getJdbcTemplate(message).getDataSource(), new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return template.update(message);
+            }
+
+        });
+    }
+
+    /**
+     * 异步执行更新语句
+     *
+     * @param sql
+     * @param args
+     * @return 更新的记录数
+     */
+    public CompletableFuture<Integer> updateAsync(final String sql, final Object... args) {
+        return submit(template.getJdbcTemplate(null).getDataSource(), new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return template.update(sql, args);
+            }
+
+        });
+    }
+
+    /**
+     * 在提交前选定读操作使用的主库或者只读副本，按该数据源取得并发许可，执行时使用同一个数据源
+     *
+     * @param action
+     * @return
+     */
+    private <T> CompletableFuture<T> submitRead(final Callable<T> action) {
+        final ReplicaNode replica = template.chooseReadReplica();
+        JdbcTemplate jdbc = replica == null ? template.getJdbcTemplate(null) : replica.getJdbcTemplate();
+        return submit(jdbc.getDataSource(), new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                return template.routeReads(replica, action);
+            }
+
+        });
+    }
+
+    /**
+     * 取得并发许可后在executor上执行操作。future提前结束（取消、超时或者调用方complete）时，
+     * 尚未开始的操作不再执行，正在执行的语句被取消。
+     *
+     * @param dataSource 操作使用的数据源，用于并发限制
+     * @param action
+     * @return
+     */
+    private <T> CompletableFuture<T> submit(DataSource dataSource, final Callable<T> action) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final CancellableJdbcTemplate.Handle handle = new CancellableJdbcTemplate.Handle();
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+
+            @Override
+            public void accept(T result, Throwable ex) {
+                if (ex != null) {
+                    handle.cancel();
+                }
+            }
+
+        });
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    future.completeExceptionally(new QueryTimeoutException(
+                            "Operation timed out after " + timeoutMillis + "ms."));
+                }
+
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<T, Throwable>() {
+
+                @Override
+                public void accept(T result, Throwable ex) {
+                    timeout.cancel(false);
+                }
+
+            });
+        }
+        concurrencyLimiter.execute(dataSource, future, executor, new Runnable() {
+
+            @Override
+            public void run() {
+                execute(future, handle, action);
+            }
+
+        });
+        return future;
+    }
+
+    private <T> void execute(CompletableFuture<T> future, CancellableJdbcTemplate.Handle handle, Callable<T> action) {
+        if (future.isDone()) {
+            return;
+        }
+        CancellableJdbcTemplate.bind(handle);
+        try {
+            future.complete(action.call());
+        } catch (Throwable ex) {
+            future.completeExceptionally(ex);
+        } finally {
+            CancellableJdbcTemplate.unbind();
+            handle.finish();
+        }
+    }
+
+    private static ScheduledExecutorService newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "async-jdbc-protobuf-timeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
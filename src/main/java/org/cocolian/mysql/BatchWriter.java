@@ -0,0 +1,275 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 在一个连接上按SQL形状分组批量写入：每组使用JDBC batch，插入时也可以合并为多行insert语句。
+ * 批次大小、是否多行insert和max_allowed_packet读取自模板的设置。
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+final class BatchWriter<M extends Message> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchWriter.class);
+
+    /**
+     * 多行insert时为协议头等预留的字节数
+     */
+    private static final int PACKET_HEADROOM = 1024;
+
+    private final JdbcProtobufTemplate<M> template;
+    private final MessageSql<M> messageSql;
+    private volatile long serverMaxAllowedPacket = 0;
+
+    BatchWriter(JdbcProtobufTemplate<M> template) {
+        this.template = template;
+        this.messageSql = template.getMessageSql();
+    }
+
+    /**
+     * 批量插入，用于导入。不处理分库，也不失效缓存
+     *
+     * @param con
+     * @param rows
+     * @return 按传入顺序的每条记录的影响行数
+     * @throws SQLException
+     */
+    int[] insertAll(Connection con, List<M> rows) throws SQLException {
+        int[] updateCounts = new int[rows.size()];
+        Arrays.fill(updateCounts, MessageBatchUpdateException.NOT_EXECUTED);
+        Map<SqlShape, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            M message = rows.get(i);
+            SqlShape shape = messageSql.shapeOf(SqlShape.Operation.INSERT, template.getTableName(message), message);
+            List<Integer> group = groups.get(shape);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(shape, group);
+            }
+            group.add(i);
+        }
+        execute(con, SqlShape.Operation.INSERT, rows, groups, updateCounts);
+        return updateCounts;
+    }
+
+    /**
+     * 按SQL形状分组执行，组内保持传入顺序
+     *
+     * @param con
+     * @param operation
+     * @param rows
+     * @param groups       每个形状对应的记录在rows中的位置
+     * @param updateCounts 按rows顺序写入每条记录的影响行数
+     * @throws SQLException
+     */
+    void execute(Connection con, SqlShape.Operation operation, List<M> rows, Map<SqlShape, List<Integer>> groups,
+                 int[] updateCounts) throws SQLException {
+        for (Map.Entry<SqlShape, List<Integer>> group : groups.entrySet()) {
+            SqlTemplate sqlTemplate = messageSql.getSqlTemplate(group.getKey());
+            if (operation == SqlShape.Operation.INSERT && template.isMultiRowInsert()) {
+                executeMultiRowInsert(con, sqlTemplate, rows, group.getValue(), updateCounts);
+            } else {
+                executeBatch(con, sqlTemplate, rows, group.getValue(), updateCounts);
+            }
+        }
+    }
+
+    /**
+     * 使用JDBC batch分批执行同一形状的记录
+     */
+    private void executeBatch(Connection con, final SqlTemplate sqlTemplate, List<M> rows, List<Integer> group,
+                              int[] updateCounts) throws SQLException {
+        executeBatch(con, sqlTemplate.getSql(), new RowWriter<M>() {
+
+            @Override
+            public String getSql(String tableName) {
+                return sqlTemplate.getSql();
+            }
+
+            @Override
+            public void bind(PreparedStatement ps, M message) throws SQLException {
+                messageSql.populate(ps, sqlTemplate, message);
+            }
+
+        }, rows, group, updateCounts);
+    }
+
+    /**
+     * 使用JDBC batch分批执行同一条SQL，参数由writer绑定
+     *
+     * @param con
+     * @param sql
+     * @param writer
+     * @param rows
+     * @param group        使用这条SQL的记录在rows中的位置
+     * @param updateCounts 按rows顺序写入每条记录的影响行数
+     * @throws SQLException
+     */
+    void executeBatch(Connection con, String sql, RowWriter<M> writer, List<M> rows, List<Integer> group,
+                      int[] updateCounts) throws SQLException {
+        int batchSize = template.getBatchSize();
+        StatementCache cache = template.getStatementCache();
+        PreparedStatement ps = cache == null ? con.prepareStatement(sql) : cache.prepare(con, sql);
+        try {
+            for (int from = 0; from < group.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, group.size());
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{sql: \"" + sql + "\"; batch:" + (to - from) + "}");
+                }
+                for (int i = from; i < to; i++) {
+                    writer.bind(ps, rows.get(group.get(i)));
+                    ps.addBatch();
+                }
+                int[] counts;
+                try {
+                    counts = ps.executeBatch();
+                } catch (BatchUpdateException ex) {
+                    throw batchFailure(sql, group, from, to, ex.getUpdateCounts(), updateCounts, ex);
+                }
+                for (int i = from; i < to; i++) {
+                    updateCounts[group.get(i)] = counts[i - from];
+                }
+            }
+        } finally {
+            JdbcUtils.closeStatement(ps);
+        }
+    }
+
+    /**
+     * 合并为多行insert语句执行，每条语句不超过batchSize条记录，也不超过max_allowed_packet
+     */
+    private void executeMultiRowInsert(Connection con, SqlTemplate sqlTemplate, List<M> rows, List<Integer> group,
+                                       int[] updateCounts) throws SQLException {
+        int batchSize = template.getBatchSize();
+        long maxPacket = getMaxAllowedPacket(con) - PACKET_HEADROOM;
+        String sql = sqlTemplate.getSql();
+        StringBuilder tuple = new StringBuilder("(");
+        for (int i = 0; i < sqlTemplate.getParameters().length; i++) {
+            tuple.append(i == 0 ? "?" : ", ?");
+        }
+        tuple.append(")");
+        int from = 0;
+        while (from < group.size()) {
+            List<Object> args = new ArrayList<Object>();
+            long packetSize = sql.length();
+            int to = from;
+            while (to < group.size() && to - from < batchSize) {
+                List<Object> rowArgs = messageSql.bind(sqlTemplate, rows.get(group.get(to)));
+                long rowSize = estimateSize(rowArgs) + tuple.length() + 1;
+                if (to > from && packetSize + rowSize > maxPacket) {
+                    break;
+                }
+                packetSize += rowSize;
+                args.addAll(rowArgs);
+                to++;
+            }
+            StringBuilder multiRowSql = new StringBuilder(sql);
+            for (int i = from + 1; i < to; i++) {
+                multiRowSql.append(',').append(tuple);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("{sql: \"" + sql + "\"; rows:" + (to - from) + "; bytes:" + packetSize + "}");
+            }
+            PreparedStatement ps = con.prepareStatement(multiRowSql.toString());
+            int count;
+            try {
+                MessageSql.populate(ps, args);
+                count = ps.executeUpdate();
+            } catch (SQLException ex) {
+                // 多行insert是一条语句，要么全部成功，要么全部失败
+                throw batchFailure(sql, group, from, to, null, updateCounts, ex);
+            } finally {
+                JdbcUtils.closeStatement(ps);
+            }
+            int rowCount = count == to - from ? 1 : Statement.SUCCESS_NO_INFO;
+            for (int i = from; i < to; i++) {
+                updateCounts[group.get(i)] = rowCount;
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * 根据驱动返回的部分结果标记失败的记录。驱动在第一条失败后停止时，之后的记录标记为未执行。
+     */
+    private static MessageBatchUpdateException batchFailure(String sql, List<Integer> group, int from, int to,
+                                                            int[] partialCounts, int[] updateCounts,
+                                                            SQLException cause) {
+        List<Integer> failedRows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            int row = group.get(i);
+            int k = i - from;
+            if (partialCounts == null || k == partialCounts.length
+                    || (k < partialCounts.length && partialCounts[k] == Statement.EXECUTE_FAILED)) {
+                updateCounts[row] = Statement.EXECUTE_FAILED;
+                failedRows.add(row);
+            } else if (k < partialCounts.length) {
+                updateCounts[row] = partialCounts[k];
+            }
+        }
+        return new MessageBatchUpdateException(sql, updateCounts, failedRows, cause);
+    }
+
+    /**
+     * 模板设置的max_allowed_packet，没有设置时从服务器读取一次
+     */
+    private long getMaxAllowedPacket(Connection con) {
+        long configured = template.getMaxAllowedPacket();
+        if (configured > 0) {
+            return configured;
+        }
+        if (serverMaxAllowedPacket <= 0) {
+            Statement stmt = null;
+            ResultSet rs = null;
+            try {
+                stmt = con.createStatement();
+                rs = stmt.executeQuery("select @@max_allowed_packet");
+                serverMaxAllowedPacket = rs.next() ? rs.getLong(1) : JdbcProtobufTemplate.DEFAULT_MAX_ALLOWED_PACKET;
+            } catch (SQLException ex) {
+                logger.warn("Could not read max_allowed_packet, use " + JdbcProtobufTemplate.DEFAULT_MAX_ALLOWED_PACKET,
+                        ex);
+                serverMaxAllowedPacket = JdbcProtobufTemplate.DEFAULT_MAX_ALLOWED_PACKET;
+            } finally {
+                JdbcUtils.closeResultSet(rs);
+                JdbcUtils.closeStatement(stmt);
+            }
+        }
+        return serverMaxAllowedPacket;
+    }
+
+    /**
+     * 估算参数在SQL包中占用的字节数
+     */
+    private static long estimateSize(List<Object> args) {
+        long size = 0;
+        for (Object o : args) {
+            if (o instanceof String) {
+                size += ((String) o).length() * 4 + 2;
+            } else if (o instanceof ByteString) {
+                size += ((ByteString) o).size() * 2 + 3;
+            } else if (o instanceof byte[]) {
+                size += ((byte[]) o).length * 2 + 3;
+            } else {
+                size += 24;
+            }
+        }
+        return size;
+    }
+}
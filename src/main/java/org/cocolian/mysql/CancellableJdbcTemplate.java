@@ -0,0 +1,103 @@
+package org.cocolian.mysql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 可以取消执行中语句的<code>JdbcTemplate</code>。
+ * 创建语句时把语句登记到当前线程绑定的{@link Handle}上，其它线程通过<code>Handle.cancel()</code>调用<code>Statement.cancel()</code>，
+ * 由MySQL服务端中止正在执行的查询。当前线程没有绑定<code>Handle</code>时与<code>JdbcTemplate</code>完全相同。
+ *
+ * @version 1.0.0
+ */
+public class CancellableJdbcTemplate extends JdbcTemplate {
+
+    private static Logger logger = LoggerFactory.getLogger(CancellableJdbcTemplate.class);
+
+    private static final ThreadLocal<Handle> currentHandle = new ThreadLocal<>();
+
+    public CancellableJdbcTemplate(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    /**
+     * 复制另一个JdbcTemplate的数据源和语句设置
+     *
+     * @param jdbcTemplate
+     */
+    public CancellableJdbcTemplate(JdbcTemplate jdbcTemplate) {
+        super(jdbcTemplate.getDataSource());
+        setExceptionTranslator(jdbcTemplate.getExceptionTranslator());
+        setIgnoreWarnings(jdbcTemplate.isIgnoreWarnings());
+        setFetchSize(jdbcTemplate.getFetchSize());
+        setMaxRows(jdbcTemplate.getMaxRows());
+        setQueryTimeout(jdbcTemplate.getQueryTimeout());
+    }
+
+    @Override
+    protected void applyStatementSettings(Statement stmt) throws SQLException {
+        super.applyStatementSettings(stmt);
+        Handle handle = currentHandle.get();
+        if (handle != null) {
+            handle.register(stmt);
+        }
+    }
+
+    /**
+     * 将handle绑定到当前线程，之后在当前线程创建的语句都登记到handle上
+     *
+     * @param handle
+     */
+    static void bind(Handle handle) {
+        currentHandle.set(handle);
+    }
+
+    static void unbind() {
+        currentHandle.remove();
+    }
+
+    /**
+     * 一次异步操作中正在执行的语句
+     */
+    static final class Handle {
+        private Statement statement;
+        private boolean cancelled = false;
+        private boolean finished = false;
+
+        synchronized void register(Statement stmt) throws SQLException {
+            if (cancelled) {
+                // 已经取消的操作不再执行新的语句
+                throw new SQLException("Statement cancelled before execution.", "70100");
+            }
+            this.statement = stmt;
+        }
+
+        /**
+         * 取消正在执行的语句，之后登记的语句会直接失败
+         */
+        synchronized void cancel() {
+            if (cancelled || finished) {
+                return;
+            }
+            cancelled = true;
+            if (statement != null) {
+                try {
+                    statement.cancel();
+                } catch (SQLException ex) {
+                    // 语句可能已经执行完并关闭
+                    logger.debug("Could not cancel statement.", ex);
+                }
+            }
+        }
+
+        synchronized void finish() {
+            finished = true;
+            statement = null;
+        }
+    }
+}
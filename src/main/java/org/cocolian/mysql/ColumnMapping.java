@@ -0,0 +1,132 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.apache.commons.lang3.StringUtils;
+import org.cocolian.mysql.taglib.ColumnFieldOption;
+import org.cocolian.mysql.taglib.ColumnType;
+import org.cocolian.mysql.taglib.Taglib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 字段到数据表列的映射信息， 每个message类型只解析一次字段上的<code>column_option</code>。
+ *
+ * @version 1.0.0
+ */
+final class ColumnMapping {
+
+    private final FieldDescriptor field;
+    private final ColumnFieldOption columnFieldOption;
+    private final String columnName;
+    private final boolean datetime;
+    private final boolean blob;
+    private final int index;
+
+    private ColumnMapping(FieldDescriptor field, int index) {
+        this.field = field;
+        this.index = index;
+        this.columnFieldOption = field.getOptions().getExtension(Taglib.columnOption);
+        this.columnName = StringUtils.isNotBlank(columnFieldOption.getColumnName())
+                ? columnFieldOption.getColumnName().trim() : field.getName();
+        this.datetime = columnFieldOption.getColumnType() == ColumnType.DATETIME
+                || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP;
+        this.blob = columnFieldOption.getColumnType() == ColumnType.PROTOBUF_BLOB;
+    }
+
+    /**
+     * 按field number顺序返回message所有字段的映射
+     *
+     * @param descriptor
+     * @return
+     */
+    static List<ColumnMapping> of(Descriptors.Descriptor descriptor) {
+        List<FieldDescriptor> fields = new ArrayList<>(descriptor.getFields());
+        Collections.sort(fields, new Comparator<FieldDescriptor>() {
+            @Override
+            public int compare(FieldDescriptor o1, FieldDescriptor o2) {
+                return Integer.compare(o1.getNumber(), o2.getNumber());
+            }
+        });
+        List<ColumnMapping> columns = new ArrayList<>(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            columns.add(new ColumnMapping(fields.get(i), i));
+        }
+        return Collections.unmodifiableList(columns);
+    }
+
+    FieldDescriptor getField() {
+        return field;
+    }
+
+    /**
+     * 在按field number排序的列中的序号，同SqlShape位图中的序号
+     *
+     * @return
+     */
+    int getIndex() {
+        return index;
+    }
+
+    ColumnFieldOption getColumnFieldOption() {
+        return columnFieldOption;
+    }
+
+    /**
+     * 列名，设置了<code>column_name</code>时使用该值，否则使用字段名
+     *
+     * @return
+     */
+    String getColumnName() {
+        return columnName;
+    }
+
+    /**
+     * 字段是否对应一个可以查询的列，repeated和message类型的字段只有设置为<code>PROTOBUF_BLOB</code>时才对应列
+     *
+     * @return
+     */
+    boolean isSelectable() {
+        return blob || (!field.isRepeated() && field.getJavaType() != FieldDescriptor.JavaType.MESSAGE);
+    }
+
+    /**
+     * 是否存储为protobuf二进制，见{@link ProtobufBlob}
+     *
+     * @return
+     */
+    boolean isBlob() {
+        return blob;
+    }
+
+    boolean isDatetime() {
+        return datetime;
+    }
+
+    /**
+     * 字段在message中是否有值，同<code>getAllFields()</code>的判定规则
+     *
+     * @param message
+     * @return
+     */
+    boolean isPresent(Message message) {
+        if (field.isRepeated()) {
+            return message.getRepeatedFieldCount(field) > 0;
+        }
+        return message.hasField(field);
+    }
+
+    /**
+     * DATETIME/TIMESTAMP列的值为0或者负数时，按未设置处理
+     *
+     * @param message
+     * @return
+     */
+    boolean isEmptyDatetime(Message message) {
+        return datetime && (long) message.getField(field) <= 0;
+    }
+}
@@ -0,0 +1,70 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * message类型的字段和列的对应关系，只由descriptor决定，按类型在JVM内共享。
+ * 生成的SQL还依赖于模板的主键、表名等可覆盖的设置，缓存在每个模板自己的{@link SqlTemplateCache}中。
+ *
+ * @version 1.0.0
+ */
+final class ColumnMappings {
+
+    private static final ConcurrentMap<Descriptors.Descriptor, ColumnMappings> mappings = new ConcurrentHashMap<>();
+
+    private final List<ColumnMapping> columns;
+    private final Map<String, ColumnMapping> columnsByName;
+
+    private ColumnMappings(Descriptors.Descriptor descriptor) {
+        this.columns = ColumnMapping.of(descriptor);
+        Map<String, ColumnMapping> byName = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (ColumnMapping column : columns) {
+            byName.put(column.getColumnName(), column);
+        }
+        this.columnsByName = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * 获取message类型对应的字段映射
+     *
+     * @param descriptor
+     * @return
+     */
+    static ColumnMappings of(Descriptors.Descriptor descriptor) {
+        ColumnMappings cached = mappings.get(descriptor);
+        if (cached == null) {
+            ColumnMappings created = new ColumnMappings(descriptor);
+            cached = mappings.putIfAbsent(descriptor, created);
+            if (cached == null) {
+                cached = created;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * 按field number排序的字段映射
+     *
+     * @return
+     */
+    List<ColumnMapping> getColumns() {
+        return columns;
+    }
+
+    /**
+     * 按列名查找字段映射，列名不区分大小写
+     *
+     * @param columnName
+     * @return 没有对应的列时返回null
+     */
+    ColumnMapping getColumn(String columnName) {
+        return columnsByName.get(columnName);
+    }
+}
@@ -0,0 +1,202 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.cocolian.mysql.taglib.ColumnFieldOption;
+import org.cocolian.mysql.taglib.ColumnType;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * 按字段类型特化的列读取器，直接调用<code>ResultSet</code>中对应类型的getXxx方法，
+ * 避免<code>getObject</code>的装箱和<code>ConvertUtils</code>的类型转换。
+ *
+ * @version 1.0.0
+ */
+enum ColumnReader {
+
+    INT {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            int value = rs.getInt(column);
+            if (!rs.wasNull()) {
+                builder.setField(field, value);
+            }
+        }
+    },
+
+    LONG {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            long value = rs.getLong(column);
+            if (!rs.wasNull()) {
+                builder.setField(field, value);
+            }
+        }
+    },
+
+    /**
+     * DATETIME/TIMESTAMP列存储为int64的毫秒数
+     */
+    DATETIME {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            Timestamp value = rs.getTimestamp(column);
+            if (value != null) {
+                builder.setField(field, value.getTime());
+            }
+        }
+    },
+
+    FLOAT {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            float value = rs.getFloat(column);
+            if (!rs.wasNull()) {
+                builder.setField(field, value);
+            }
+        }
+    },
+
+    DOUBLE {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            double value = rs.getDouble(column);
+            if (!rs.wasNull()) {
+                builder.setField(field, value);
+            }
+        }
+    },
+
+    BOOLEAN {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            boolean value = rs.getBoolean(column);
+            if (!rs.wasNull()) {
+                builder.setField(field, value);
+            }
+        }
+    },
+
+    STRING {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            String value = rs.getString(column);
+            if (value != null) {
+                builder.setField(field, value);
+            }
+        }
+    },
+
+    BYTES {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            byte[] value = rs.getBytes(column);
+            if (value != null) {
+                builder.setField(field, ByteString.copyFrom(value));
+            }
+        }
+    },
+
+    /**
+     * 枚举按number存储，未知的number当作空值处理
+     */
+    ENUM {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            int value = rs.getInt(column);
+            if (rs.wasNull()) {
+                return;
+            }
+            EnumValueDescriptor enumValue = field.getEnumType().findValueByNumber(value);
+            if (enumValue != null) {
+                builder.setField(field, enumValue);
+            }
+        }
+    },
+
+    /**
+     * message、repeated和map字段，从二进制流直接合并到builder
+     */
+    PROTOBUF_BLOB {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            ProtobufBlob.merge(rs, column, builder);
+        }
+    },
+
+    /**
+     * 设置为PROTOBUF_BLOB的bytes字段，保留原始字节，见{@link LazyMessageBlob}
+     */
+    BLOB_BYTES {
+        @Override
+        void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException {
+            ByteString value = ProtobufBlob.read(rs, column);
+            if (value != null) {
+                builder.setField(field, value);
+            }
+        }
+    };
+
+    /**
+     * 读取列值并写入builder，数据库中为NULL时不设置
+     *
+     * @param rs
+     * @param column 列序号，从1开始
+     * @param field
+     * @param builder
+     * @throws SQLException
+     */
+    abstract void readInto(ResultSet rs, int column, FieldDescriptor field, Message.Builder builder) throws SQLException;
+
+    /**
+     * 根据字段类型、列定义和结果集中的列类型选择读取器
+     *
+     * @param field
+     * @param columnFieldOption
+     * @param sqlType 结果集中的列类型，见<code>java.sql.Types</code>
+     * @return 不支持的字段类型返回null
+     */
+    static ColumnReader of(FieldDescriptor field, ColumnFieldOption columnFieldOption, int sqlType) {
+        if (columnFieldOption.getColumnType() == ColumnType.PROTOBUF_BLOB) {
+            return ProtobufBlob.isRawBytes(field) ? BLOB_BYTES : PROTOBUF_BLOB;
+        }
+        if (field.isRepeated()) {
+            return null;
+        }
+        switch (field.getJavaType()) {
+            case INT:
+                return INT;
+            case LONG:
+                if (columnFieldOption.getColumnType() == ColumnType.DATETIME
+                        || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP
+                        || isDateType(sqlType)) {
+                    return DATETIME;
+                }
+                return LONG;
+            case FLOAT:
+                return FLOAT;
+            case DOUBLE:
+                return DOUBLE;
+            case BOOLEAN:
+                return BOOLEAN;
+            case STRING:
+                return STRING;
+            case BYTE_STRING:
+                return BYTES;
+            case ENUM:
+                return ENUM;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isDateType(int sqlType) {
+        return sqlType == Types.TIMESTAMP || sqlType == Types.DATE || sqlType == Types.TIME;
+    }
+}
@@ -0,0 +1,196 @@
+package org.cocolian.mysql;
+
+import javax.sql.DataSource;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * 按<code>DataSource</code>限制同时执行的异步操作数，避免耗尽连接池。
+ * 没有许可时任务在队列中等待，不占用executor的线程；执行结束释放许可时，把许可交给队列中的下一个任务再提交到executor。
+ * 任务的future在等待期间结束（取消、超时）时从队列中移除。
+ * <p>
+ * 同一个实例可以由多个{@link AsyncJdbcProtobufTemplate}共享，使它们在同一个数据源上共用上限。
+ *
+ * @version 1.0.0
+ */
+public final class ConcurrencyLimiter {
+
+    private final ConcurrentMap<DataSource, Limit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * 设置数据源上同时执行的操作数，应在启动时设置；修改后正在执行和排队的操作仍按原来的上限计数。
+     *
+     * @param dataSource     主库、只读副本或者分片的数据源
+     * @param maxConcurrency 小于等于0时不限制
+     */
+    public void setMaxConcurrency(DataSource dataSource, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            limits.remove(dataSource);
+        } else {
+            limits.put(dataSource, new Limit(maxConcurrency));
+        }
+    }
+
+    /**
+     * @param dataSource
+     * @return 不限制时返回0
+     */
+    public int getMaxConcurrency(DataSource dataSource) {
+        Limit limit = limits.get(dataSource);
+        return limit == null ? 0 : limit.max;
+    }
+
+    /**
+     * 数据源上正在执行的操作数，不限制时返回0
+     *
+     * @param dataSource
+     * @return
+     */
+    public int getActive(DataSource dataSource) {
+        Limit limit = limits.get(dataSource);
+        return limit == null ? 0 : limit.getActive();
+    }
+
+    /**
+     * 数据源上等待许可的操作数
+     *
+     * @param dataSource
+     * @return
+     */
+    public int getWaiting(DataSource dataSource) {
+        Limit limit = limits.get(dataSource);
+        return limit == null ? 0 : limit.getWaiting();
+    }
+
+    /**
+     * 取得许可后将任务提交到executor，任务结束时释放许可
+     *
+     * @param dataSource 操作实际使用的数据源，为null时不限制
+     * @param owner      任务的future，已经结束时不再执行
+     * @param executor
+     * @param task
+     */
+    void execute(DataSource dataSource, CompletableFuture<?> owner, Executor executor, Runnable task) {
+        Limit limit = dataSource == null ? null : limits.get(dataSource);
+        if (limit == null) {
+            executor.execute(task);
+            return;
+        }
+        limit.acquire(new Waiter(limit, owner, executor, task));
+    }
+
+    private static final class Limit {
+
+        private final int max;
+        private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+        private int active = 0;
+
+        private Limit(int max) {
+            this.max = max;
+        }
+
+        void acquire(final Waiter waiter) {
+            synchronized (this) {
+                if (active >= max) {
+                    waiting.add(waiter);
+                    waiter.owner.whenComplete(new BiConsumer<Object, Throwable>() {
+
+                        @Override
+                        public void accept(Object result, Throwable ex) {
+                            remove(waiter);
+                        }
+
+                    });
+                    return;
+                }
+                active++;
+            }
+            if (!waiter.start()) {
+                release();
+            }
+        }
+
+        /**
+         * 释放许可，有等待的任务时直接把许可交给它
+         */
+        void release() {
+            while (true) {
+                Waiter next;
+                synchronized (this) {
+                    next = waiting.poll();
+                    if (next == null) {
+                        active--;
+                        return;
+                    }
+                }
+                if (next.start()) {
+                    return;
+                }
+            }
+        }
+
+        synchronized void remove(Waiter waiter) {
+            waiting.remove(waiter);
+        }
+
+        synchronized int getActive() {
+            return active;
+        }
+
+        synchronized int getWaiting() {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * 等待许可的任务
+     */
+    private static final class Waiter {
+
+        private final Limit limit;
+        private final CompletableFuture<?> owner;
+        private final Executor executor;
+        private final Runnable task;
+
+        private Waiter(Limit limit, CompletableFuture<?> owner, Executor executor, Runnable task) {
+            this.limit = limit;
+            this.owner = owner;
+            this.executor = executor;
+            this.task = task;
+        }
+
+        /**
+         * 使用已取得的许可提交任务
+         *
+         * @return future已经结束或者executor拒绝时返回false，许可需要释放
+         */
+        boolean start() {
+            if (owner.isDone()) {
+                return false;
+            }
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            limit.release();
+                        }
+                    }
+
+                });
+                return true;
+            } catch (RejectedExecutionException ex) {
+                owner.completeExceptionally(ex);
+                return false;
+            }
+        }
+    }
+}
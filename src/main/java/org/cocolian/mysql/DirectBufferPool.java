@@ -0,0 +1,144 @@
+package org.cocolian.mysql;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 固定大小的堆外缓冲区池，供{@link MessageBatch}存放编码后的记录。
+ * 直接内存的分配和回收代价高，释放的缓冲区最多保留maxPooledChunks个，超出的交给GC回收；
+ * 超过chunkSize的单条记录使用单独分配的缓冲区，不放回池中。
+ *
+ * @version 1.0.0
+ */
+public final class DirectBufferPool {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_POOLED_CHUNKS = 64;
+
+    private static final DirectBufferPool defaultPool = new DirectBufferPool();
+
+    private final int chunkSize;
+    private final int maxPooledChunks;
+    private final ConcurrentLinkedQueue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong bytesInUse = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+    }
+
+    /**
+     * @param chunkSize       每个缓冲区的字节数
+     * @param maxPooledChunks 最多保留的空闲缓冲区数，为0时不复用
+     */
+    public DirectBufferPool(int chunkSize, int maxPooledChunks) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = maxPooledChunks;
+    }
+
+    /**
+     * 所有模板默认共享的缓冲区池
+     *
+     * @return
+     */
+    public static DirectBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * 取出一个至少有minCapacity字节的空缓冲区
+     *
+     * @param minCapacity
+     * @return
+     */
+    ByteBuffer acquire(int minCapacity) {
+        ByteBuffer buffer = null;
+        if (minCapacity <= chunkSize) {
+            buffer = pooled.poll();
+        }
+        if (buffer != null) {
+            pooledCount.decrementAndGet();
+            reuses.incrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(Math.max(minCapacity, chunkSize));
+            allocations.incrementAndGet();
+        }
+        bytesInUse.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * 放回缓冲区，调用后不能再访问其中的数据
+     *
+     * @param buffer
+     */
+    void release(ByteBuffer buffer) {
+        bytesInUse.addAndGet(-buffer.capacity());
+        if (buffer.capacity() != chunkSize) {
+            return;
+        }
+        if (pooledCount.incrementAndGet() > maxPooledChunks) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pooled.offer(buffer);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getMaxPooledChunks() {
+        return maxPooledChunks;
+    }
+
+    /**
+     * 池中空闲的缓冲区数
+     *
+     * @return
+     */
+    public int getPooledChunks() {
+        return pooledCount.get();
+    }
+
+    /**
+     * 新分配的缓冲区数
+     *
+     * @return
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * 从池中复用的缓冲区数
+     *
+     * @return
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    /**
+     * 已取出还未放回的缓冲区的总字节数
+     *
+     * @return
+     */
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{chunkSize: " + chunkSize + ", pooled: " + pooledCount.get() + ", allocations: " + allocations.get()
+                + ", reuses: " + reuses.get() + ", bytesInUse: " + bytesInUse.get() + "}";
+    }
+}
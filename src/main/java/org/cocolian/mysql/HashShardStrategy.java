@@ -0,0 +1,24 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors;
+
+/**
+ * 按分片字段取模的分片策略：整数直接取模，其他类型按hashCode取模。
+ *
+ * @version 1.0.0
+ */
+public class HashShardStrategy implements ShardStrategy {
+
+    @Override
+    public int shardOf(Object shardKeyValue, int shardCount) {
+        long value;
+        if (shardKeyValue instanceof Number) {
+            value = ((Number) shardKeyValue).longValue();
+        } else if (shardKeyValue instanceof Descriptors.EnumValueDescriptor) {
+            value = ((Descriptors.EnumValueDescriptor) shardKeyValue).getNumber();
+        } else {
+            value = shardKeyValue.hashCode();
+        }
+        return (int) Math.floorMod(value, (long) shardCount);
+    }
+}
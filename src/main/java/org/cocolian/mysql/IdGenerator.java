@@ -0,0 +1,24 @@
+package org.cocolian.mysql;
+
+/**
+ * 主键生成器，见{@link JdbcProtobufTemplate#setIdGenerator}。实现需要线程安全，生成的ID不重复且大于0。
+ *
+ * @version 1.0.0
+ */
+public interface IdGenerator {
+
+    /**
+     * 生成一个ID
+     *
+     * @return
+     */
+    long nextId();
+
+    /**
+     * 一次生成多个ID，用于批量插入
+     *
+     * @param count
+     * @return 长度为count的ID数组，尽量连续
+     */
+    long[] nextIds(int count);
+}
@@ -0,0 +1,48 @@
+package org.cocolian.mysql;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 统计获取连接耗时的数据源包装，获取连接的时间计入当前线程上正在执行的模板操作，
+ * 见{@link OperationEvent#getAcquireNanos()}。没有正在执行的操作时直接委托，不做计时。
+ *
+ * @version 1.0.0
+ */
+public class InstrumentedDataSource extends DelegatingDataSource {
+
+    public InstrumentedDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        OperationContext context = OperationContext.current();
+        if (context == null) {
+            return super.getConnection();
+        }
+        long start = System.nanoTime();
+        try {
+            return super.getConnection();
+        } finally {
+            context.addAcquireNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        OperationContext context = OperationContext.current();
+        if (context == null) {
+            return super.getConnection(username, password);
+        }
+        long start = System.nanoTime();
+        try {
+            return super.getConnection(username, password);
+        } finally {
+            context.addAcquireNanos(System.nanoTime() - start);
+        }
+    }
+}
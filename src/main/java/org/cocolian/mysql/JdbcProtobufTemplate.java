@@ -1,33 +1,49 @@
 package org.cocolian.mysql;
 
-import com.google.protobuf.DescriptorProtos;
-import com.google.protobuf.DescriptorProtos.FieldOptions;
+import com.google.common.base.CaseFormat;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
-import org.apache.commons.beanutils.ConvertUtils;
+import com.google.protobuf.Parser;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.reflect.MethodUtils;
-import org.cocolian.mysql.taglib.ColumnFieldOption;
-import org.cocolian.mysql.taglib.ColumnType;
 import org.cocolian.mysql.taglib.TableMessageOption;
 import org.cocolian.mysql.taglib.Taglib;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.InvalidPropertyException;
 import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.sql.DataSource;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.sql.*;
-import java.sql.Date;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 存取Protobuf message 数据对象到JDBC数据库中， 是对<code>JdbcTemplate</code>的一个封装。
@@ -46,25 +62,77 @@ public class JdbcProtobufTemplate<M extends Message> {
 
     private static Logger logger = LoggerFactory.getLogger(JdbcProtobufTemplate.class);
 
+    /**
+     * 默认每批提交的记录数
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * 默认按主键批量查询时，每条in查询包含的主键个数
+     */
+    public static final int DEFAULT_MULTI_GET_CHUNK_SIZE = 100;
+
+    /**
+     * 无法从服务器读取max_allowed_packet时使用的默认值
+     */
+    public static final long DEFAULT_MAX_ALLOWED_PACKET = 4 * 1024 * 1024;
+
+    /**
+     * {@link #routeReads}中表示使用主库的路由
+     */
+    private static final Object PRIMARY_ROUTE = new Object();
+
 
     /**
      * 数据库行映射到 protobuf message对象
      */
     public class ProtobufMessageRowMapper<N extends Message> implements RowMapper<N> {
+        private ResultSet planResultSet;
+        private RowMappingPlan plan;
+
         @SuppressWarnings("unchecked")
         @Override
         public N mapRow(ResultSet rs, int rowNum) throws SQLException {
-            Message.Builder builder = newBuilder(messageClass);
-            populate(rs, builder);
+            if (plan == null || planResultSet != rs) {
+                // 每个结果集只解析一次元数据
+                plan = RowMappingPlan.compile(descriptor, rs.getMetaData());
+                planResultSet = rs;
+            }
+            Message.Builder builder = defaultInstance.newBuilderForType();
+            plan.populate(rs, builder);
             return (N) builder.build();
         }
     }
 
     private Class<M> messageClass;
     private Descriptors.Descriptor descriptor;
+    private M defaultInstance;
+    private MessageSql<M> messageSql;
+    private BatchWriter<M> batchWriter;
     private JdbcTemplate jdbcTemplate;
     private String _tableName = null;
     private String _primaryKeyName = null;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean multiRowInsert = false;
+    private long maxAllowedPacket = 0;
+    private int multiGetChunkSize = DEFAULT_MULTI_GET_CHUNK_SIZE;
+    private int streamFetchSize = Integer.MIN_VALUE;
+    private MessageCache<M> messageCache;
+    private ShardRouter shardRouter;
+    private Executor shardExecutor;
+    private List<ReplicaNode> replicas = Collections.emptyList();
+    private LoadBalancer loadBalancer = new RoundRobinLoadBalancer();
+    private long readYourWritesWindow = 0;
+    private final ThreadLocal<Long> primaryPinnedUntil = new ThreadLocal<>();
+    private final ThreadLocal<Object> readRoute = new ThreadLocal<>();
+    private OperationListener operationListener = OperationListener.NOOP;
+    private long slowStatementNanos = 0;
+    private volatile String operationTableName;
+    private IdGenerator idGenerator;
+    private volatile StatementCache statementCache;
+    private DirectBufferPool bufferPool = DirectBufferPool.getDefault();
+    private volatile RequestCoalescer requestCoalescer;
+    private long coalesceTimeoutMillis = RequestCoalescer.DEFAULT_TIMEOUT_MILLIS;
 
     public JdbcProtobufTemplate(JdbcTemplate jdbcTemplate, Class<M> messageClass) {
         this.jdbcTemplate = jdbcTemplate;
@@ -73,13 +141,38 @@ public class JdbcProtobufTemplate<M extends Message> {
         } else {
             this.messageClass = messageClass;
         }
-        this.descriptor = this.getDescriptor(messageClass);
+        this.descriptor = this.getDescriptor(this.messageClass);
+        this.defaultInstance = this.getDefaultInstance(this.messageClass);
+        this.messageSql = new MessageSql<M>(this, this.descriptor, this.messageClass);
+        this.batchWriter = new BatchWriter<M>(this);
     }
 
     public JdbcProtobufTemplate(JdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate, null);
+    }
+
+    /**
+     * 读写分离：写入和事务内的操作使用主库，其余查询按负载均衡策略分发到只读副本
+     *
+     * @param writeDataSource 主库
+     * @param readDataSources 只读副本
+     * @param messageClass
+     */
+    public JdbcProtobufTemplate(DataSource writeDataSource, Collection<DataSource> readDataSources, Class<M> messageClass) {
+        this(new CancellableJdbcTemplate(writeDataSource), messageClass);
+        setReadDataSources(readDataSources);
     }
 
 
+    /**
+     * 创建查询结果的行映射，默认通过反射按字段映射；生成的DAO会覆盖为按类型直接调用getter/setter的实现
+     *
+     * @return
+     */
+    protected RowMapper<M> newRowMapper() {
+        return new ProtobufMessageRowMapper<M>();
+    }
+
     @SuppressWarnings("unchecked")
     private Class<M> parseMessageClass() {
         Type genType = getClass().getGenericSuperclass();
@@ -92,15 +185,34 @@ public class JdbcProtobufTemplate<M extends Message> {
         return null;
     }
 
-    protected synchronized String getTableName(M message) {
-        if (this._tableName == null) {
-            TableMessageOption tableMessageOption = descriptor.getOptions().getExtension(Taglib.tableOption);
-            // 默认从protobuf配置中查询表名
-            if (tableMessageOption != null && StringUtils.isNotBlank(tableMessageOption.getTableName())) {
-                this._tableName = tableMessageOption.getTableName();
+    protected String getTableName(M message) {
+        if (shardRouter != null && message != null) {
+            // 分表时按分片字段路由到物理表
+            return shardRouter.route(message).getTableName();
+        }
+        synchronized (this) {
+            if (this._tableName == null) {
+                TableMessageOption tableMessageOption = descriptor.getOptions().getExtension(Taglib.tableOption);
+                // 默认从protobuf配置中查询表名
+                if (tableMessageOption != null && StringUtils.isNotBlank(tableMessageOption.getTableName())) {
+                    this._tableName = tableMessageOption.getTableName();
+                }
             }
+            return this._tableName;
+        }
+    }
+
+    /**
+     * message所在的数据源，分库时按分片字段路由
+     *
+     * @param message
+     * @return
+     */
+    protected JdbcTemplate getJdbcTemplate(M message) {
+        if (shardRouter != null && message != null) {
+            return shardRouter.route(message).getJdbcTemplate();
         }
-        return this._tableName;
+        return jdbcTemplate;
     }
 
     protected synchronized String getPrimaryKeyName(M message) {
@@ -114,438 +226,1853 @@ public class JdbcProtobufTemplate<M extends Message> {
         return this._primaryKeyName;
     }
 
-    private Descriptors.Descriptor getDescriptor(Class<M> messageClass) {
-        try {
-            return (Descriptors.Descriptor) MethodUtils.invokeStaticMethod(messageClass, "getDescriptor");
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
-            throw new InvalidPropertyException(messageClass, "descriptor", "Could not found getDescriptor method.");
-        }
+    public int getBatchSize() {
+        return batchSize;
     }
 
     /**
-     * 查询单个记录
+     * 设置批量写入时每批提交的记录数
      *
-     * @param sql
-     * @param args
-     * @return
+     * @param batchSize
      */
-    public M get(String sql, Object... args) {
-        logger.debug(sql);
-        try {
-            return jdbcTemplate.queryForObject(sql, new ProtobufMessageRowMapper<M>(), args);
-        } catch (EmptyResultDataAccessException ex) {
-            return null;
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
         }
+        this.batchSize = batchSize;
+    }
+
+    public boolean isMultiRowInsert() {
+        return multiRowInsert;
     }
 
     /**
-     * 查询单个记录
+     * 是否在批量插入时使用MySQL的多行insert语句： insert into t(...) values(...),(...)
      *
-     * @param sql
-     * @param args
-     * @return
+     * @param multiRowInsert
      */
-    public M get(String sql, final List<?> args) {
-        logger.debug(sql);
-        try {
-            return jdbcTemplate.queryForObject(sql, new ProtobufMessageRowMapper<M>(), args.toArray());
-        } catch (EmptyResultDataAccessException ex) {
-            return null;
-        }
+    public void setMultiRowInsert(boolean multiRowInsert) {
+        this.multiRowInsert = multiRowInsert;
     }
 
+    public long getMaxAllowedPacket() {
+        return maxAllowedPacket;
+    }
 
     /**
-     * 根据主健查询单记录
+     * 多行insert语句的最大长度，默认为0，表示从服务器读取max_allowed_packet
      *
-     * @param <V>
-     * @param primaryKeyValue
-     * @return
+     * @param maxAllowedPacket
      */
-    public <V> M get(V primaryKeyValue) {
-        StringBuilder selectSql = new StringBuilder("select * from ");
-        selectSql.append(getTableName(null));
-        StringBuilder conditionSql = new StringBuilder(" where ");
-        List<Object> args = new ArrayList<Object>();
+    public void setMaxAllowedPacket(long maxAllowedPacket) {
+        this.maxAllowedPacket = maxAllowedPacket;
+    }
 
-        if (null != getPrimaryKeyName(null) && (null != primaryKeyValue && !"".equalsIgnoreCase(primaryKeyValue.toString()))) {
-            //if has primary-key && fields-val is not null then get obj by primary-key
-            conditionSql.append(getPrimaryKeyName(null)).append("=").append("?");
-            args.add(primaryKeyValue);
-        } else {
-            //else get obj which fields has values
-            logger.error("This ProtoBuf file doesn't set 'primary_key' field ,Please check it now.");
-            return null;
+    public int getMultiGetChunkSize() {
+        return multiGetChunkSize;
+    }
+
+    /**
+     * 设置按主键批量查询时，每条in查询包含的主键个数
+     *
+     * @param multiGetChunkSize
+     */
+    public void setMultiGetChunkSize(int multiGetChunkSize) {
+        if (multiGetChunkSize <= 0) {
+            throw new IllegalArgumentException("multiGetChunkSize must be positive: " + multiGetChunkSize);
         }
+        this.multiGetChunkSize = multiGetChunkSize;
+    }
+
+    public int getStreamFetchSize() {
+        return streamFetchSize;
+    }
 
-        selectSql.append(conditionSql);
-        return (M) get(selectSql.toString(), args);
+    /**
+     * 设置流式查询的fetchSize。默认为<code>Integer.MIN_VALUE</code>，即MySQL驱动的逐行读取模式；
+     * 设置为正数时，需要在连接串中开启useCursorFetch=true，使用服务端游标按批读取。
+     *
+     * @param streamFetchSize
+     */
+    public void setStreamFetchSize(int streamFetchSize) {
+        this.streamFetchSize = streamFetchSize;
     }
 
+    public IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
 
     /**
-     * 查询多个记录
+     * 设置主键生成器，insert和insertAll时为没有主键值的记录分配主键，
+     * 见{@link SegmentIdGenerator}和{@link SnowflakeIdGenerator}。默认为null，不生成主键。
      *
-     * @param sql
-     * @param args
-     * @return
+     * @param idGenerator
      */
-    public List<M> query(String sql, Object... args) {
-        logger.debug(sql);
-        return jdbcTemplate.query(sql, new ProtobufMessageRowMapper<M>(), args);
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
     }
 
+    public MessageCache<M> getMessageCache() {
+        return messageCache;
+    }
 
     /**
-     * update method
+     * 设置按主键读取时使用的缓存，为null时不使用缓存。
+     * 通过本模板的insert/update方法写入时会自动失效缓存，直接执行SQL的写入需要自行调用<code>invalidateAll()</code>。
+     *
+     * @param messageCache
      */
-    public int update(String sql, Object... args) {
-        logger.debug(sql);
-        return jdbcTemplate.update(sql, args);
+    public void setMessageCache(MessageCache<M> messageCache) {
+        this.messageCache = messageCache;
+    }
+
+    public ShardRouter getShardRouter() {
+        return shardRouter;
     }
 
     /**
-     * @param sql
-     * @param args
-     * @return
+     * 设置分表分库的路由，为null时所有操作都使用构造时传入的JdbcTemplate和table_name
+     *
+     * @param shardRouter
      */
-    public int update(final String sql, final List<?> args) {
-        if (logger.isDebugEnabled()) {
-            StringBuilder builder = new StringBuilder();
-            builder.append("{sql: \"").append(sql).append("\"; parameters:").append(args);
-            logger.debug(builder.toString());
-        }
-        return jdbcTemplate.update(new PreparedStatementCreator() {
+    public void setShardRouter(ShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
 
-            @Override
-            public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
-                PreparedStatement ps = con.prepareStatement(sql);
-                populate(ps, args);
-                return ps;
-            }
+    public Executor getShardExecutor() {
+        return shardExecutor;
+    }
 
-        });
+    /**
+     * 设置跨分片查询时使用的线程池，为null时在当前线程依次查询各个分片
+     *
+     * @param shardExecutor
+     */
+    public void setShardExecutor(Executor shardExecutor) {
+        this.shardExecutor = shardExecutor;
+    }
+
+    public List<ReplicaNode> getReplicas() {
+        return replicas;
     }
 
     /**
-     * 根据主健获取到的对象进行全量字段更新
-     * @param message
-     * @return
+     * 设置只读副本，为空时所有查询都使用主库
+     *
+     * @param readDataSources
      */
-    public int update(M message) {
-        StringBuilder updateSql = new StringBuilder("update ");
-        updateSql.append(getTableName(message)).append(" set ");
-
-        StringBuilder conditionSql = new StringBuilder(" where ");
-        conditionSql.append(getPrimaryKeyName(message)).append(" = ?");
-
-        StringBuilder fields = new StringBuilder("");
-        List<Object> args = new ArrayList<Object>();
-        List<Object> keyArgs = new ArrayList<>();
-        Map<Descriptors.FieldDescriptor, Object> fieldMap = message.getAllFields();
-
-        for (Map.Entry<Descriptors.FieldDescriptor, Object> entry : fieldMap.entrySet()) {
-            Descriptors.FieldDescriptor fieldDescriptor = entry.getKey();
-            DescriptorProtos.FieldOptions fieldOptions = fieldDescriptor.getOptions();
-            ColumnFieldOption columnFieldOption = fieldOptions.getExtension(Taglib.columnOption);
-            String fieldName = fieldDescriptor.getName();
-            Object value = entry.getValue();
-
-            if (fieldName.trim().equalsIgnoreCase(getPrimaryKeyName(message))) {
-                keyArgs.add(value);
-                continue;
+    public void setReadDataSources(Collection<DataSource> readDataSources) {
+        List<ReplicaNode> nodes = new ArrayList<>();
+        if (readDataSources != null) {
+            for (DataSource dataSource : readDataSources) {
+                nodes.add(new ReplicaNode(dataSource));
             }
+        }
+        this.replicas = Collections.unmodifiableList(nodes);
+    }
+
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
 
-            fields.append(fieldName).append("=?, ");
-            args.add(convertColumnVal(columnFieldOption,value));
+    /**
+     * 设置选择只读副本的负载均衡策略，默认为轮询
+     *
+     * @param loadBalancer
+     */
+    public void setLoadBalancer(LoadBalancer loadBalancer) {
+        if (loadBalancer == null) {
+            throw new IllegalArgumentException("loadBalancer must not be null");
         }
-        int tmpIndex = fields.lastIndexOf(",");
-        updateSql.append(fields.substring(0, tmpIndex));
-        updateSql.append(conditionSql.toString());
+        this.loadBalancer = loadBalancer;
+    }
 
-        args.addAll(keyArgs);
-        return update(updateSql.toString(),args);
+    public long getReadYourWritesWindow() {
+        return readYourWritesWindow;
     }
 
     /**
-     * 根据定义列类型进行数据值格式转换
-     * @param columnFieldOption
-     * @param value
-     * @return
+     * 设置读己之写的时间窗口（毫秒）：当前线程写入之后的这段时间内，查询都使用主库，避免读到复制延迟前的旧数据。
+     * 默认为0，不固定到主库。
+     *
+     * @param readYourWritesWindow
+     */
+    public void setReadYourWritesWindow(long readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+
+    /**
+     * 为主库上的查询选择只读副本
+     *
+     * @return 没有副本、处于事务中或者在读己之写窗口内时返回null，表示使用主库
      */
-    private Object convertColumnVal(ColumnFieldOption columnFieldOption,Object value) {
-        if (columnFieldOption.getColumnType() == ColumnType.DATETIME
-                || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP) {// datetime类型
-            if (value != null && (long) value > 0) {
-                return new Timestamp((long) value);
+    private ReplicaNode chooseReplica() {
+        Object route = readRoute.get();
+        if (route != null) {
+            return route == PRIMARY_ROUTE ? null : (ReplicaNode) route;
+        }
+        if (replicas.isEmpty() || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return null;
+        }
+        Long pinnedUntil = primaryPinnedUntil.get();
+        if (pinnedUntil != null) {
+            if (System.currentTimeMillis() < pinnedUntil) {
+                return null;
             }
+            primaryPinnedUntil.remove();
         }
-        return value;
+        return loadBalancer.choose(replicas);
     }
 
     /**
-     * 根据主键更新，仅更新对象中有设置值的部分
-     * @param message
+     * 预先为一次读操作选择数据源，{@link AsyncJdbcProtobufTemplate}据此在提交前按实际使用的数据源取得并发许可，
+     * 再通过{@link #routeReads}在执行线程上使用同一个数据源
+     *
+     * @return 使用主库时返回null
+     */
+    ReplicaNode chooseReadReplica() {
+        return chooseReplica();
+    }
+
+    /**
+     * 在当前线程中执行读操作，其中的查询都使用给定的数据源
+     *
+     * @param replica 为null时使用主库
+     * @param action
      * @return
+     * @throws Exception
      */
-    public int partialUpdate(M message){
-    	
-    	String keyName=getPrimaryKeyName(message);
-    	if(keyName==null){
-    		//对象里没有主键，不更新
-    		return 0;
-    	}
-    	
-        StringBuilder updateSql = new StringBuilder("update ");
-        updateSql.append(getTableName(message)).append(" set ");
-
-        StringBuilder conditionSql = new StringBuilder(" where ");
-        conditionSql.append(keyName).append(" =?");
-
-        StringBuilder selectSql = new StringBuilder("select * from ");
-        selectSql.append(getTableName(message));
-
-        selectSql.append(conditionSql);
-
-        StringBuilder fields = new StringBuilder("");
-        Map<Object,Object> paramsMap = new LinkedHashMap<>();
-        List<Object> keyArgs = new LinkedList<>();
-
-        Map<Descriptors.FieldDescriptor, Object> fieldMap = message.getAllFields();
-        Object keyValue=null;
-        for (Map.Entry<Descriptors.FieldDescriptor, Object> entry : fieldMap.entrySet()) {
-            Descriptors.FieldDescriptor fieldDescriptor = entry.getKey();
-            DescriptorProtos.FieldOptions fieldOptions = fieldDescriptor.getOptions();
-            ColumnFieldOption columnFieldOption = fieldOptions.getExtension(Taglib.columnOption);
-            String fieldName = fieldDescriptor.getName();
-            Object value = entry.getValue();
-           
-            if (keyName.equals(fieldName)){
-            	keyValue=value;
-            }
-            fields.append(fieldName).append("=?, ");
-            if (columnFieldOption.getColumnType() == ColumnType.DATETIME
-                    || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP) {// datetime类型
-                if (value != null && (long) value > 0) {
-                	keyArgs.add(new Timestamp((long) value));
-                }
+    <T> T routeReads(ReplicaNode replica, Callable<T> action) throws Exception {
+        Object previous = readRoute.get();
+        readRoute.set(replica == null ? PRIMARY_ROUTE : replica);
+        try {
+            return action.call();
+        } finally {
+            if (previous == null) {
+                readRoute.remove();
             } else {
-            	   keyArgs.add(value);
+                readRoute.set(previous);
             }
+        }
+    }
+
+    /**
+     * 写入主库后，在读己之写窗口内将当前线程的查询固定到主库，并记录当前线程的写入
+     */
+    private void afterWrite() {
+        if (readYourWritesWindow > 0 && !replicas.isEmpty()) {
+            primaryPinnedUntil.set(System.currentTimeMillis() + readYourWritesWindow);
+        }
+        recordWrite();
+    }
 
+    /**
+     * 记录当前线程的写入，之后的合并读不会加入写入之前开始的查询；事务中的写入在事务结束时再记录一次
+     */
+    private void recordWrite() {
+        final RequestCoalescer coalescer = this.requestCoalescer;
+        if (coalescer == null) {
+            return;
         }
+        coalescer.recordWrite();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCompletion(int status) {
+                    coalescer.recordWrite();
+                }
 
-        keyArgs.add(keyValue);
-        int tmpIndex = fields.lastIndexOf(",");
-        updateSql.append(fields.substring(0, tmpIndex));
-        updateSql.append(conditionSql.toString());
+            });
+        }
+    }
 
-        return update(updateSql.toString(),keyArgs);
+    public OperationListener getOperationListener() {
+        return operationListener;
     }
 
     /**
-     * set preparedstatement params
+     * 设置操作监听器，用于统计每个操作的耗时、行数和错误，默认为{@link OperationListener#NOOP}，不做计时
      *
-     * @param ps
-     * @param args
-     * @return
-     * @throws SQLException
+     * @param operationListener
      */
-    private void populate(PreparedStatement ps, List<?> args) throws SQLException {
-        for (int i = 0; i < args.size(); i++) {
-            Object o = args.get(i);
-            if (o instanceof Integer) {
-                ps.setInt(i + 1, (int) o);
-            } else if (o instanceof Long) {
-                ps.setLong(i + 1, (long) o);
-            } else if (o instanceof String) {
-                ps.setString(i + 1, (String) o);
-            } else if (o instanceof Date) {
-                ps.setDate(i + 1, (Date) o);
-            } else if (o instanceof Float) {
-                ps.setFloat(i + 1, (Float) o);
-            } else if (o instanceof Double) {
-                ps.setDouble(i + 1, (Double) o);
-            } else if (o instanceof Timestamp) {
-                ps.setTimestamp(i + 1, (Timestamp) o);
-            } else if (o instanceof Descriptors.EnumValueDescriptor) {
-                ps.setInt(i + 1, ((Descriptors.EnumValueDescriptor) o).getNumber());
-            } else if (o instanceof Boolean) {
-                ps.setBoolean(i + 1, (Boolean) o);
-            } else {
-                ps.setObject(i + 1, o);
-            }
-        }
+    public void setOperationListener(OperationListener operationListener) {
+        this.operationListener = operationListener == null ? OperationListener.NOOP : operationListener;
+    }
+
+    public long getSlowStatementMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowStatementNanos);
     }
 
     /**
-     * @param rs
-     * @param builder
-     * @throws SQLException
+     * 设置慢语句阈值（毫秒），超过时以warn级别记录SQL和各阶段耗时，并在事件中标记。默认为0，不检查。
+     *
+     * @param slowStatementMillis
      */
-    private void populate(ResultSet rs, Message.Builder builder) throws SQLException {
-        ResultSetMetaData metaData = rs.getMetaData();
-        int columnCount = metaData.getColumnCount();// 列个数
-        String columnLabel = null;// 列名
-        Object columnValue = null;// 列值
-        Descriptors.FieldDescriptor fieldDescriptor = null;
-        for (int i = 1; i <= columnCount; i++) {
-            columnLabel = metaData.getColumnLabel(i);
-            columnValue = rs.getObject(i);
-            if (columnValue == null)
-                continue;// 如果为空，继续下一个
-            fieldDescriptor = descriptor.findFieldByName(columnLabel);
-            if (fieldDescriptor == null)
-                continue;// 如果为空，继续下一个
-            // 转换为相应的类型 ，会自动将 date 类型转换为long
-            if (fieldDescriptor.getType().equals(FieldDescriptor.Type.ENUM)) {
-                columnValue = fieldDescriptor.getEnumType().findValueByNumber((int) columnValue);
-            } else {
-                columnValue = ConvertUtils.convert(columnValue, fieldDescriptor.getDefaultValue().getClass());
-            }
-            builder.setField(fieldDescriptor, columnValue);
-        }
+    public void setSlowStatementMillis(long slowStatementMillis) {
+        this.slowStatementNanos = TimeUnit.MILLISECONDS.toNanos(slowStatementMillis);
     }
 
     /**
-     * 插入对象到默认的表中
+     * 语句缓存，未启用时返回null
      *
-     * @param message
      * @return
      */
-    public long insert(M message) {
-        return insert(message, this.getTableName(message));
+    public StatementCache getStatementCache() {
+        return statementCache;
     }
 
     /**
-     * 插入对象到给定的表中。注意，这里并不自动生成ID。
+     * 设置每个连接缓存的语句数。启用后事务中生成的查询、更新和批量语句在事务持有的连接上按SQL文本复用，
+     * 可以与任何连接池配合使用。只缓存事务中的调用，事务之外的调用不复用语句；
+     * 事务之外以及服务端预编译请使用驱动的<code>cachePrepStmts</code>和
+     * <code>useServerPrepStmts</code>，见{@link StatementCache}。默认为0，不缓存。
+     *
+     * @param statementCacheSize
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCache = statementCacheSize > 0 ? new StatementCache(statementCacheSize) : null;
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * {@link #queryBatch(String, Object...)}使用的堆外缓冲区池，默认为所有模板共享的{@link DirectBufferPool#getDefault()}
+     *
+     * @param bufferPool
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 读请求合并的统计，未启用时返回null
      *
-     * @param message
-     * @param tableName
      * @return
      */
-    protected long insert(M message, String tableName) {
-        StringBuilder insertSql = new StringBuilder("insert into ");
-        insertSql.append(tableName).append("(");
-        StringBuilder fields = new StringBuilder("");
-        StringBuilder values = new StringBuilder("");
-        List<Object> args = new ArrayList<Object>();
-        Map<FieldDescriptor, Object> fieldMap = message.getAllFields();
-
-        for (Entry<FieldDescriptor, Object> entry : fieldMap.entrySet()) {
-            FieldDescriptor fieldDescriptor = entry.getKey();
-            FieldOptions fieldOptions = fieldDescriptor.getOptions();
-            ColumnFieldOption columnFieldOption = fieldOptions.getExtension(Taglib.columnOption);
-            String fieldName = fieldDescriptor.getName();
-            Object value = entry.getValue();
-
-            if (columnFieldOption.getColumnType() == ColumnType.DATETIME
-                    || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP) {// datetime类型
-                if (value != null && (long) value > 0) {
-                    fields.append('`').append(fieldName).append("`,");
-                    values.append("?, ");
-                    args.add(new Timestamp((long) value));
-                }
-            } else {
-                fields.append('`').append(fieldName).append("`,");
-                values.append("?, ");
-                args.add(value);
-            }
-        }
-        int tmpIndex = fields.lastIndexOf(",");
-        insertSql.append(fields.substring(0, tmpIndex)).append(") values(");
-        tmpIndex = values.lastIndexOf(",");
-        insertSql.append(values.substring(0, tmpIndex)).append(")");
-        String sql = insertSql.toString();
-        return update(sql, args);
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
     }
 
+    public boolean isCoalesceReads() {
+        return requestCoalescer != null;
+    }
 
     /**
-     * @param message
-     * @param conditionFields
-     * @param conditionParams
-     * @param tableName
+     * 是否合并并发的相同读请求：同时调用<code>get(主键)</code>、SQL和参数都相同的<code>get(sql, args)</code>
+     * 和<code>query(sql, args)</code>时，只有一个线程访问数据库，其它线程等待并得到同一个结果，
+     * <code>query</code>返回的列表不可修改。查询结束后不缓存结果。
+     * 事务中和读己之写窗口内的查询不合并。默认为false。
+     * <p>
+     * <b>读己之写：</b>线程通过本模板写入后，只会加入在这次写入完成之后才开始的查询；
+     * 写入之前已经开始的查询可能返回旧值，这时当前线程自己查询，之后到达的请求合并到这个新的查询上。
+     * 事务中的写入在事务结束时再记录一次。直接使用JdbcTemplate或者其它模板的写入不会被记录，
+     * 之后的读仍可能得到写入之前开始的查询结果。
+     *
+     * @param coalesceReads
+     */
+    public void setCoalesceReads(boolean coalesceReads) {
+        this.requestCoalescer = coalesceReads ? new RequestCoalescer(coalesceTimeoutMillis) : null;
+    }
+
+    public long getCoalesceTimeoutMillis() {
+        return coalesceTimeoutMillis;
+    }
+
+    /**
+     * 等待合并查询结果的最长时间，超时抛出<code>QueryTimeoutException</code>，为0时一直等待，
+     * 默认为{@link RequestCoalescer#DEFAULT_TIMEOUT_MILLIS}
+     *
+     * @param coalesceTimeoutMillis
+     */
+    public void setCoalesceTimeoutMillis(long coalesceTimeoutMillis) {
+        this.coalesceTimeoutMillis = coalesceTimeoutMillis;
+        if (this.requestCoalescer != null) {
+            this.requestCoalescer = new RequestCoalescer(coalesceTimeoutMillis);
+        }
+    }
+
+    /**
+     * 当前查询可以使用的请求合并，未启用、处于事务中或者在读己之写窗口内时返回null
+     *
      * @return
      */
-    protected int updateMessageByCondition(M message, String[] conditionFields, Object[] conditionParams,
-                                           String tableName) {
-        StringBuilder updateSql = new StringBuilder("update ");
-        updateSql.append(tableName).append(" set ");
-        StringBuilder options = new StringBuilder("");
-        List<Object> args = new ArrayList<Object>();
-        Map<FieldDescriptor, Object> fieldMap = message.getAllFields();
-
-        for (Entry<FieldDescriptor, Object> entry : fieldMap.entrySet()) {
-            FieldDescriptor fieldDescriptor = entry.getKey();
-            if (!Arrays.asList(conditionFields).contains(fieldDescriptor.getName())) {
-                FieldOptions fieldOptions = fieldDescriptor.getOptions();
-                ColumnFieldOption columnFieldOption = fieldOptions.getExtension(Taglib.columnOption);
-                String fieldName = fieldDescriptor.getName();
-                Object value = entry.getValue();
-                if (columnFieldOption.getColumnType() == ColumnType.DATETIME
-                        || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP) {// datetime类型
-                    if (value != null && (long) value > 0) {
-                        options.append(fieldName).append("=?, ");
-                        args.add(new Timestamp((long) value));
-                    }
-                } else {
-                    options.append(fieldName).append("=?, ");
-                    args.add(value);
-                }
-            }
+    private RequestCoalescer coalescer() {
+        RequestCoalescer coalescer = this.requestCoalescer;
+        if (coalescer == null || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return null;
         }
-        int tmpIndex = options.lastIndexOf(",");
-        updateSql.append(options.substring(0, tmpIndex)).append(" where 1=1 ");
-        StringBuilder condition = new StringBuilder();
-        if (conditionFields.length != conditionParams.length) {
-            throw new IllegalArgumentException("condition error");
-        } else {
-            for (int i = 0; i < conditionFields.length; i++) {
-                condition.append("AND ").append(conditionFields[i]).append("=? ");
-                args.add(conditionParams[i]);
-            }
-            updateSql.append(condition);
-            String sql = updateSql.toString();
-            logger.debug(sql);
-            return update(sql, args);
+        Long pinnedUntil = primaryPinnedUntil.get();
+        if (pinnedUntil != null && System.currentTimeMillis() < pinnedUntil) {
+            return null;
         }
+        return coalescer;
+    }
+
+    private static Object coalesceKey(String operation, String sql, Object[] args) {
+        return Arrays.asList(operation, sql, args == null ? Collections.emptyList() : Arrays.asList(args));
     }
 
     /**
-     * 获取查询的属性
+     * 创建语句，启用语句缓存时从缓存取出，close时放回
      *
+     * @param con
+     * @param sql
      * @return
+     * @throws SQLException
      */
-    private String buildSelectStatement() {
-        StringBuilder statement = new StringBuilder();
-        List<FieldDescriptor> fields = descriptor.getFields();
-        for (int i = 0; i < fields.size(); i++) {
-            if (i == fields.size() - 1) {
-                statement.append(fields.get(i).getName());
-            } else {
-                statement.append(fields.get(i).getName()).append(",");
-            }
-        }
-        return statement.toString();
+    private PreparedStatement prepareStatement(Connection con, String sql) throws SQLException {
+        StatementCache cache = this.statementCache;
+        return cache == null ? con.prepareStatement(sql) : cache.prepare(con, sql);
     }
 
     /**
-     * get Builder from messageClass
+     * 使用语句缓存执行的查询语句
      *
-     * @param messageClass
+     * @param sql
+     * @param args
      * @return
-     * @throws InvocationTargetException
-     * @throws IllegalAccessException
-     * @throws NoSuchMethodException
      */
-    private <T extends Message> T.Builder newBuilder(Class<T> messageClass) {
-        T.Builder builder = null;
-        try {
-            builder = (T.Builder) MethodUtils.invokeStaticMethod(messageClass, "newBuilder");
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-            throw new BeanCreationException("Error in create Message instance, " + messageClass + ".", e);
+    private PreparedStatementCreator newQueryStatementCreator(final String sql, final Object[] args) {
+        return new PreparedStatementCreator() {
+
+            @Override
+            public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                PreparedStatement ps = prepareStatement(con, sql);
+                new ArgumentPreparedStatementSetter(args).setValues(ps);
+                return ps;
+            }
+
+        };
+    }
+
+    /**
+     * 开始计时，没有设置监听器和慢语句阈值时返回null，不产生任何开销
+     *
+     * @param operation 模板方法名
+     * @param sql
+     * @param write
+     * @return
+     */
+    private OperationContext beginOperation(String operation, String sql, boolean write) {
+        if (operationListener == OperationListener.NOOP && slowStatementNanos <= 0) {
+            return null;
+        }
+        String tableName = operationTableName;
+        if (tableName == null) {
+            tableName = String.valueOf(getTableName(null));
+            operationTableName = tableName;
+        }
+        return OperationContext.begin(tableName, operation, sql, write);
+    }
+
+    private void endOperation(OperationContext context) {
+        if (context == null) {
+            return;
+        }
+        OperationEvent event = context.end(slowStatementNanos);
+        if (event.isSlow()) {
+            logger.warn("Slow statement: " + event);
+        }
+        try {
+            operationListener.onOperation(event);
+        } catch (RuntimeException ex) {
+            logger.warn("Error in operation listener.", ex);
+        }
+    }
+
+    private Descriptors.Descriptor getDescriptor(Class<M> messageClass) {
+        try {
+            return (Descriptors.Descriptor) MethodUtils.invokeStaticMethod(messageClass, "getDescriptor");
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            throw new InvalidPropertyException(messageClass, "descriptor", "Could not found getDescriptor method.");
+        }
+    }
+
+    /**
+     * SQL生成和参数绑定，供包内的批量写入、会话和扫描使用
+     *
+     * @return
+     */
+    MessageSql<M> getMessageSql() {
+        return messageSql;
+    }
+
+    @SuppressWarnings("unchecked")
+    Parser<M> getParser() {
+        return (Parser<M>) defaultInstance.getParserForType();
+    }
+
+    @SuppressWarnings("unchecked")
+    private M getDefaultInstance(Class<M> messageClass) {
+        try {
+            return (M) MethodUtils.invokeStaticMethod(messageClass, "getDefaultInstance");
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            throw new BeanCreationException("Error in create Message instance, " + messageClass + ".", ex);
+        }
+    }
+
+    /**
+     * 查询单个记录
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public M get(final String sql, final Object... args) {
+        RequestCoalescer coalescer = coalescer();
+        if (coalescer == null) {
+            return queryForMessage(jdbcTemplate, "get", sql, args);
+        }
+        return coalescer.execute(coalesceKey("get", sql, args), new Callable<M>() {
+
+            @Override
+            public M call() {
+                return queryForMessage(jdbcTemplate, "get", sql, args);
+            }
+
+        });
+    }
+
+    /**
+     * 查询单个记录
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public M get(String sql, final List<?> args) {
+        return get(sql, args.toArray());
+    }
+
+    /**
+     * 查询单个记录，使用主库JdbcTemplate的查询会按负载均衡策略分发到只读副本
+     *
+     * @param jdbc
+     * @param operation 模板方法名，用于统计
+     * @param sql
+     * @param args
+     * @return
+     */
+    private M queryForMessage(JdbcTemplate jdbc, String operation, String sql, Object... args) {
+        logger.debug(sql);
+        OperationContext context = beginOperation(operation, sql, false);
+        RowMapper<M> rowMapper = context == null ? newRowMapper() : context.timed(newRowMapper());
+        try {
+            ReplicaNode replica = jdbc == jdbcTemplate ? chooseReplica() : null;
+            if (replica == null) {
+                return queryForObject(jdbc, rowMapper, sql, args);
+            }
+            long start = System.nanoTime();
+            replica.begin();
+            try {
+                return queryForObject(replica.getJdbcTemplate(), rowMapper, sql, args);
+            } finally {
+                replica.end(System.nanoTime() - start);
+            }
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            endOperation(context);
+        }
+    }
+
+    private M queryForObject(JdbcTemplate jdbc, RowMapper<M> rowMapper, String sql, Object... args) {
+        try {
+            if (statementCache != null) {
+                return DataAccessUtils.requiredSingleResult(jdbc.query(newQueryStatementCreator(sql, args), rowMapper));
+            }
+            return jdbc.queryForObject(sql, rowMapper, args);
+        } catch (EmptyResultDataAccessException ex) {
+            return null;
+        }
+    }
+
+    private List<M> queryForRows(JdbcTemplate jdbc, RowMapper<M> rowMapper, String sql, Object... args) {
+        if (statementCache != null) {
+            return jdbc.query(newQueryStatementCreator(sql, args), rowMapper);
+        }
+        return jdbc.query(sql, rowMapper, args);
+    }
+
+
+    /**
+     * 根据主健查询单记录
+     *
+     * @param <V>
+     * @param primaryKeyValue
+     * @return
+     */
+    public <V> M get(final V primaryKeyValue) {
+        if (null != getPrimaryKeyName(null) && (null != primaryKeyValue && !"".equalsIgnoreCase(primaryKeyValue.toString()))) {
+            //if has primary-key && fields-val is not null then get obj by primary-key
+            if (messageCache == null) {
+                return load(primaryKeyValue);
+            }
+            try {
+                return messageCache.get(cacheKey(primaryKeyValue), new Callable<M>() {
+
+                    @Override
+                    public M call() {
+                        return load(primaryKeyValue);
+                    }
+
+                });
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new DataRetrievalFailureException("Error in load message by primary key.", ex);
+            }
+        } else {
+            //else get obj which fields has values
+            logger.error("This ProtoBuf file doesn't set 'primary_key' field ,Please check it now.");
+            return null;
+        }
+    }
+
+    /**
+     * 根据主键查询单记录，只查询mask中的字段对应的列，结果中其它字段为默认值。
+     * 部分字段的结果不经过缓存。
+     *
+     * @param <V>
+     * @param primaryKeyValue
+     * @param fieldMask 为空时查询所有列
+     * @return
+     */
+    public <V> M get(final V primaryKeyValue, FieldMask fieldMask) {
+        if (null == getPrimaryKeyName(null)) {
+            logger.error("This ProtoBuf file doesn't set 'primary_key' field ,Please check it now.");
+            return null;
+        }
+        if (null == primaryKeyValue || "".equalsIgnoreCase(primaryKeyValue.toString())) {
+            return null;
+        }
+        return load(primaryKeyValue, messageSql.columnsOf(fieldMask));
+    }
+
+    /**
+     * 从数据库中按主键读取所有列，启用请求合并时同一主键的并发读取只查询一次
+     *
+     * @param primaryKeyValue
+     * @return
+     */
+    private M load(final Object primaryKeyValue) {
+        RequestCoalescer coalescer = coalescer();
+        if (coalescer == null) {
+            return load(primaryKeyValue, messageSql.selectableColumns());
+        }
+        return coalescer.execute(Arrays.asList("get", cacheKey(primaryKeyValue)), new Callable<M>() {
+
+            @Override
+            public M call() {
+                return load(primaryKeyValue, messageSql.selectableColumns());
+            }
+
+        });
+    }
+
+    /**
+     * 从数据库中按主键读取
+     *
+     * @param primaryKeyValue
+     * @param columns 查询的列
+     * @return
+     */
+    private M load(final Object primaryKeyValue, final BitSet columns) {
+        if (shardRouter == null) {
+            return queryForMessage(jdbcTemplate, "get", getSelectByKeySql(getTableName(null), columns), primaryKeyValue);
+        }
+        FieldDescriptor keyField = getPrimaryKeyField();
+        if (isShardKey(keyField)) {
+            ShardRouter.Shard shard = shardRouter.route(normalizeKey(keyField, primaryKeyValue));
+            return queryForMessage(shard.getJdbcTemplate(), "get", getSelectByKeySql(shard.getTableName(), columns),
+                    primaryKeyValue);
+        }
+        // 主键不是分片字段时，查询所有分片
+        List<Callable<M>> tasks = new ArrayList<>();
+        for (final ShardRouter.Shard shard : shardRouter.getShards()) {
+            tasks.add(new Callable<M>() {
+
+                @Override
+                public M call() {
+                    return queryForMessage(shard.getJdbcTemplate(), "get", getSelectByKeySql(shard.getTableName(), columns),
+                            primaryKeyValue);
+                }
+
+            });
+        }
+        for (M message : execute(tasks, shardExecutor)) {
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private String getSelectByKeySql(String tableName, BitSet columns) {
+        return messageSql.getSqlTemplate(new SqlShape(SqlShape.Operation.GET, tableName, columns)).getSql();
+    }
+
+    /**
+     * 字段是否为分片字段
+     *
+     * @param field
+     * @return
+     */
+    private boolean isShardKey(FieldDescriptor field) {
+        return shardRouter != null && field != null && field.equals(shardRouter.getShardKeyField());
+    }
+
+
+    /**
+     * 根据主键批量查询，按<code>multiGetChunkSize</code>拆分为多条 where pk in (...) 查询顺序执行
+     *
+     * @param <V>
+     * @param primaryKeyValues
+     * @return 按传入主键顺序排列的结果，不存在的主键不出现在结果中
+     */
+    public <V> Map<V, M> getAll(Collection<V> primaryKeyValues) {
+        return getAll(primaryKeyValues, shardRouter == null ? null : shardExecutor);
+    }
+
+    /**
+     * 根据主键批量查询，按<code>multiGetChunkSize</code>拆分为多条 where pk in (...) 查询，
+     * 在给定的executor上并行执行。
+     *
+     * @param <V>
+     * @param primaryKeyValues
+     * @param executor 为null时在当前线程顺序执行
+     * @return 按传入主键顺序排列的结果，不存在的主键不出现在结果中
+     */
+    public <V> Map<V, M> getAll(Collection<V> primaryKeyValues, Executor executor) {
+        Map<V, M> result = new LinkedHashMap<>();
+        final FieldDescriptor keyField = getPrimaryKeyField();
+        if (keyField == null) {
+            logger.error("This ProtoBuf file doesn't set 'primary_key' field ,Please check it now.");
+            return result;
+        }
+        Set<V> keys = new LinkedHashSet<>();
+        for (V key : primaryKeyValues) {
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            return result;
+        }
+        List<Callable<List<M>>> chunks = new ArrayList<>();
+        if (shardRouter == null) {
+            addChunks(chunks, jdbcTemplate, getTableName(null), keys);
+        } else if (isShardKey(keyField)) {
+            // 按分片分组，每个分片只查询自己的主键
+            Map<ShardRouter.Shard, List<V>> shardKeys = new LinkedHashMap<>();
+            for (V key : keys) {
+                ShardRouter.Shard shard = shardRouter.route(normalizeKey(keyField, key));
+                List<V> values = shardKeys.get(shard);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    shardKeys.put(shard, values);
+                }
+                values.add(key);
+            }
+            for (Map.Entry<ShardRouter.Shard, List<V>> entry : shardKeys.entrySet()) {
+                addChunks(chunks, entry.getKey().getJdbcTemplate(), entry.getKey().getTableName(), entry.getValue());
+            }
+        } else {
+            for (ShardRouter.Shard shard : shardRouter.getShards()) {
+                addChunks(chunks, shard.getJdbcTemplate(), shard.getTableName(), keys);
+            }
+        }
+
+        Map<Object, M> found = new HashMap<>();
+        for (List<M> messages : execute(chunks, executor)) {
+            for (M message : messages) {
+                found.put(normalizeKey(keyField, message.getField(keyField)), message);
+            }
+        }
+        for (V key : keys) {
+            M message = found.get(normalizeKey(keyField, key));
+            if (message != null) {
+                result.put(key, message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 将主键拆分为in查询
+     *
+     * @param chunks
+     * @param jdbc
+     * @param tableName
+     * @param keys
+     */
+    private void addChunks(List<Callable<List<M>>> chunks, final JdbcTemplate jdbc, String tableName,
+                           Collection<?> keys) {
+        final int chunkSize = multiGetChunkSize;
+        final SqlTemplate template = messageSql.getSqlTemplate(new SqlShape(SqlShape.Operation.GET_ALL, tableName,
+                messageSql.selectableColumns(), String.valueOf(chunkSize)));
+        Iterator<?> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            final Object[] args = new Object[chunkSize];
+            int size = 0;
+            while (size < chunkSize && iterator.hasNext()) {
+                args[size++] = iterator.next();
+            }
+            // 最后一组用最后一个主键补齐，所有分组共用同一条SQL
+            Arrays.fill(args, size, chunkSize, args[size - 1]);
+            chunks.add(new Callable<List<M>>() {
+
+                @Override
+                public List<M> call() {
+                    return queryForList(jdbc, "getAll", template.getSql(), args);
+                }
+
+            });
+        }
+    }
+
+    /**
+     * 执行多个查询任务，executor为null时在当前线程顺序执行
+     *
+     * @param tasks
+     * @param executor
+     * @return 按任务顺序排列的结果
+     */
+    private <T> List<T> execute(List<Callable<T>> tasks, Executor executor) {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (executor == null || tasks.size() == 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new DataRetrievalFailureException("Error in query task.", ex);
+                }
+            }
+            return results;
+        }
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            FutureTask<T> future = new FutureTask<>(task);
+            futures.add(future);
+            executor.execute(future);
+        }
+        try {
+            for (FutureTask<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("Interrupted while waiting for query task.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new DataRetrievalFailureException("Error in query task.", ex.getCause());
+        } finally {
+            for (FutureTask<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 主键对应的字段， 没有配置primary_key时返回null
+     *
+     * @return
+     */
+    protected FieldDescriptor getPrimaryKeyField() {
+        String keyName = getPrimaryKeyName(null);
+        if (keyName == null) {
+            return null;
+        }
+        FieldDescriptor field = descriptor.findFieldByName(keyName);
+        if (field == null) {
+            // primary_key也可以是column_name
+            ColumnMapping column = messageSql.getColumn(keyName);
+            field = column == null ? null : column.getField();
+        }
+        return field;
+    }
+
+    /**
+     * 缓存中使用的主键
+     *
+     * @param primaryKeyValue
+     * @return
+     */
+    private Object cacheKey(Object primaryKeyValue) {
+        FieldDescriptor keyField = getPrimaryKeyField();
+        return keyField == null ? primaryKeyValue : normalizeKey(keyField, primaryKeyValue);
+    }
+
+    /**
+     * 写入后失效message对应的缓存项， 没有主键值时失效全部缓存
+     *
+     * @param message
+     */
+    protected void evict(M message) {
+        recordWrite();
+        if (messageCache == null) {
+            return;
+        }
+        FieldDescriptor keyField = getPrimaryKeyField();
+        if (keyField != null && message.hasField(keyField)) {
+            messageCache.invalidate(normalizeKey(keyField, message.getField(keyField)));
+        } else {
+            messageCache.invalidateAll();
+        }
+    }
+
+    /**
+     * 写入后失效多个message对应的缓存项
+     *
+     * @param messages
+     */
+    protected void evict(Collection<M> messages) {
+        if (messageCache == null) {
+            return;
+        }
+        for (M message : messages) {
+            evict(message);
+        }
+    }
+
+    /**
+     * 将主键值统一为字段的java类型，使调用方传入的Long和int32字段的Integer等可以互相匹配
+     *
+     * @param keyField
+     * @param key
+     * @return
+     */
+    private static Object normalizeKey(FieldDescriptor keyField, Object key) {
+        switch (keyField.getJavaType()) {
+            case INT:
+                return key instanceof Number ? (Object) ((Number) key).intValue() : key;
+            case LONG:
+                return key instanceof Number ? (Object) ((Number) key).longValue() : key;
+            case STRING:
+                return key.toString();
+            case ENUM:
+                return key instanceof Descriptors.EnumValueDescriptor
+                        ? (Object) ((Descriptors.EnumValueDescriptor) key).getNumber() : key;
+            default:
+                return key;
+        }
+    }
+
+    /**
+     * 查询多个记录
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public List<M> query(final String sql, final Object... args) {
+        RequestCoalescer coalescer = coalescer();
+        if (coalescer == null) {
+            return queryForList(jdbcTemplate, "query", sql, args);
+        }
+        return coalescer.execute(coalesceKey("query", sql, args), new Callable<List<M>>() {
+
+            @Override
+            public List<M> call() {
+                // 多个调用方共享同一个列表
+                return Collections.unmodifiableList(queryForList(jdbcTemplate, "query", sql, args));
+            }
+
+        });
+    }
+
+    /**
+     * 只查询mask中的字段对应的列：select 列 from 表 where 条件，结果中其它字段为默认值。
+     * 分表时在所有分片上查询，见{@link #queryShards(String, Object...)}
+     *
+     * @param fieldMask 为空时查询所有列
+     * @param condition where之后的部分，可以包含order by、limit
+     * @param args
+     * @return
+     */
+    public List<M> query(FieldMask fieldMask, String condition, Object... args) {
+        String tableName = shardRouter == null ? getTableName(null) : ShardRouter.TABLE_PLACEHOLDER;
+        BitSet columns = messageSql.columnsOf(fieldMask);
+        String select = messageSql.getSqlTemplate(new SqlShape(SqlShape.Operation.SELECT, tableName, columns)).getSql();
+        String sql = StringUtils.isBlank(condition) ? select : select + " where " + condition;
+        if (shardRouter == null) {
+            return queryForList(jdbcTemplate, "query", sql, args);
+        }
+        return queryShards(sql, args);
+    }
+
+    /**
+     * 查询多个记录，使用主库JdbcTemplate的查询会按负载均衡策略分发到只读副本
+     *
+     * @param jdbc
+     * @param operation 模板方法名，用于统计
+     * @param sql
+     * @param args
+     * @return
+     */
+    private List<M> queryForList(JdbcTemplate jdbc, String operation, String sql, Object... args) {
+        logger.debug(sql);
+        OperationContext context = beginOperation(operation, sql, false);
+        RowMapper<M> rowMapper = context == null ? newRowMapper() : context.timed(newRowMapper());
+        try {
+            ReplicaNode replica = jdbc == jdbcTemplate ? chooseReplica() : null;
+            if (replica == null) {
+                return queryForRows(jdbc, rowMapper, sql, args);
+            }
+            long start = System.nanoTime();
+            replica.begin();
+            try {
+                return queryForRows(replica.getJdbcTemplate(), rowMapper, sql, args);
+            } finally {
+                replica.end(System.nanoTime() - start);
+            }
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            endOperation(context);
+        }
+    }
+
+    /**
+     * 在所有分片上执行查询并合并结果，见{@link #queryShards(String, Comparator, int, Object...)}
+     *
+     * @param sql  使用{@link ShardRouter#TABLE_PLACEHOLDER}作为表名
+     * @param args
+     * @return
+     */
+    public List<M> queryShards(String sql, Object... args) {
+        return queryShards(sql, null, 0, args);
+    }
+
+    /**
+     * 在所有分片上执行查询并合并结果，用于不带分片字段的查询。
+     * 各分片在<code>shardExecutor</code>上并行执行；没有设置分片路由时，只在默认表上执行。
+     *
+     * @param sql   使用{@link ShardRouter#TABLE_PLACEHOLDER}作为表名，例如 select * from {table} where col2 > ?
+     * @param order 各分片结果的排序，不为null时SQL需要按相同顺序order by，结果按此顺序归并
+     * @param limit 合并后最多返回的记录数，0表示不限制；各分片的SQL中可以使用相同的limit
+     * @param args
+     * @return
+     */
+    public List<M> queryShards(String sql, Comparator<? super M> order, int limit, final Object... args) {
+        List<Callable<List<M>>> tasks = new ArrayList<>();
+        if (shardRouter == null) {
+            tasks.add(shardQuery(jdbcTemplate, sql.replace(ShardRouter.TABLE_PLACEHOLDER, getTableName(null)), args));
+        } else {
+            for (ShardRouter.Shard shard : shardRouter.getShards()) {
+                tasks.add(shardQuery(shard.getJdbcTemplate(),
+                        sql.replace(ShardRouter.TABLE_PLACEHOLDER, shard.getTableName()), args));
+            }
+        }
+        List<List<M>> results = execute(tasks, shardExecutor);
+        List<Iterator<M>> iterators = new ArrayList<>(results.size());
+        for (List<M> result : results) {
+            iterators.add(result.iterator());
+        }
+        Iterator<M> merged = order == null ? Iterators.concat(iterators.iterator())
+                : Iterators.mergeSorted(iterators, order);
+        if (limit > 0) {
+            merged = Iterators.limit(merged, limit);
+        }
+        return Lists.newArrayList(merged);
+    }
+
+    private Callable<List<M>> shardQuery(final JdbcTemplate jdbc, final String sql, final Object[] args) {
+        return new Callable<List<M>>() {
+
+            @Override
+            public List<M> call() {
+                return queryForList(jdbc, "queryShards", sql, args);
+            }
+
+        };
+    }
+
+
+    /**
+     * 流式查询，结果集逐行映射为message，内存占用与结果集大小无关。
+     * 返回的Stream占用一个数据库连接，必须在读完后或者提前结束时关闭，建议使用try-with-resources。
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public Stream<M> stream(final String sql, final Object... args) {
+        logger.debug(sql);
+        final OperationContext context = beginOperation("stream", sql, false);
+        final ReplicaNode replica = chooseReplica();
+        JdbcTemplate jdbc = replica == null ? jdbcTemplate : replica.getJdbcTemplate();
+        DataSource dataSource = jdbc.getDataSource();
+        Connection con;
+        try {
+            con = DataSourceUtils.getConnection(dataSource);
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+                endOperation(context);
+            }
+            throw ex;
+        }
+        Runnable onRelease = null;
+        if (replica != null || context != null) {
+            // 连接释放时结束副本上的计数和计时，以及操作计时
+            final long start = System.nanoTime();
+            if (replica != null) {
+                replica.begin();
+            }
+            onRelease = new Runnable() {
+
+                @Override
+                public void run() {
+                    if (replica != null) {
+                        replica.end(System.nanoTime() - start);
+                    }
+                    endOperation(context);
+                }
+
+            };
+        }
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(streamFetchSize);
+            MessageSql.populate(ps, Arrays.asList(args));
+            rs = ps.executeQuery();
+        } catch (SQLException ex) {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(ps);
+            DataSourceUtils.releaseConnection(con, dataSource);
+            RuntimeException translated = jdbc.getExceptionTranslator().translate("StreamQuery", sql, ex);
+            if (context != null) {
+                context.fail(translated);
+            }
+            if (onRelease != null) {
+                onRelease.run();
+            }
+            throw translated;
+        }
+        RowMapper<M> rowMapper = newRowMapper();
+        if (context != null) {
+            // 结果在调用方消费，操作在连接释放时结束
+            rowMapper = context.timed(rowMapper);
+            context.detach();
+        }
+        final ResultSetSpliterator<M> spliterator = new ResultSetSpliterator<M>(sql, dataSource, con, ps, rs,
+                rowMapper, jdbc.getExceptionTranslator(), onRelease);
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+
+            @Override
+            public void run() {
+                spliterator.close();
+            }
+
+        });
+    }
+
+    /**
+     * 流式查询，逐行处理结果，处理完成或者出现异常时释放连接
+     *
+     * @param sql
+     * @param consumer
+     * @param args
+     */
+    public void forEach(String sql, Consumer<? super M> consumer, Object... args) {
+        try (Stream<M> stream = stream(sql, args)) {
+            stream.forEach(consumer);
+        }
+    }
+
+    /**
+     * 查询多个记录，每一行直接从结果集编码为wire格式，存放在堆外缓冲区中，不创建message对象。
+     * 适合填充缓存、转发和导出等大部分记录不需要逐个字段访问的场景，记录在访问时才解析，
+     * 也可以通过{@link MessageBatch#getBytes(int)}直接取得编码后的字节。
+     * 返回的批次使用完后必须调用{@link MessageBatch#release()}。
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public MessageBatch<M> queryBatch(String sql, Object... args) {
+        logger.debug(sql);
+        OperationContext context = beginOperation("queryBatch", sql, false);
+        try {
+            MessageBatch<M> batch;
+            ReplicaNode replica = chooseReplica();
+            if (replica == null) {
+                batch = queryForBatch(jdbcTemplate, sql, args);
+            } else {
+                long start = System.nanoTime();
+                replica.begin();
+                try {
+                    batch = queryForBatch(replica.getJdbcTemplate(), sql, args);
+                } finally {
+                    replica.end(System.nanoTime() - start);
+                }
+            }
+            if (context != null) {
+                context.addRows(batch.size());
+            }
+            return batch;
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            endOperation(context);
+        }
+    }
+
+    private MessageBatch<M> queryForBatch(JdbcTemplate jdbc, String sql, Object... args) {
+        ResultSetExtractor<MessageBatch<M>> extractor = new ResultSetExtractor<MessageBatch<M>>() {
+
+            @Override
+            public MessageBatch<M> extractData(ResultSet rs) throws SQLException {
+                MessageBatch<M> batch = new MessageBatch<M>(getParser(), bufferPool);
+                try {
+                    RowEncoder encoder = RowEncoder.compile(descriptor, rs.getMetaData());
+                    while (rs.next()) {
+                        batch.append(encoder, encoder.read(rs));
+                    }
+                    return batch;
+                } catch (SQLException | RuntimeException ex) {
+                    batch.release();
+                    throw ex;
+                }
+            }
+
+        };
+        if (statementCache != null) {
+            return jdbc.query(newQueryStatementCreator(sql, args), extractor);
+        }
+        return jdbc.query(sql, extractor, args);
+    }
+
+    /**
+     * update method
+     */
+    public int update(String sql, Object... args) {
+        logger.debug(sql);
+        OperationContext context = beginOperation("update", sql, true);
+        try {
+            int count = jdbcTemplate.update(sql, args);
+            if (context != null) {
+                context.addRows(count);
+            }
+            return count;
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            afterWrite();
+            endOperation(context);
+        }
+    }
+
+    /**
+     * @param sql
+     * @param args
+     * @return
+     */
+    public int update(final String sql, final List<?> args) {
+        return executeUpdate(jdbcTemplate, "update", sql, args);
+    }
+
+    /**
+     * 执行生成的语句，参数由{@link MessageBinder}直接从message绑定
+     */
+    private int executeUpdate(JdbcTemplate jdbc, String operation, final SqlTemplate template, final M message) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("{sql: \"" + template.getSql() + "\"; parameters:" + messageSql.bind(template, message));
+        }
+        OperationContext context = beginOperation(operation, template.getSql(), true);
+        try {
+            int count = jdbc.update(new PreparedStatementCreator() {
+
+                @Override
+                public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                    PreparedStatement ps = prepareStatement(con, template.getSql());
+                    messageSql.populate(ps, template, message);
+                    return ps;
+                }
+
+            });
+            if (context != null) {
+                context.addRows(count);
+            }
+            return count;
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            afterWrite();
+            endOperation(context);
+        }
+    }
+
+    private int executeUpdate(JdbcTemplate jdbc, String operation, final String sql, final List<?> args) {
+        if (logger.isDebugEnabled()) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("{sql: \"").append(sql).append("\"; parameters:").append(args);
+            logger.debug(builder.toString());
+        }
+        OperationContext context = beginOperation(operation, sql, true);
+        try {
+            int count = jdbc.update(new PreparedStatementCreator() {
+
+                @Override
+                public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                    PreparedStatement ps = prepareStatement(con, sql);
+                    MessageSql.populate(ps, args);
+                    return ps;
+                }
+
+            });
+            if (context != null) {
+                context.addRows(count);
+            }
+            return count;
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            afterWrite();
+            endOperation(context);
+        }
+    }
+
+    /**
+     * 根据主健获取到的对象进行全量字段更新
+     * @param message
+     * @return
+     */
+    public int update(M message) {
+        SqlShape shape = messageSql.shapeOf(SqlShape.Operation.UPDATE, getTableName(message), message);
+        SqlTemplate template = messageSql.getSqlTemplate(shape);
+        try {
+            return executeUpdate(getJdbcTemplate(message), "update", template, message);
+        } finally {
+            evict(message);
+        }
+    }
+
+    /**
+     * 比较同一记录修改前后的两个对象，只更新值不同的列，没有变化时不执行任何语句。
+     * 字段从有值变为没有值时写入NULL。
+     *
+     * @param before 修改前的对象，通常是查询得到的
+     * @param after  修改后的对象，主键必须与before相同
+     * @return
+     */
+    public int update(M before, M after) {
+        return update(before, after, false);
+    }
+
+    /**
+     * 比较同一记录修改前后的两个对象，只更新值不同的列，没有变化时不执行任何语句。
+     * guard为true时，where子句中加上<code>AND col = 旧值</code>（旧值没有时为<code>col IS NULL</code>），
+     * 记录已经被其他人修改时不更新并返回0，可以用作乐观锁。PROTOBUF_BLOB列不参与条件比较。
+     *
+     * @param before 修改前的对象，通常是查询得到的
+     * @param after  修改后的对象，主键必须与before相同
+     * @param guard  是否检查变化的列仍然是旧值
+     * @return 更新的记录数
+     */
+    public int update(M before, M after, boolean guard) {
+        FieldDescriptor keyField = getPrimaryKeyField();
+        if (keyField == null) {
+            throw new InvalidPropertyException(this.messageClass, "primary_key", "Primary key is not defined.");
+        }
+        if (!Objects.equals(before.getField(keyField), after.getField(keyField))) {
+            throw new IllegalArgumentException("Primary key changed: " + before.getField(keyField) + " -> "
+                    + after.getField(keyField));
+        }
+        List<ColumnMapping> columns = messageSql.getColumns();
+        BitSet changed = new BitSet(columns.size());
+        List<String> nullGuards = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnMapping column = columns.get(i);
+            if (column.getField().equals(keyField) || !column.isSelectable() || !isChanged(column, before, after)) {
+                continue;
+            }
+            changed.set(i);
+            if (guard && !column.isBlob() && !column.isPresent(before)) {
+                nullGuards.add(column.getColumnName());
+            }
+        }
+        if (changed.isEmpty()) {
+            return 0;
+        }
+        String tableName = getTableName(after);
+        SqlShape shape = guard
+                ? new SqlShape(SqlShape.Operation.GUARDED_UPDATE, tableName, changed,
+                nullGuards.toArray(new String[nullGuards.size()]))
+                : new SqlShape(SqlShape.Operation.UPDATE, tableName, changed);
+        SqlTemplate template = messageSql.getSqlTemplate(shape);
+        List<Object> args = messageSql.bind(template, after);
+        if (guard) {
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                ColumnMapping column = columns.get(i);
+                if (!column.isBlob() && column.isPresent(before)) {
+                    args.add(messageSql.columnValue(column, before));
+                }
+            }
+        }
+        try {
+            return executeUpdate(getJdbcTemplate(after), guard ? "guardedUpdate" : "diffUpdate", template.getSql(),
+                    args);
+        } finally {
+            evict(after);
+        }
+    }
+
+    private static boolean isChanged(ColumnMapping column, Message before, Message after) {
+        FieldDescriptor field = column.getField();
+        return column.isPresent(before) != column.isPresent(after)
+                || !Objects.equals(before.getField(field), after.getField(field));
+    }
+
+    /**
+     * 根据主键更新，仅更新对象中有设置值的部分
+     * @param message
+     * @return
+     */
+    public int partialUpdate(M message){
+    	
+    	String keyName=getPrimaryKeyName(message);
+    	if(keyName==null){
+    		//对象里没有主键，不更新
+    		return 0;
+    	}
+
+        SqlShape shape = messageSql.shapeOf(SqlShape.Operation.PARTIAL_UPDATE, getTableName(message), message);
+        SqlTemplate template = messageSql.getSqlTemplate(shape);
+        try {
+            return executeUpdate(getJdbcTemplate(message), "partialUpdate", template, message);
+        } finally {
+            evict(message);
+        }
+    }
+
+    /**
+     * 插入对象到默认的表中
+     *
+     * @param message
+     * @return
+     */
+    public long insert(M message) {
+        message = assignId(message);
+        return insert(message, this.getTableName(message));
+    }
+
+    /**
+     * 为没有主键值的记录分配主键，需要设置idGenerator。已有主键值或者没有设置idGenerator时返回原对象。
+     * 需要知道生成的主键时，先调用本方法，再插入返回的对象。
+     * 主键字段为required时，没有主键值的记录需要用<code>buildPartial()</code>构造，或者使用{@link #assignId(Message.Builder)}。
+     *
+     * @param message
+     * @return
+     */
+    public M assignId(M message) {
+        FieldDescriptor keyField = idGenerator == null ? null : getPrimaryKeyField();
+        if (keyField == null || message.hasField(keyField)) {
+            return message;
+        }
+        return withId(message, keyField, idGenerator.nextId());
+    }
+
+    /**
+     * 为没有主键值的builder分配主键并构造记录，适用于主键字段为required、没有主键值时无法build的message。
+     * 已有主键值或者没有设置idGenerator时直接build。
+     *
+     * @param builder M的builder
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public M assignId(Message.Builder builder) {
+        FieldDescriptor keyField = idGenerator == null ? null : getPrimaryKeyField();
+        if (keyField != null && !builder.hasField(keyField)) {
+            builder.setField(keyField, idValue(keyField, idGenerator.nextId()));
+        }
+        return (M) builder.build();
+    }
+
+    /**
+     * 为没有主键值的记录分配主键，所有需要的主键一次从idGenerator中取得。
+     * 主键字段为required时，没有主键值的记录需要用<code>buildPartial()</code>构造
+     *
+     * @param messages
+     * @return 按传入顺序排列，已有主键值的记录保持不变
+     */
+    public List<M> assignIds(Collection<M> messages) {
+        FieldDescriptor keyField = idGenerator == null ? null : getPrimaryKeyField();
+        List<M> result = new ArrayList<>(messages);
+        if (keyField == null) {
+            return result;
+        }
+        int missing = 0;
+        for (M message : result) {
+            if (!message.hasField(keyField)) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return result;
+        }
+        long[] ids = idGenerator.nextIds(missing);
+        int next = 0;
+        for (int i = 0; i < result.size(); i++) {
+            if (!result.get(i).hasField(keyField)) {
+                result.set(i, withId(result.get(i), keyField, ids[next++]));
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private M withId(M message, FieldDescriptor keyField, long id) {
+        return (M) message.toBuilder().setField(keyField, idValue(keyField, id)).build();
+    }
+
+    private static Object idValue(FieldDescriptor keyField, long id) {
+        Object value;
+        switch (keyField.getJavaType()) {
+            case LONG:
+                value = id;
+                break;
+            case INT:
+                if (id > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Generated id " + id + " overflows int primary key "
+                            + keyField.getFullName() + ".");
+                }
+                value = (int) id;
+                break;
+            case STRING:
+                value = String.valueOf(id);
+                break;
+            default:
+                throw new IllegalStateException("Could not generate id for primary key " + keyField.getFullName()
+                        + " of type " + keyField.getJavaType() + ".");
+        }
+        return value;
+    }
+
+    /**
+     * 插入对象到给定的表中。注意，这里并不自动生成ID，见{@link #assignId}。
+     *
+     * @param message
+     * @param tableName
+     * @return
+     */
+    protected long insert(M message, String tableName) {
+        SqlShape shape = messageSql.shapeOf(SqlShape.Operation.INSERT, tableName, message);
+        SqlTemplate template = messageSql.getSqlTemplate(shape);
+        try {
+            return executeUpdate(getJdbcTemplate(message), "insert", template, message);
+        } finally {
+            evict(message);
+        }
+    }
+
+
+    /**
+     * 批量插入对象到默认的表中。字段组合相同的对象使用同一条SQL，按<code>batchSize</code>分批提交；
+     * 开启<code>multiRowInsert</code>时，每批合并为一条多行insert语句，长度不超过max_allowed_packet。
+     * 设置了idGenerator时先为没有主键值的记录分配主键，见{@link #assignIds}。
+     *
+     * @param messages
+     * @return 按传入顺序的每条记录的影响行数
+     * @throws MessageBatchUpdateException 有记录写入失败时
+     */
+    public int[] insertAll(Collection<M> messages) {
+        if (idGenerator != null) {
+            messages = assignIds(messages);
+        }
+        return batchUpdate(SqlShape.Operation.INSERT, messages);
+    }
+
+    /**
+     * 批量全量更新，见{@link #update(Message)}
+     *
+     * @param messages
+     * @return 按传入顺序的每条记录的影响行数
+     * @throws MessageBatchUpdateException 有记录写入失败时
+     */
+    public int[] updateAll(Collection<M> messages) {
+        return batchUpdate(SqlShape.Operation.UPDATE, messages);
+    }
+
+    /**
+     * 插入或更新：insert into t(...) values(...) on duplicate key update col=values(col)，
+     * 主键或唯一键冲突时只更新message中有设置值的列（主键除外），没有设置的列保持数据库中原来的值
+     *
+     * @param message
+     * @return MySQL的影响行数：插入为1，更新为2，值没有变化为0
+     */
+    public int upsert(M message) {
+        SqlShape shape = messageSql.shapeOf(SqlShape.Operation.UPSERT, getTableName(message), message);
+        SqlTemplate template = messageSql.getSqlTemplate(shape);
+        try {
+            return executeUpdate(getJdbcTemplate(message), "upsert", template, message);
+        } finally {
+            evict(message);
+        }
+    }
+
+
+    /**
+     * 批量插入或更新，按SQL形状分组，每组使用JDBC批量提交，见{@link #upsert(Message)}
+     *
+     * @param messages
+     * @return 按传入顺序的每条记录的影响行数
+     * @throws MessageBatchUpdateException 有记录写入失败时
+     */
+    public int[] upsertAll(Collection<M> messages) {
+        return batchUpdate(SqlShape.Operation.UPSERT, messages);
+    }
+
+    /**
+     * 批量部分更新，见{@link #partialUpdate(Message)}
+     *
+     * @param messages
+     * @return 按传入顺序的每条记录的影响行数
+     * @throws MessageBatchUpdateException 有记录写入失败时
+     */
+    public int[] partialUpdateAll(Collection<M> messages) {
+        if (getPrimaryKeyName(null) == null) {
+            //对象里没有主键，不更新
+            return new int[messages.size()];
+        }
+        return batchUpdate(SqlShape.Operation.PARTIAL_UPDATE, messages);
+    }
+
+    private int[] batchUpdate(final SqlShape.Operation operation, Collection<M> messages) {
+        final List<M> rows = new ArrayList<M>(messages);
+        final int[] updateCounts = new int[rows.size()];
+        if (rows.isEmpty()) {
+            return updateCounts;
+        }
+        Arrays.fill(updateCounts, MessageBatchUpdateException.NOT_EXECUTED);
+        // 按数据源和SQL形状分组，组内保持传入顺序
+        final Map<JdbcTemplate, Map<SqlShape, List<Integer>>> databases = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            M message = rows.get(i);
+            JdbcTemplate jdbc = getJdbcTemplate(message);
+            Map<SqlShape, List<Integer>> groups = databases.get(jdbc);
+            if (groups == null) {
+                groups = new LinkedHashMap<>();
+                databases.put(jdbc, groups);
+            }
+            SqlShape shape = messageSql.shapeOf(operation, getTableName(message), message);
+            List<Integer> group = groups.get(shape);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(shape, group);
+            }
+            group.add(i);
+        }
+        OperationContext context = null;
+        if (operationListener != OperationListener.NOOP || slowStatementNanos > 0) {
+            SqlShape first = databases.values().iterator().next().keySet().iterator().next();
+            context = beginOperation(CaseFormat.UPPER_UNDERSCORE.to(CaseFormat.LOWER_CAMEL, operation.name()) + "All",
+                    messageSql.getSqlTemplate(first).getSql(), true);
+            context.setBatchSize(rows.size());
+        }
+        try {
+            for (Map.Entry<JdbcTemplate, Map<SqlShape, List<Integer>>> database : databases.entrySet()) {
+                final Map<SqlShape, List<Integer>> groups = database.getValue();
+                database.getKey().execute(new ConnectionCallback<Void>() {
+
+                    @Override
+                    public Void doInConnection(Connection con) throws SQLException {
+                        batchWriter.execute(con, operation, rows, groups, updateCounts);
+                        return null;
+                    }
+
+                });
+            }
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            afterWrite();
+            evict(rows);
+            endBatchOperation(context, updateCounts);
+        }
+        return updateCounts;
+    }
+
+    private void endBatchOperation(OperationContext context, int[] updateCounts) {
+        if (context == null) {
+            return;
+        }
+        for (int count : updateCounts) {
+            if (count > 0) {
+                context.addRows(count);
+            } else if (count == Statement.SUCCESS_NO_INFO) {
+                context.addRows(1);
+            }
+        }
+        endOperation(context);
+    }
+
+    /**
+     * 使用子类提供的固定SQL写入一条记录。与insert/update相同，使用记录所在分片的数据源和表名，
+     * 通过语句缓存执行，通知OperationListener，写入后失效缓存。不分配主键，需要时先调用{@link #assignId}。
+     *
+     * @param operation 报告给OperationListener的方法名
+     * @param message
+     * @param writer
+     * @return 影响行数
+     */
+    protected int write(String operation, final M message, final RowWriter<M> writer) {
+        final String sql = writer.getSql(getTableName(message));
+        if (logger.isDebugEnabled()) {
+            logger.debug("{sql: \"" + sql + "\"; message:" + message + "}");
+        }
+        OperationContext context = beginOperation(operation, sql, true);
+        try {
+            int count = getJdbcTemplate(message).update(new PreparedStatementCreator() {
+
+                @Override
+                public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                    PreparedStatement ps = prepareStatement(con, sql);
+                    writer.bind(ps, message);
+                    return ps;
+                }
+
+            });
+            if (context != null) {
+                context.addRows(count);
+            }
+            return count;
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            afterWrite();
+            evict(message);
+            endOperation(context);
+        }
+    }
+
+    /**
+     * 使用子类提供的固定SQL批量写入，按数据源和表名分组，每组按<code>batchSize</code>分批提交，见{@link #write}
+     *
+     * @param operation 报告给OperationListener的方法名
+     * @param messages
+     * @param writer
+     * @return 按传入顺序的每条记录的影响行数
+     * @throws MessageBatchUpdateException 有记录写入失败时
+     */
+    protected int[] writeAll(String operation, Collection<M> messages, final RowWriter<M> writer) {
+        final List<M> rows = new ArrayList<M>(messages);
+        final int[] updateCounts = new int[rows.size()];
+        if (rows.isEmpty()) {
+            return updateCounts;
+        }
+        Arrays.fill(updateCounts, MessageBatchUpdateException.NOT_EXECUTED);
+        // 按数据源和SQL分组，组内保持传入顺序
+        final Map<JdbcTemplate, Map<String, List<Integer>>> databases = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            M message = rows.get(i);
+            JdbcTemplate jdbc = getJdbcTemplate(message);
+            Map<String, List<Integer>> groups = databases.get(jdbc);
+            if (groups == null) {
+                groups = new LinkedHashMap<>();
+                databases.put(jdbc, groups);
+            }
+            String sql = writer.getSql(getTableName(message));
+            List<Integer> group = groups.get(sql);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(sql, group);
+            }
+            group.add(i);
+        }
+        OperationContext context = beginOperation(operation,
+                databases.values().iterator().next().keySet().iterator().next(), true);
+        if (context != null) {
+            context.setBatchSize(rows.size());
+        }
+        try {
+            for (Map.Entry<JdbcTemplate, Map<String, List<Integer>>> database : databases.entrySet()) {
+                final Map<String, List<Integer>> groups = database.getValue();
+                database.getKey().execute(new ConnectionCallback<Void>() {
+
+                    @Override
+                    public Void doInConnection(Connection con) throws SQLException {
+                        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                            batchWriter.executeBatch(con, group.getKey(), writer, rows, group.getValue(),
+                                    updateCounts);
+                        }
+                        return null;
+                    }
+
+                });
+            }
+        } catch (RuntimeException ex) {
+            if (context != null) {
+                context.fail(ex);
+            }
+            throw ex;
+        } finally {
+            afterWrite();
+            evict(rows);
+            endBatchOperation(context, updateCounts);
+        }
+        return updateCounts;
+    }
+
+    /**
+     * @param message
+     * @param conditionFields
+     * @param conditionParams
+     * @param tableName
+     * @return
+     */
+    protected int updateMessageByCondition(M message, String[] conditionFields, Object[] conditionParams,
+                                           String tableName) {
+        if (conditionFields.length != conditionParams.length) {
+            throw new IllegalArgumentException("condition error");
+        }
+        SqlShape shape = new SqlShape(SqlShape.Operation.UPDATE_BY_CONDITION, tableName,
+                messageSql.presentFields(message, true), conditionFields);
+        SqlTemplate template = messageSql.getSqlTemplate(shape);
+        List<Object> args = messageSql.bind(template, message);
+        args.addAll(Arrays.asList(conditionParams));
+        try {
+            return executeUpdate(getJdbcTemplate(message), "updateByCondition", template.getSql(), args);
+        } finally {
+            // 无法确定更新了哪些记录
+            if (messageCache != null) {
+                messageCache.invalidateAll();
+            }
         }
-        return builder;
     }
 }
@@ -0,0 +1,277 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.InvalidPropertyException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 按主键的keyset分页扫描整张表：<code>where pk > ? order by pk limit n</code>，
+ * 每页从上一页最后一条记录的主键继续，扫描深度不影响每页的代价。
+ * 整数主键可以按最小值到最大值等分为多个分段并行扫描，每个分段在一个连接上顺序读取，复用同一个语句。
+ * 不支持分表分库：
+ * <pre>
+ * new KeysetScanner&lt;&gt;(template).scan(options, consumer);
+ * </pre>
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public class KeysetScanner<M extends Message> {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeysetScanner.class);
+
+    private final JdbcProtobufTemplate<M> template;
+    private final JdbcTemplate jdbcTemplate;
+    private final String tableName;
+    private final String keyColumn;
+    private final FieldDescriptor keyField;
+
+    public KeysetScanner(JdbcProtobufTemplate<M> template) {
+        if (template.getShardRouter() != null) {
+            throw new UnsupportedOperationException("scan does not support sharded tables.");
+        }
+        this.keyField = template.getPrimaryKeyField();
+        if (keyField == null) {
+            throw new InvalidPropertyException(template.getClass(), "primary_key", "Primary key is not defined.");
+        }
+        this.template = template;
+        this.jdbcTemplate = template.getJdbcTemplate(null);
+        this.tableName = template.getTableName(null);
+        this.keyColumn = template.getMessageSql().getPrimaryKeyColumnName();
+    }
+
+    /**
+     * 按主键顺序扫描整张表。整数主键可以设置parallelism，按主键范围等分为多个分段，
+     * 每个分段使用一个连接并行扫描；每读完一页通过ScanListener报告分段的进度和吞吐量，
+     * 保存各分段的检查点可以在中断后继续。有分段出错时通知其它分段在当前页之后停止，并抛出第一个异常。
+     *
+     * @param options
+     * @param consumer 处理每条记录，并行扫描时会被多个线程同时调用
+     * @return 按分段序号排列的每个分段的最终进度
+     */
+    public List<ScanProgress> scan(final ScanOptions options, final Consumer<M> consumer) {
+        List<ScanSlice> slices = options.getSlices().isEmpty() ? split(options) : options.getSlices();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        if (slices.size() == 1) {
+            return Collections.singletonList(scanSlice(slices.get(0), options, consumer, stopped));
+        }
+        Executor executor = options.getExecutor() != null ? options.getExecutor() : ForkJoinPool.commonPool();
+        List<FutureTask<ScanProgress>> futures = new ArrayList<>(slices.size());
+        for (final ScanSlice slice : slices) {
+            FutureTask<ScanProgress> future = new FutureTask<ScanProgress>(new Callable<ScanProgress>() {
+
+                @Override
+                public ScanProgress call() {
+                    try {
+                        return scanSlice(slice, options, consumer, stopped);
+                    } catch (RuntimeException | Error ex) {
+                        stopped.set(true);
+                        throw ex;
+                    }
+                }
+
+            });
+            futures.add(future);
+            executor.execute(future);
+        }
+        List<ScanProgress> results = new ArrayList<>(slices.size());
+        try {
+            for (FutureTask<ScanProgress> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            stopped.set(true);
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("Interrupted while waiting for scan slices.", ex);
+        } catch (ExecutionException ex) {
+            stopped.set(true);
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new DataRetrievalFailureException("Error in scan slice.", ex.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * 整数主键按 (startAfter, max] 的范围等分，最后一个分段不设上限，扫描期间新增的记录也会被读到
+     */
+    private List<ScanSlice> split(ScanOptions options) {
+        Object startAfter = options.getStartAfter();
+        FieldDescriptor.JavaType keyType = keyField.getJavaType();
+        boolean numeric = keyType == FieldDescriptor.JavaType.INT || keyType == FieldDescriptor.JavaType.LONG;
+        if (options.getParallelism() <= 1 || !numeric) {
+            return Collections.singletonList(new ScanSlice(0, startAfter, null));
+        }
+        StringBuilder sql = new StringBuilder("select min(`").append(keyColumn).append("`), max(`").append(keyColumn)
+                .append("`) from ").append(tableName);
+        Object[] args = new Object[0];
+        if (startAfter != null) {
+            sql.append(" where `").append(keyColumn).append("` > ?");
+            args = new Object[]{startAfter};
+        }
+        logger.debug(sql.toString());
+        long[] range = jdbcTemplate.query(sql.toString(), new ResultSetExtractor<long[]>() {
+
+            @Override
+            public long[] extractData(ResultSet rs) throws SQLException {
+                if (!rs.next()) {
+                    return null;
+                }
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null;
+                }
+                return new long[]{min, rs.getLong(2)};
+            }
+
+        }, args);
+        if (range == null) {
+            // 空表
+            return Collections.singletonList(new ScanSlice(0, startAfter, null));
+        }
+        return split(startAfter, range[0], range[1], options.getParallelism(),
+                keyType == FieldDescriptor.JavaType.INT);
+    }
+
+    /**
+     * 将 (startAfter, max] 按主键值等分为最多count个分段，最后一个分段不设上限
+     *
+     * @param startAfter 扫描的起点（不含），null表示从头开始
+     * @param min        startAfter之后的最小主键
+     * @param max        最大主键
+     * @param count      分段数
+     * @param intKey     主键是否为int，决定分段边界的类型
+     * @return 按主键顺序排列的分段，相邻分段首尾相接
+     */
+    static List<ScanSlice> split(Object startAfter, long min, long max, int count, boolean intKey) {
+        // 分别除以分段数，避免max - min溢出；step在极端范围下按补码运算，边界值仍然正确
+        long step = max / count - min / count + 1;
+        List<ScanSlice> slices = new ArrayList<>(count);
+        Object lower = startAfter;
+        for (int i = 0; i < count; i++) {
+            long upper = min + step * (i + 1) - 1;
+            boolean last = i == count - 1 || upper >= max;
+            slices.add(new ScanSlice(i, lower, last ? null : keyValue(upper, intKey)));
+            if (last) {
+                break;
+            }
+            lower = keyValue(upper, intKey);
+        }
+        return slices;
+    }
+
+    private static Object keyValue(long value, boolean intKey) {
+        return intKey ? (Object) (int) value : (Object) value;
+    }
+
+    /**
+     * 在一个连接上逐页扫描一个分段
+     */
+    private ScanProgress scanSlice(final ScanSlice slice, final ScanOptions options, final Consumer<M> consumer,
+                                   final AtomicBoolean stopped) {
+        return jdbcTemplate.execute(new ConnectionCallback<ScanProgress>() {
+
+            @Override
+            public ScanProgress doInConnection(Connection con) throws SQLException {
+                long start = System.nanoTime();
+                RowMapper<M> rowMapper = template.newRowMapper();
+                boolean bounded = slice.getEndAt() != null;
+                Object cursor = slice.getStartAfter();
+                Object lastKey = null;
+                long rows = 0;
+                long pages = 0;
+                PreparedStatement first = null;
+                PreparedStatement next = null;
+                try {
+                    while (true) {
+                        PreparedStatement ps;
+                        if (cursor == null) {
+                            if (first == null) {
+                                first = con.prepareStatement(template.getMessageSql().getScanSql(tableName, false, bounded));
+                            }
+                            ps = first;
+                        } else {
+                            if (next == null) {
+                                next = con.prepareStatement(template.getMessageSql().getScanSql(tableName, true, bounded));
+                            }
+                            ps = next;
+                        }
+                        int index = 1;
+                        if (cursor != null) {
+                            MessageSql.setParameter(ps, index++, cursor);
+                        }
+                        if (bounded) {
+                            MessageSql.setParameter(ps, index++, slice.getEndAt());
+                        }
+                        ps.setInt(index, options.getPageSize());
+                        int count = 0;
+                        ResultSet rs = ps.executeQuery();
+                        try {
+                            while (rs.next()) {
+                                M message = rowMapper.mapRow(rs, count++);
+                                consumer.accept(message);
+                                lastKey = message.getField(keyField);
+                                cursor = lastKey;
+                            }
+                        } finally {
+                            JdbcUtils.closeResultSet(rs);
+                        }
+                        rows += count;
+                        pages++;
+                        boolean finished = count < options.getPageSize();
+                        ScanProgress progress = new ScanProgress(slice, lastKey, rows, pages,
+                                System.nanoTime() - start, finished);
+                        report(options.getListener(), progress);
+                        if (finished || stopped.get()) {
+                            return progress;
+                        }
+                    }
+                } finally {
+                    JdbcUtils.closeStatement(first);
+                    JdbcUtils.closeStatement(next);
+                }
+            }
+
+        });
+    }
+
+    private static void report(ScanListener listener, ScanProgress progress) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Scan progress: " + progress);
+        }
+        if (listener != null) {
+            try {
+                listener.onProgress(progress);
+            } catch (RuntimeException ex) {
+                logger.warn("Error in scan listener.", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.cocolian.mysql;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按查询耗时加权随机选择副本，权重与 耗时移动平均值 × (正在执行的查询数 + 1) 成反比。
+ *
+ * @version 1.0.0
+ */
+public class LatencyWeightedLoadBalancer implements LoadBalancer {
+
+    /**
+     * 没有耗时样本或者耗时极小时使用的最小耗时，避免权重过大
+     */
+    private static final double MIN_LATENCY_NANOS = 100000;
+
+    @Override
+    public ReplicaNode choose(List<ReplicaNode> replicas) {
+        int size = replicas.size();
+        double[] weights = new double[size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            ReplicaNode replica = replicas.get(i);
+            double latency = Math.max(replica.getLatencyNanos(), MIN_LATENCY_NANOS);
+            weights[i] = 1.0 / (latency * (replica.getOutstanding() + 1));
+            total += weights[i];
+        }
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < size; i++) {
+            point -= weights[i];
+            if (point < 0) {
+                return replicas.get(i);
+            }
+        }
+        return replicas.get(size - 1);
+    }
+}
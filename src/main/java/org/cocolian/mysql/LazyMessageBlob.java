@@ -0,0 +1,70 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import org.springframework.dao.DataRetrievalFailureException;
+
+/**
+ * 延迟解析的<code>PROTOBUF_BLOB</code>列。将字段定义为bytes类型：
+ * <pre>
+ * optional bytes address = 5 [(column_option).column_type = PROTOBUF_BLOB];
+ * </pre>
+ * 写入时设置为<code>address.toByteString()</code>；查询时只保留原始字节，第一次调用{@link #get()}时才解析，
+ * 之后返回同一个对象。线程安全。
+ *
+ * @version 1.0.0
+ */
+public final class LazyMessageBlob<T extends Message> {
+
+    private final ByteString bytes;
+    private final Parser<T> parser;
+    private volatile T value;
+
+    private LazyMessageBlob(ByteString bytes, Parser<T> parser) {
+        this.bytes = bytes;
+        this.parser = parser;
+    }
+
+    /**
+     * 包装查询得到的bytes字段
+     *
+     * @param bytes
+     * @param parser 如 Address.parser()
+     * @return
+     */
+    public static <T extends Message> LazyMessageBlob<T> of(ByteString bytes, Parser<T> parser) {
+        return new LazyMessageBlob<T>(bytes == null ? ByteString.EMPTY : bytes, parser);
+    }
+
+    /**
+     * 解析后的message，只解析一次
+     *
+     * @return
+     */
+    public T get() {
+        T result = value;
+        if (result == null) {
+            try {
+                result = parser.parseFrom(bytes);
+            } catch (InvalidProtocolBufferException ex) {
+                throw new DataRetrievalFailureException("Invalid protobuf blob.", ex);
+            }
+            value = result;
+        }
+        return result;
+    }
+
+    public boolean isParsed() {
+        return value != null;
+    }
+
+    public ByteString getBytes() {
+        return bytes;
+    }
+
+    public int getSerializedSize() {
+        return bytes.size();
+    }
+}
@@ -0,0 +1,26 @@
+package org.cocolian.mysql;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 选择正在执行的查询最少的副本，相同时从随机位置开始选择，避免都集中到第一个副本。
+ *
+ * @version 1.0.0
+ */
+public class LeastOutstandingLoadBalancer implements LoadBalancer {
+
+    @Override
+    public ReplicaNode choose(List<ReplicaNode> replicas) {
+        int size = replicas.size();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        ReplicaNode chosen = null;
+        for (int i = 0; i < size; i++) {
+            ReplicaNode replica = replicas.get((start + i) % size);
+            if (chosen == null || replica.getOutstanding() < chosen.getOutstanding()) {
+                chosen = replica;
+            }
+        }
+        return chosen;
+    }
+}
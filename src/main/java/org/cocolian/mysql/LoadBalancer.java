@@ -0,0 +1,19 @@
+package org.cocolian.mysql;
+
+import java.util.List;
+
+/**
+ * 在多个只读副本之间选择执行查询的副本。
+ *
+ * @version 1.0.0
+ */
+public interface LoadBalancer {
+
+    /**
+     * 选择一个副本
+     *
+     * @param replicas 不为空
+     * @return
+     */
+    ReplicaNode choose(List<ReplicaNode> replicas);
+}
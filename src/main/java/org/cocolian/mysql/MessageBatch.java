@@ -0,0 +1,222 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 保存在堆外缓冲区中的一批查询结果，见{@link JdbcProtobufTemplate#queryBatch(String, Object...)}。
+ * 每条记录以wire格式连续存放在{@link DirectBufferPool}的缓冲区中，堆上只保留每条记录的位置和长度（12字节）。
+ * {@link #get(int)}每次调用都重新解析出message，不缓存；{@link #getBytes(int)}返回记录字节的只读视图，
+ * 可以直接写入<code>SocketChannel</code>或者<code>FileChannel</code>，不经过堆内存复制。
+ * <p>
+ * 使用完后必须调用{@link #release()}（或者在try-with-resources中使用）将缓冲区放回池中，
+ * 之后不能再访问记录，之前通过getBytes取得的视图也会失效。release之前可以在多个线程中并发读取。
+ *
+ * @version 1.0.0
+ */
+public final class MessageBatch<M extends Message> implements AutoCloseable {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int INDEX_BYTES_PER_ROW = 12;
+
+    private final Parser<M> parser;
+    private final DirectBufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private CodedOutputStream output;
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private long dataSize = 0;
+    private long capacity = 0;
+    private volatile boolean released = false;
+
+    MessageBatch(Parser<M> parser, DirectBufferPool pool) {
+        this.parser = parser;
+        this.pool = pool;
+    }
+
+    /**
+     * 将编码器读取的当前行追加到批次中
+     *
+     * @param encoder 已经调用过{@link RowEncoder#read}
+     * @param length  read的返回值
+     */
+    void append(RowEncoder encoder, int length) {
+        if (output == null || output.spaceLeft() < length) {
+            ByteBuffer chunk = pool.acquire(length);
+            chunks.add(chunk);
+            capacity += chunk.capacity();
+            output = CodedOutputStream.newInstance(chunk);
+        }
+        int offset = output.getTotalBytesWritten();
+        try {
+            encoder.write(output);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error in encoding row " + size + ".", ex);
+        }
+        if (output.getTotalBytesWritten() - offset != length) {
+            throw new IllegalStateException("Row " + size + " encoded to " + (output.getTotalBytesWritten() - offset)
+                    + " bytes, expected " + length + ".");
+        }
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        positions[size] = ((long) (chunks.size() - 1) << 32) | offset;
+        lengths[size] = length;
+        size++;
+        dataSize += length;
+    }
+
+    /**
+     * 记录数
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 解析第index条记录，每次调用都返回新的message
+     *
+     * @param index
+     * @return
+     */
+    public M get(int index) {
+        try {
+            return parser.parseFrom(getBytes(index));
+        } catch (InvalidProtocolBufferException ex) {
+            throw new IllegalStateException("Error in parsing row " + index + ".", ex);
+        }
+    }
+
+    /**
+     * 第index条记录的wire格式字节，与<code>get(index).toByteArray()</code>相同。
+     * 返回的是缓冲区的只读视图，release之后内容不再有效
+     *
+     * @param index
+     * @return
+     */
+    public ByteBuffer getBytes(int index) {
+        checkIndex(index);
+        long position = positions[index];
+        ByteBuffer buffer = chunks.get((int) (position >>> 32)).duplicate();
+        int offset = (int) position;
+        buffer.limit(offset + lengths[index]).position(offset);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 第index条记录的字节数
+     *
+     * @param index
+     * @return
+     */
+    public int getSerializedSize(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    /**
+     * 按需解析的列表视图，get时才解析对应的记录
+     *
+     * @return
+     */
+    public List<M> asList() {
+        return new MessageList();
+    }
+
+    /**
+     * 所有记录的编码字节数
+     *
+     * @return
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * 批次占用的内存：堆外缓冲区的容量加上堆上的位置索引
+     *
+     * @return
+     */
+    public long getMemoryUsage() {
+        return capacity + (long) positions.length * INDEX_BYTES_PER_ROW;
+    }
+
+    /**
+     * 平均每条记录占用的字节数，包括编码字节和位置索引，不包括缓冲区末尾未使用的空间
+     *
+     * @return
+     */
+    public double getBytesPerRow() {
+        return size == 0 ? 0 : (double) (dataSize + (long) size * INDEX_BYTES_PER_ROW) / size;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * 将缓冲区放回池中，可以重复调用
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        output = null;
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    private void checkIndex(int index) {
+        if (released) {
+            throw new IllegalStateException("Message batch has been released.");
+        }
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{rows: " + size + ", dataSize: " + dataSize + ", memoryUsage: " + getMemoryUsage()
+                + ", bytesPerRow: " + String.format("%.1f", getBytesPerRow()) + ", released: " + released + "}";
+    }
+
+    private final class MessageList extends AbstractList<M> implements RandomAccess {
+
+        @Override
+        public M get(int index) {
+            return MessageBatch.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.cocolian.mysql;
+
+import org.springframework.dao.UncategorizedDataAccessException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量写入时部分记录失败。
+ * <code>getUpdateCounts()</code>按传入集合的顺序给出每条记录的结果：成功的记录为影响行数，
+ * 失败的记录为<code>Statement.EXECUTE_FAILED</code>，因为前面的批次失败而没有执行的记录为{@link #NOT_EXECUTED}。
+ *
+ * @version 1.0.0
+ */
+public class MessageBatchUpdateException extends UncategorizedDataAccessException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 记录没有被执行
+     */
+    public static final int NOT_EXECUTED = Integer.MIN_VALUE;
+
+    private final int[] updateCounts;
+    private final List<Integer> failedRows;
+
+    public MessageBatchUpdateException(String sql, int[] updateCounts, List<Integer> failedRows, SQLException cause) {
+        super("Batch update failed at rows " + failedRows + ", sql: " + sql, cause);
+        this.updateCounts = updateCounts;
+        this.failedRows = Collections.unmodifiableList(new ArrayList<>(failedRows));
+    }
+
+    /**
+     * 按传入顺序的每条记录的执行结果
+     *
+     * @return
+     */
+    public int[] getUpdateCounts() {
+        return updateCounts;
+    }
+
+    /**
+     * 失败的记录在传入集合中的序号，从0开始
+     *
+     * @return
+     */
+    public List<Integer> getFailedRows() {
+        return failedRows;
+    }
+}
@@ -0,0 +1,483 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * 写入时将message字段直接绑定到<code>PreparedStatement</code>。
+ * 对生成的message类，每个字段在创建时查找一次<code>getXxx/hasXxx</code>的MethodHandle，
+ * 绑定时按字段的Java类型调用对应的setXxx，不经过<code>getField</code>，也没有中间的List和装箱；
+ * oneof、枚举、repeated、message、PROTOBUF_BLOB字段以及DynamicMessage按反射方式处理，
+ * 结果与<code>bind</code>加<code>populate</code>相同。
+ *
+ * @version 1.0.0
+ */
+final class MessageBinder {
+
+    private final FieldBinder[] binders;
+
+    private MessageBinder(FieldBinder[] binders) {
+        this.binders = binders;
+    }
+
+    /**
+     * 为message类生成绑定器
+     *
+     * @param messageClass
+     * @param columns      按field number排序的列，见{@link ColumnMapping#of}
+     * @return
+     */
+    static MessageBinder compile(Class<?> messageClass, List<ColumnMapping> columns) {
+        FieldBinder[] binders = new FieldBinder[columns.size()];
+        boolean generated = Message.class.isAssignableFrom(messageClass) && messageClass != DynamicMessage.class;
+        for (int i = 0; i < binders.length; i++) {
+            ColumnMapping column = columns.get(i);
+            FieldBinder binder = generated ? compileField(messageClass, column) : null;
+            binders[i] = binder != null ? binder : new ReflectiveFieldBinder(column);
+        }
+        return new MessageBinder(binders);
+    }
+
+    /**
+     * 字段在message中是否有值，同{@link ColumnMapping#isPresent}
+     *
+     * @param column 列序号
+     * @param message
+     * @return
+     */
+    boolean isPresent(int column, Message message) {
+        return binders[column].isPresent(message);
+    }
+
+    /**
+     * DATETIME/TIMESTAMP列的值是否为0或者负数，同{@link ColumnMapping#isEmptyDatetime}
+     *
+     * @param column 列序号
+     * @param message
+     * @return
+     */
+    boolean isEmptyDatetime(int column, Message message) {
+        return binders[column].isEmptyDatetime(message);
+    }
+
+    /**
+     * 按占位符顺序绑定参数，没有值的字段绑定为NULL
+     *
+     * @param ps
+     * @param parameters
+     * @param message
+     * @throws SQLException
+     */
+    void bind(PreparedStatement ps, ColumnMapping[] parameters, Message message) throws SQLException {
+        bind(ps, 0, parameters, message);
+    }
+
+    /**
+     * 从offset + 1开始绑定参数，用于一条语句中包含多个模板的情况
+     *
+     * @param ps
+     * @param offset     已绑定的参数个数
+     * @param parameters
+     * @param message
+     * @throws SQLException
+     */
+    void bind(PreparedStatement ps, int offset, ColumnMapping[] parameters, Message message) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            binders[parameters[i].getIndex()].bind(ps, offset + i + 1, message);
+        }
+    }
+
+    private static FieldBinder compileField(Class<?> messageClass, ColumnMapping column) {
+        FieldDescriptor field = column.getField();
+        if (column.isBlob() || field.isRepeated() || field.getContainingOneof() != null) {
+            return null;
+        }
+        String name = accessorName(field.getName());
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            MethodHandle has = null;
+            if (field.getFile().getSyntax() == FileDescriptor.Syntax.PROTO2) {
+                has = lookup.findVirtual(messageClass, "has" + name, MethodType.methodType(boolean.class))
+                        .asType(MethodType.methodType(boolean.class, Message.class));
+            }
+            switch (field.getJavaType()) {
+                case INT:
+                    return new IntFieldBinder(has, getter(lookup, messageClass, name, int.class));
+                case LONG:
+                    return new LongFieldBinder(has, getter(lookup, messageClass, name, long.class),
+                            column.isDatetime());
+                case FLOAT:
+                    return new FloatFieldBinder(has, getter(lookup, messageClass, name, float.class));
+                case DOUBLE:
+                    return new DoubleFieldBinder(has, getter(lookup, messageClass, name, double.class));
+                case BOOLEAN:
+                    return new BooleanFieldBinder(has, getter(lookup, messageClass, name, boolean.class));
+                case STRING:
+                    return new StringFieldBinder(has, getter(lookup, messageClass, name, String.class));
+                case BYTE_STRING:
+                    return new BytesFieldBinder(has, getter(lookup, messageClass, name, ByteString.class));
+                default:
+                    // 枚举和message字段按反射处理
+                    return null;
+            }
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            // 访问器名称被改写或者不可访问时，按反射处理
+            return null;
+        }
+    }
+
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Class<?> messageClass, String name,
+                                       Class<?> type) throws NoSuchMethodException, IllegalAccessException {
+        return lookup.findVirtual(messageClass, "get" + name, MethodType.methodType(type))
+                .asType(MethodType.methodType(type, Message.class));
+    }
+
+    /**
+     * 生成代码中的访问器名称：下划线和数字之后的字母大写，首字母大写
+     *
+     * @param fieldName
+     * @return
+     */
+    static String accessorName(String fieldName) {
+        StringBuilder name = new StringBuilder(fieldName.length());
+        boolean capitalizeNext = true;
+        for (int i = 0; i < fieldName.length(); i++) {
+            char c = fieldName.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                name.append(capitalizeNext ? Character.toUpperCase(c) : c);
+                capitalizeNext = false;
+            } else if (c >= 'A' && c <= 'Z') {
+                name.append(c);
+                capitalizeNext = false;
+            } else if (c >= '0' && c <= '9') {
+                name.append(c);
+                capitalizeNext = true;
+            } else {
+                capitalizeNext = true;
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * 单个字段的绑定器。has为null时（proto3的标量字段），值不等于默认值即为有值，同<code>hasField</code>
+     */
+    private abstract static class FieldBinder {
+
+        final MethodHandle has;
+
+        FieldBinder(MethodHandle has) {
+            this.has = has;
+        }
+
+        final boolean hasField(Message message) {
+            try {
+                return (boolean) has.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        abstract boolean isPresent(Message message);
+
+        boolean isEmptyDatetime(Message message) {
+            return false;
+        }
+
+        abstract void bind(PreparedStatement ps, int index, Message message) throws SQLException;
+    }
+
+    private static final class IntFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+
+        IntFieldBinder(MethodHandle has, MethodHandle getter) {
+            super(has);
+            this.getter = getter;
+        }
+
+        private int get(Message message) {
+            try {
+                return (int) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return has != null ? hasField(message) : get(message) != 0;
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (isPresent(message)) {
+                ps.setInt(index, get(message));
+            } else {
+                ps.setNull(index, Types.INTEGER);
+            }
+        }
+    }
+
+    private static final class LongFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+        private final boolean datetime;
+
+        LongFieldBinder(MethodHandle has, MethodHandle getter, boolean datetime) {
+            super(has);
+            this.getter = getter;
+            this.datetime = datetime;
+        }
+
+        private long get(Message message) {
+            try {
+                return (long) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return has != null ? hasField(message) : get(message) != 0;
+        }
+
+        @Override
+        boolean isEmptyDatetime(Message message) {
+            return datetime && get(message) <= 0;
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (!isPresent(message)) {
+                ps.setNull(index, datetime ? Types.TIMESTAMP : Types.BIGINT);
+                return;
+            }
+            long value = get(message);
+            if (datetime && value > 0) {
+                ps.setTimestamp(index, new Timestamp(value));
+            } else {
+                ps.setLong(index, value);
+            }
+        }
+    }
+
+    private static final class FloatFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+
+        FloatFieldBinder(MethodHandle has, MethodHandle getter) {
+            super(has);
+            this.getter = getter;
+        }
+
+        private float get(Message message) {
+            try {
+                return (float) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            // 同Float.equals，-0.0也是有值
+            return has != null ? hasField(message) : Float.floatToIntBits(get(message)) != 0;
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (isPresent(message)) {
+                ps.setFloat(index, get(message));
+            } else {
+                ps.setNull(index, Types.FLOAT);
+            }
+        }
+    }
+
+    private static final class DoubleFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+
+        DoubleFieldBinder(MethodHandle has, MethodHandle getter) {
+            super(has);
+            this.getter = getter;
+        }
+
+        private double get(Message message) {
+            try {
+                return (double) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return has != null ? hasField(message) : Double.doubleToLongBits(get(message)) != 0;
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (isPresent(message)) {
+                ps.setDouble(index, get(message));
+            } else {
+                ps.setNull(index, Types.DOUBLE);
+            }
+        }
+    }
+
+    private static final class BooleanFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+
+        BooleanFieldBinder(MethodHandle has, MethodHandle getter) {
+            super(has);
+            this.getter = getter;
+        }
+
+        private boolean get(Message message) {
+            try {
+                return (boolean) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return has != null ? hasField(message) : get(message);
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (isPresent(message)) {
+                ps.setBoolean(index, get(message));
+            } else {
+                ps.setNull(index, Types.BOOLEAN);
+            }
+        }
+    }
+
+    private static final class StringFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+
+        StringFieldBinder(MethodHandle has, MethodHandle getter) {
+            super(has);
+            this.getter = getter;
+        }
+
+        private String get(Message message) {
+            try {
+                return (String) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return has != null ? hasField(message) : !get(message).isEmpty();
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (isPresent(message)) {
+                ps.setString(index, get(message));
+            } else {
+                ps.setNull(index, Types.VARCHAR);
+            }
+        }
+    }
+
+    private static final class BytesFieldBinder extends FieldBinder {
+
+        private final MethodHandle getter;
+
+        BytesFieldBinder(MethodHandle has, MethodHandle getter) {
+            super(has);
+            this.getter = getter;
+        }
+
+        private ByteString get(Message message) {
+            try {
+                return (ByteString) getter.invokeExact(message);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return has != null ? hasField(message) : !get(message).isEmpty();
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            if (isPresent(message)) {
+                ByteString bytes = get(message);
+                ps.setBinaryStream(index, bytes.newInput(), bytes.size());
+            } else {
+                ps.setNull(index, Types.VARBINARY);
+            }
+        }
+    }
+
+    /**
+     * 通过<code>getField</code>读取，与<code>bind</code>的取值规则相同
+     */
+    private static final class ReflectiveFieldBinder extends FieldBinder {
+
+        private final ColumnMapping column;
+
+        ReflectiveFieldBinder(ColumnMapping column) {
+            super(null);
+            this.column = column;
+        }
+
+        @Override
+        boolean isPresent(Message message) {
+            return column.isPresent(message);
+        }
+
+        @Override
+        boolean isEmptyDatetime(Message message) {
+            return column.isEmptyDatetime(message);
+        }
+
+        @Override
+        void bind(PreparedStatement ps, int index, Message message) throws SQLException {
+            Object value = null;
+            if (column.isPresent(message)) {
+                value = column.isBlob() ? ProtobufBlob.encode(message, column.getField())
+                        : MessageSql.convertColumnVal(column.getColumnFieldOption(),
+                        message.getField(column.getField()));
+            }
+            MessageSql.setParameter(ps, index, value);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return new IllegalStateException(ex);
+    }
+}
@@ -0,0 +1,168 @@
+package org.cocolian.mysql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.protobuf.Message;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按主键缓存message的读缓存，用于{@link JdbcProtobufTemplate#get(Object)}。
+ * Protobuf message是不可变对象，可以直接在多线程间共享。
+ * 通过JdbcProtobufTemplate写入时会自动失效对应的缓存项；在Spring事务中写入时，事务结束后会再失效一次，
+ * 避免事务提交前被并发读取重新加载的旧值留在缓存中。
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public class MessageCache<M extends Message> {
+
+    private final Cache<Object, Optional<M>> cache;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean cacheNegative = false;
+
+    private MessageCache(Cache<Object, Optional<M>> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * 按记录条数限制容量的缓存
+     *
+     * @param maximumSize      最大缓存条数
+     * @param expireAfterWrite 写入后的过期时间
+     * @param unit
+     * @return
+     */
+    public static <M extends Message> MessageCache<M> bySize(long maximumSize, long expireAfterWrite, TimeUnit unit) {
+        return new MessageCache<M>(CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite, unit).recordStats().<Object, Optional<M>>build());
+    }
+
+    /**
+     * 按message序列化后的字节数限制容量的缓存
+     *
+     * @param maximumWeight    最大缓存字节数
+     * @param expireAfterWrite 写入后的过期时间
+     * @param unit
+     * @return
+     */
+    public static <M extends Message> MessageCache<M> byWeight(long maximumWeight, long expireAfterWrite, TimeUnit unit) {
+        return new MessageCache<M>(CacheBuilder.newBuilder().maximumWeight(maximumWeight)
+                .weigher(new Weigher<Object, Optional<M>>() {
+
+                    @Override
+                    public int weigh(Object key, Optional<M> value) {
+                        return value.isPresent() ? value.get().getSerializedSize() + 1 : 1;
+                    }
+
+                }).expireAfterWrite(expireAfterWrite, unit).recordStats().<Object, Optional<M>>build());
+    }
+
+    public boolean isCacheNegative() {
+        return cacheNegative;
+    }
+
+    /**
+     * 是否缓存不存在的记录
+     *
+     * @param cacheNegative
+     */
+    public void setCacheNegative(boolean cacheNegative) {
+        this.cacheNegative = cacheNegative;
+    }
+
+    /**
+     * 读取缓存，没有时通过loader从数据库加载
+     *
+     * @param key
+     * @param loader
+     * @return 记录不存在时返回null
+     * @throws Exception loader抛出的异常
+     */
+    M get(Object key, Callable<M> loader) throws Exception {
+        Optional<M> cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached.orElse(null);
+        }
+        long loadGeneration = generation.get();
+        M message = loader.call();
+        // 加载期间有写入时不放入缓存，避免覆盖失效操作；事务中可能读到未提交的数据，也不放入缓存
+        if ((message != null || cacheNegative) && loadGeneration == generation.get()
+                && !TransactionSynchronizationManager.isActualTransactionActive()) {
+            cache.put(key, Optional.ofNullable(message));
+        }
+        return message;
+    }
+
+    /**
+     * 失效主键对应的缓存项
+     *
+     * @param key
+     */
+    void invalidate(final Object key) {
+        generation.incrementAndGet();
+        cache.invalidate(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCompletion(int status) {
+                    generation.incrementAndGet();
+                    cache.invalidate(key);
+                }
+
+            });
+        }
+    }
+
+    /**
+     * 失效所有缓存项
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCompletion(int status) {
+                    generation.incrementAndGet();
+                    cache.invalidateAll();
+                }
+
+            });
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * 命中、未命中、淘汰次数等统计信息
+     *
+     * @return
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+}
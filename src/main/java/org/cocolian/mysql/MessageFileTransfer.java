@@ -0,0 +1,429 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * 按长度前缀格式（同<code>writeDelimitedTo/parseDelimitedFrom</code>）导出和导入message文件。
+ * 导出逐行读取结果集，经过固定大小的缓冲区写入FileChannel；
+ * 导入按窗口映射文件，逐条解析后分批交给多个写入线程，每个线程使用独立的连接，按提交间隔提交。
+ * 内存占用只与窗口大小、批大小和线程数有关，与文件大小无关。
+ * <p>
+ * 使用模板的流式查询、批量写入设置和缓存，不支持分表分库：
+ * <pre>
+ * MessageFileTransfer&lt;Foo&gt; transfer = new MessageFileTransfer&lt;&gt;(template);
+ * transfer.exportTo(file, "select * from test_foo where col2 &gt; ?", 0);
+ * transfer.importFrom(file);
+ * </pre>
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public class MessageFileTransfer<M extends Message> {
+
+    public static final int DEFAULT_IMPORT_THREADS = 4;
+    public static final int DEFAULT_IMPORT_COMMIT_INTERVAL = 10000;
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageFileTransfer.class);
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int EXPORT_PROGRESS_INTERVAL = 10000;
+
+    private final JdbcProtobufTemplate<M> template;
+    private final long mapWindowSize;
+    private int importThreads = DEFAULT_IMPORT_THREADS;
+    private int importCommitInterval = DEFAULT_IMPORT_COMMIT_INTERVAL;
+    private TransferListener transferListener;
+
+    public MessageFileTransfer(JdbcProtobufTemplate<M> template) {
+        this(template, MAP_WINDOW_SIZE);
+    }
+
+    /**
+     * @param template
+     * @param mapWindowSize 导入时每次映射的字节数，记录跨越窗口时从记录开始处重新映射
+     */
+    MessageFileTransfer(JdbcProtobufTemplate<M> template, long mapWindowSize) {
+        this.template = template;
+        this.mapWindowSize = mapWindowSize;
+    }
+
+    public int getImportThreads() {
+        return importThreads;
+    }
+
+    /**
+     * 设置导入时的写入线程数，每个线程使用一个独立的连接
+     *
+     * @param importThreads
+     */
+    public void setImportThreads(int importThreads) {
+        if (importThreads <= 0) {
+            throw new IllegalArgumentException("importThreads must be positive: " + importThreads);
+        }
+        this.importThreads = importThreads;
+    }
+
+    public int getImportCommitInterval() {
+        return importCommitInterval;
+    }
+
+    /**
+     * 设置导入时每个写入线程提交一次的记录数，默认为10000
+     *
+     * @param importCommitInterval
+     */
+    public void setImportCommitInterval(int importCommitInterval) {
+        if (importCommitInterval <= 0) {
+            throw new IllegalArgumentException("importCommitInterval must be positive: " + importCommitInterval);
+        }
+        this.importCommitInterval = importCommitInterval;
+    }
+
+    public TransferListener getTransferListener() {
+        return transferListener;
+    }
+
+    /**
+     * 设置导出和导入的进度监听器
+     *
+     * @param transferListener
+     */
+    public void setTransferListener(TransferListener transferListener) {
+        this.transferListener = transferListener;
+    }
+
+    /**
+     * 将查询结果按长度前缀格式写入文件，文件已存在时覆盖。
+     * 使用模板的流式查询，内存占用与结果集大小无关。
+     *
+     * @param file
+     * @param sql
+     * @param args
+     * @return 写入的记录数、字节数和吞吐量
+     * @throws IOException
+     */
+    public TransferStats exportTo(Path file, String sql, Object... args) throws IOException {
+        return export(file, template.stream(sql, args));
+    }
+
+    /**
+     * 将message写入文件，文件已存在时覆盖
+     *
+     * @param file
+     * @param messages 流式查询的结果，写完后关闭
+     * @return
+     * @throws IOException
+     */
+    TransferStats export(Path file, Stream<M> messages) throws IOException {
+        long start = System.nanoTime();
+        long count = 0;
+        long bytes = 0;
+        try (Stream<M> stream = messages;
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            CodedOutputStream output = CodedOutputStream.newInstance(Channels.newOutputStream(channel),
+                    WRITE_BUFFER_SIZE);
+            Iterator<M> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                M message = iterator.next();
+                int size = message.getSerializedSize();
+                output.writeUInt32NoTag(size);
+                message.writeTo(output);
+                count++;
+                bytes += CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+                if (count % EXPORT_PROGRESS_INTERVAL == 0) {
+                    report(new TransferStats(count, bytes, System.nanoTime() - start, false));
+                }
+            }
+            output.flush();
+        }
+        TransferStats stats = new TransferStats(count, bytes, System.nanoTime() - start, true);
+        report(stats);
+        return stats;
+    }
+
+    /**
+     * 导入{@link #exportTo}生成的文件。文件按窗口映射到内存逐条解析，每batchSize条为一批，
+     * 由importThreads个线程各自使用独立的连接批量插入，每importCommitInterval条提交一次。
+     * 出错时已提交的记录不会回滚。不支持分表分库。
+     *
+     * @param file
+     * @return 已提交的记录数、读取的字节数和吞吐量
+     * @throws IOException
+     */
+    public TransferStats importFrom(Path file) throws IOException {
+        if (template.getShardRouter() != null) {
+            throw new UnsupportedOperationException("importFrom does not support sharded tables.");
+        }
+        final int threads = importThreads;
+        final BatchWriter<M> writer = new BatchWriter<M>(template);
+        final long start = System.nanoTime();
+        final AtomicLong committed = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final BlockingQueue<List<M>> queue = new ArrayBlockingQueue<>(threads * 2);
+        final List<M> end = new ArrayList<>(0);
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger sequence = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "protobuf-import-" + sequence.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        List<Future<Void>> futures = new ArrayList<>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                futures.add(workers.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            insertBatches(writer, queue, end, committed, bytesRead, start);
+                        } catch (Exception | Error ex) {
+                            failure.compareAndSet(null, ex);
+                            throw ex;
+                        }
+                        return null;
+                    }
+
+                }));
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                readBatches(channel, queue, failure, bytesRead);
+            } finally {
+                for (int i = 0; i < threads; i++) {
+                    while (!queue.offer(end, 100, TimeUnit.MILLISECONDS)) {
+                        if (failure.get() != null) {
+                            // 写入线程已出错，丢弃未处理的批次
+                            queue.clear();
+                        }
+                    }
+                }
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted: " + file, ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Import failed: " + file, cause);
+        } finally {
+            workers.shutdownNow();
+        }
+        TransferStats stats = new TransferStats(committed.get(), bytesRead.get(), System.nanoTime() - start, true);
+        report(stats);
+        return stats;
+    }
+
+    /**
+     * 按窗口映射文件，逐条解析并按批放入队列
+     */
+    void readBatches(FileChannel channel, BlockingQueue<List<M>> queue, AtomicReference<Throwable> failure,
+                     AtomicLong bytesRead) throws IOException, InterruptedException {
+        Parser<M> parser = template.getParser();
+        int batchSize = template.getBatchSize();
+        long size = channel.size();
+        long position = 0;
+        long windowStart = 0;
+        MappedByteBuffer window = null;
+        List<M> batch = new ArrayList<>(batchSize);
+        while (position < size && failure.get() == null) {
+            long windowEnd = window == null ? 0 : windowStart + window.limit();
+            if (window == null || (windowEnd - position < MAX_VARINT_SIZE && windowEnd < size)) {
+                windowStart = position;
+                window = map(channel, position, MAX_VARINT_SIZE);
+            }
+            int offset = (int) (position - windowStart);
+            window.position(offset);
+            int length = readLength(window, position);
+            int headerSize = window.position() - offset;
+            if (position + headerSize + length > size) {
+                throw new IOException("Truncated message at offset " + position + ".");
+            }
+            if (window.remaining() < length) {
+                // 记录跨越窗口边界，从记录开始处重新映射
+                windowStart = position;
+                window = map(channel, position, headerSize + length);
+                window.position(headerSize);
+            }
+            ByteBuffer slice = window.slice();
+            slice.limit(length);
+            batch.add(parser.parseFrom(CodedInputStream.newInstance(slice)));
+            position += headerSize + length;
+            bytesRead.set(position);
+            if (batch.size() >= batchSize) {
+                put(queue, batch, failure);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            put(queue, batch, failure);
+        }
+    }
+
+    /**
+     * 从position开始映射一个窗口，窗口至少包含minLength字节，不超过文件末尾
+     */
+    private MappedByteBuffer map(FileChannel channel, long position, int minLength) throws IOException {
+        long length = Math.min(Math.max(mapWindowSize, minLength), channel.size() - position);
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * 读取varint32长度前缀
+     */
+    private static int readLength(ByteBuffer buffer, long position) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Truncated length prefix at offset " + position + ".");
+            }
+            byte b = buffer.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed length prefix at offset " + position + ".");
+    }
+
+    /**
+     * 写入线程：使用独立的连接执行批量插入，每commitInterval条提交一次
+     */
+    private void insertBatches(BatchWriter<M> writer, BlockingQueue<List<M>> queue, List<M> end,
+                               AtomicLong committed, AtomicLong bytesRead, long start) throws InterruptedException {
+        JdbcTemplate jdbcTemplate = template.getJdbcTemplate(null);
+        int commitInterval = importCommitInterval;
+        DataSource dataSource = jdbcTemplate.getDataSource();
+        Connection con = null;
+        boolean autoCommit = true;
+        List<M> uncommitted = new ArrayList<>();
+        try {
+            con = dataSource.getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            while (true) {
+                List<M> batch = queue.take();
+                if (batch == end) {
+                    break;
+                }
+                writer.insertAll(con, batch);
+                uncommitted.addAll(batch);
+                if (uncommitted.size() >= commitInterval) {
+                    commit(con, uncommitted, committed, bytesRead, start);
+                }
+            }
+            commit(con, uncommitted, committed, bytesRead, start);
+        } catch (SQLException ex) {
+            rollback(con);
+            throw jdbcTemplate.getExceptionTranslator().translate("ImportFrom", null, ex);
+        } catch (RuntimeException | InterruptedException ex) {
+            rollback(con);
+            throw ex;
+        } finally {
+            if (con != null) {
+                try {
+                    con.setAutoCommit(autoCommit);
+                } catch (SQLException ex) {
+                    logger.debug("Could not reset autoCommit.", ex);
+                }
+                JdbcUtils.closeConnection(con);
+            }
+        }
+    }
+
+    private void commit(Connection con, List<M> uncommitted, AtomicLong committed, AtomicLong bytesRead, long start)
+            throws SQLException {
+        con.commit();
+        template.evict(uncommitted);
+        long count = committed.addAndGet(uncommitted.size());
+        uncommitted.clear();
+        report(new TransferStats(count, bytesRead.get(), System.nanoTime() - start, false));
+    }
+
+    private void rollback(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.rollback();
+        } catch (SQLException ex) {
+            logger.debug("Could not roll back import batch.", ex);
+        }
+    }
+
+    /**
+     * 放入队列，写入线程出错时放弃
+     */
+    private static <T> void put(BlockingQueue<T> queue, T item, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+                return;
+            }
+        }
+    }
+
+    private void report(TransferStats stats) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Transfer progress: " + stats);
+        }
+        TransferListener listener = transferListener;
+        if (listener != null) {
+            try {
+                listener.onProgress(stats);
+            } catch (RuntimeException ex) {
+                logger.warn("Error in transfer listener.", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Message;
+import org.apache.commons.lang3.StringUtils;
+import org.cocolian.mysql.taglib.ColumnFieldOption;
+import org.cocolian.mysql.taglib.ColumnType;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 模板的SQL生成和参数绑定：按{@link SqlShape}生成并缓存SQL，按占位符顺序把message的字段绑定到语句。
+ * 主键取自模板，子类覆盖的主键设置同样生效。benchmarks模块单独测量SQL生成和参数绑定。
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+final class MessageSql<M extends Message> {
+
+    private final JdbcProtobufTemplate<M> template;
+    private final Descriptors.Descriptor descriptor;
+    private final SqlTemplateCache sqlTemplateCache;
+    private final MessageBinder messageBinder;
+
+    MessageSql(JdbcProtobufTemplate<M> template, Descriptors.Descriptor descriptor, Class<M> messageClass) {
+        this.template = template;
+        this.descriptor = descriptor;
+        this.sqlTemplateCache = new SqlTemplateCache(ColumnMappings.of(descriptor));
+        this.messageBinder = MessageBinder.compile(messageClass, sqlTemplateCache.getColumns());
+    }
+
+    /**
+     * 按field number排序的字段映射
+     *
+     * @return
+     */
+    List<ColumnMapping> getColumns() {
+        return sqlTemplateCache.getColumns();
+    }
+
+    /**
+     * 按列名查找字段映射，列名不区分大小写
+     *
+     * @param columnName
+     * @return 没有对应的列时返回null
+     */
+    ColumnMapping getColumn(String columnName) {
+        return sqlTemplateCache.getColumn(columnName);
+    }
+
+    /**
+     * 计算message对应的SQL形状
+     *
+     * @param operation
+     * @param tableName
+     * @param message
+     * @return
+     */
+    SqlShape shapeOf(SqlShape.Operation operation, String tableName, M message) {
+        // 全量更新时DATETIME字段的0值也会写入
+        return new SqlShape(operation, tableName, presentFields(message, operation != SqlShape.Operation.UPDATE));
+    }
+
+    /**
+     * 计算message中参与生成SQL的字段，位图中的序号为字段按field number排序后的位置
+     *
+     * @param message
+     * @param skipEmptyDatetime 是否忽略值为0的DATETIME/TIMESTAMP字段
+     * @return
+     */
+    BitSet presentFields(M message, boolean skipEmptyDatetime) {
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        BitSet fields = new BitSet(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            if (messageBinder.isPresent(i, message)
+                    && !(skipEmptyDatetime && messageBinder.isEmptyDatetime(i, message))) {
+                fields.set(i);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * 按占位符顺序取出message中的参数值
+     *
+     * @param sqlTemplate
+     * @param message
+     * @return
+     */
+    List<Object> bind(SqlTemplate sqlTemplate, M message) {
+        ColumnMapping[] parameters = sqlTemplate.getParameters();
+        List<Object> args = new ArrayList<Object>(parameters.length);
+        for (ColumnMapping column : parameters) {
+            args.add(columnValue(column, message));
+        }
+        return args;
+    }
+
+    /**
+     * 字段对应的列值，没有值时为null
+     *
+     * @param column
+     * @param message
+     * @return
+     */
+    Object columnValue(ColumnMapping column, M message) {
+        if (!column.isPresent(message)) {
+            return null;
+        }
+        if (column.isBlob()) {
+            return ProtobufBlob.encode(message, column.getField());
+        }
+        return convertColumnVal(column.getColumnFieldOption(), message.getField(column.getField()));
+    }
+
+    /**
+     * 从缓存中获取SQL模板，没有则生成
+     *
+     * @param shape
+     * @return
+     */
+    SqlTemplate getSqlTemplate(SqlShape shape) {
+        SqlTemplate sqlTemplate = sqlTemplateCache.get(shape);
+        if (sqlTemplate == null) {
+            sqlTemplate = buildSqlTemplate(shape);
+            sqlTemplateCache.put(shape, sqlTemplate);
+        }
+        return sqlTemplate;
+    }
+
+    private SqlTemplate buildSqlTemplate(SqlShape shape) {
+        switch (shape.getOperation()) {
+            case INSERT:
+                return buildInsertTemplate(shape);
+            case UPDATE:
+                return buildUpdateTemplate(shape, false);
+            case PARTIAL_UPDATE:
+                return buildUpdateTemplate(shape, true);
+            case GUARDED_UPDATE:
+                return buildGuardedUpdateTemplate(shape);
+            case UPDATE_BY_CONDITION:
+                return buildUpdateByConditionTemplate(shape);
+            case SELECT:
+                return buildSelectTemplate(shape);
+            case GET:
+                return buildGetTemplate(shape);
+            case GET_ALL:
+                return buildGetAllTemplate(shape);
+            case SCAN:
+                return buildScanTemplate(shape);
+            case UPSERT:
+                return buildUpsertTemplate(shape);
+            default:
+                throw new IllegalArgumentException("Unsupported operation: " + shape.getOperation());
+        }
+    }
+
+    private SqlTemplate buildInsertTemplate(SqlShape shape) {
+        StringBuilder insertSql = new StringBuilder("insert into ");
+        insertSql.append(shape.getTableName()).append("(");
+        StringBuilder values = new StringBuilder("");
+        List<ColumnMapping> parameters = new ArrayList<>();
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        BitSet fields = shape.getFields();
+        for (int i = fields.nextSetBit(0); i >= 0; i = fields.nextSetBit(i + 1)) {
+            ColumnMapping column = columns.get(i);
+            if (!parameters.isEmpty()) {
+                insertSql.append(',');
+                values.append(", ");
+            }
+            insertSql.append('`').append(column.getColumnName()).append('`');
+            values.append('?');
+            parameters.add(column);
+        }
+        insertSql.append(") values(").append(values).append(")");
+        return new SqlTemplate(insertSql.toString(), parameters);
+    }
+
+    /**
+     * insert语句之后加上 on duplicate key update col=values(col)，只更新insert中出现的列，
+     * 主键和不对应列的字段不更新
+     *
+     * @param shape
+     * @return
+     */
+    private SqlTemplate buildUpsertTemplate(SqlShape shape) {
+        SqlTemplate insert = buildInsertTemplate(shape);
+        FieldDescriptor keyField = template.getPrimaryKeyField();
+        String keyName = getPrimaryKeyColumnName();
+        StringBuilder upsertSql = new StringBuilder(insert.getSql()).append(" on duplicate key update ");
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        BitSet fields = shape.getFields();
+        boolean first = true;
+        for (int i = fields.nextSetBit(0); i >= 0; i = fields.nextSetBit(i + 1)) {
+            ColumnMapping column = columns.get(i);
+            if (column.getField().equals(keyField) || !column.isSelectable()) {
+                continue;
+            }
+            if (!first) {
+                upsertSql.append(", ");
+            }
+            upsertSql.append('`').append(column.getColumnName()).append("`=values(`")
+                    .append(column.getColumnName()).append("`)");
+            first = false;
+        }
+        if (first) {
+            // 只有主键时，冲突不做任何修改
+            upsertSql.append('`').append(keyName).append("`=`").append(keyName).append('`');
+        }
+        return new SqlTemplate(upsertSql.toString(), Arrays.asList(insert.getParameters()));
+    }
+
+    /**
+     * 全量更新时主键不出现在set子句中，部分更新时主键也会被set
+     *
+     * @param shape
+     * @param partial
+     * @return
+     */
+    private SqlTemplate buildUpdateTemplate(SqlShape shape, boolean partial) {
+        FieldDescriptor keyField = template.getPrimaryKeyField();
+        String keyName = getPrimaryKeyColumnName();
+        StringBuilder updateSql = new StringBuilder("update ");
+        updateSql.append(shape.getTableName()).append(" set ");
+        List<ColumnMapping> parameters = new ArrayList<>();
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        ColumnMapping keyColumn = null;
+        BitSet fields = shape.getFields();
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnMapping column = columns.get(i);
+            boolean isKey = column.getField().equals(keyField);
+            if (isKey) {
+                keyColumn = column;
+            }
+            if (!fields.get(i) || (isKey && !partial)) {
+                continue;
+            }
+            if (!parameters.isEmpty()) {
+                updateSql.append(", ");
+            }
+            updateSql.append(column.getColumnName()).append("=?");
+            parameters.add(column);
+        }
+        updateSql.append(" where ").append(keyName).append(" = ?");
+        if (keyColumn != null) {
+            parameters.add(keyColumn);
+        }
+        return new SqlTemplate(updateSql.toString(), parameters);
+    }
+
+    /**
+     * 在全量更新的where子句后，为每个更新的列加上旧值条件，附加条件中的列为<code>IS NULL</code>，
+     * 其余非BLOB列为<code>= ?</code>，参数由调用方按列顺序追加
+     *
+     * @param shape
+     * @return
+     */
+    private SqlTemplate buildGuardedUpdateTemplate(SqlShape shape) {
+        SqlTemplate update = buildUpdateTemplate(shape, false);
+        StringBuilder updateSql = new StringBuilder(update.getSql());
+        List<String> nullGuards = Arrays.asList(shape.getExtras());
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        BitSet fields = shape.getFields();
+        for (int i = fields.nextSetBit(0); i >= 0; i = fields.nextSetBit(i + 1)) {
+            ColumnMapping column = columns.get(i);
+            if (column.isBlob()) {
+                continue;
+            }
+            updateSql.append(" and `").append(column.getColumnName()).append('`');
+            updateSql.append(nullGuards.contains(column.getColumnName()) ? " is null" : " = ?");
+        }
+        return new SqlTemplate(updateSql.toString(), Arrays.asList(update.getParameters()));
+    }
+
+    private SqlTemplate buildUpdateByConditionTemplate(SqlShape shape) {
+        List<String> conditionFields = Arrays.asList(shape.getExtras());
+        StringBuilder updateSql = new StringBuilder("update ");
+        updateSql.append(shape.getTableName()).append(" set ");
+        List<ColumnMapping> parameters = new ArrayList<>();
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        BitSet fields = shape.getFields();
+        for (int i = fields.nextSetBit(0); i >= 0; i = fields.nextSetBit(i + 1)) {
+            ColumnMapping column = columns.get(i);
+            if (conditionFields.contains(column.getField().getName())) {
+                continue;
+            }
+            if (!parameters.isEmpty()) {
+                updateSql.append(", ");
+            }
+            updateSql.append(column.getColumnName()).append("=?");
+            parameters.add(column);
+        }
+        updateSql.append(" where 1=1 ");
+        for (String conditionField : conditionFields) {
+            FieldDescriptor field = descriptor.findFieldByName(conditionField);
+            String columnName = field == null ? conditionField : columns.get(columnIndex(field)).getColumnName();
+            updateSql.append("AND ").append(columnName).append("=? ");
+        }
+        return new SqlTemplate(updateSql.toString(), parameters);
+    }
+
+    private SqlTemplate buildSelectTemplate(SqlShape shape) {
+        StringBuilder selectSql = new StringBuilder("select ");
+        selectSql.append(buildSelectStatement(shape.getFields())).append(" from ").append(shape.getTableName());
+        return new SqlTemplate(selectSql.toString(), Collections.<ColumnMapping>emptyList());
+    }
+
+    private SqlTemplate buildGetTemplate(SqlShape shape) {
+        StringBuilder selectSql = new StringBuilder(buildSelectTemplate(shape).getSql());
+        selectSql.append(" where ").append(getPrimaryKeyColumnName()).append("=?");
+        return new SqlTemplate(selectSql.toString(), Collections.<ColumnMapping>emptyList());
+    }
+
+    /**
+     * keyset分页：[where pk > ?] [and pk <= ?] order by pk limit ?，附加条件为是否有下界和上界
+     *
+     * @param shape
+     * @return
+     */
+    private SqlTemplate buildScanTemplate(SqlShape shape) {
+        boolean lower = Boolean.parseBoolean(shape.getExtras()[0]);
+        boolean upper = Boolean.parseBoolean(shape.getExtras()[1]);
+        String keyName = getPrimaryKeyColumnName();
+        StringBuilder selectSql = new StringBuilder(buildSelectTemplate(shape).getSql());
+        if (lower) {
+            selectSql.append(" where `").append(keyName).append("` > ?");
+        }
+        if (upper) {
+            selectSql.append(lower ? " and `" : " where `").append(keyName).append("` <= ?");
+        }
+        selectSql.append(" order by `").append(keyName).append("` limit ?");
+        return new SqlTemplate(selectSql.toString(), Collections.<ColumnMapping>emptyList());
+    }
+
+    /**
+     * 主键范围扫描每页的SQL，见{@link KeysetScanner}
+     *
+     * @param tableName
+     * @param lower     是否有下界（不含）
+     * @param upper     是否有上界（含）
+     * @return
+     */
+    String getScanSql(String tableName, boolean lower, boolean upper) {
+        return getSqlTemplate(new SqlShape(SqlShape.Operation.SCAN, tableName, selectableColumns(),
+                String.valueOf(lower), String.valueOf(upper))).getSql();
+    }
+
+    private SqlTemplate buildGetAllTemplate(SqlShape shape) {
+        int chunkSize = Integer.parseInt(shape.getExtras()[0]);
+        StringBuilder selectSql = new StringBuilder(buildSelectTemplate(shape).getSql());
+        selectSql.append(" where ").append(getPrimaryKeyColumnName()).append(" in (");
+        for (int i = 0; i < chunkSize; i++) {
+            selectSql.append(i == 0 ? "?" : ", ?");
+        }
+        selectSql.append(")");
+        return new SqlTemplate(selectSql.toString(), Collections.<ColumnMapping>emptyList());
+    }
+
+    /**
+     * 获取查询的属性
+     *
+     * @param fields 查询的列
+     * @return
+     */
+    private String buildSelectStatement(BitSet fields) {
+        StringBuilder statement = new StringBuilder();
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        for (int i = fields.nextSetBit(0); i >= 0; i = fields.nextSetBit(i + 1)) {
+            if (statement.length() > 0) {
+                statement.append(", ");
+            }
+            statement.append('`').append(columns.get(i).getColumnName()).append('`');
+        }
+        return statement.toString();
+    }
+
+    /**
+     * 主键对应的列名，主键字段设置了column_name时使用该值
+     *
+     * @return
+     */
+    String getPrimaryKeyColumnName() {
+        FieldDescriptor keyField = template.getPrimaryKeyField();
+        if (keyField == null) {
+            return template.getPrimaryKeyName(null);
+        }
+        return sqlTemplateCache.getColumns().get(columnIndex(keyField)).getColumnName();
+    }
+
+    /**
+     * 字段在按field number排序的字段映射中的位置
+     *
+     * @param field
+     * @return
+     */
+    int columnIndex(FieldDescriptor field) {
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getField().equals(field)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field: " + field.getFullName());
+    }
+
+    /**
+     * 所有可以查询的列
+     *
+     * @return
+     */
+    BitSet selectableColumns() {
+        List<ColumnMapping> columns = sqlTemplateCache.getColumns();
+        BitSet fields = new BitSet(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).isSelectable()) {
+                fields.set(i);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * FieldMask中的字段对应的列，嵌套路径按第一级字段处理，mask为空时返回所有可以查询的列
+     *
+     * @param fieldMask
+     * @return
+     */
+    BitSet columnsOf(FieldMask fieldMask) {
+        if (fieldMask == null || fieldMask.getPathsCount() == 0) {
+            return selectableColumns();
+        }
+        BitSet fields = new BitSet(sqlTemplateCache.getColumns().size());
+        for (String path : fieldMask.getPathsList()) {
+            String name = StringUtils.substringBefore(path, ".");
+            FieldDescriptor field = descriptor.findFieldByName(name);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown field in mask: " + path);
+            }
+            int index = columnIndex(field);
+            if (!sqlTemplateCache.getColumns().get(index).isSelectable()) {
+                throw new IllegalArgumentException("Field is not a column: " + path);
+            }
+            fields.set(index);
+        }
+        return fields;
+    }
+
+    /**
+     * set preparedstatement params
+     *
+     * @param ps
+     * @param args
+     * @return
+     * @throws SQLException
+     */
+    static void populate(PreparedStatement ps, List<?> args) throws SQLException {
+        for (int i = 0; i < args.size(); i++) {
+            setParameter(ps, i + 1, args.get(i));
+        }
+    }
+
+    /**
+     * 按占位符顺序将message字段直接绑定到ps，不生成中间的参数列表
+     *
+     * @param ps
+     * @param sqlTemplate
+     * @param message
+     * @throws SQLException
+     */
+    void populate(PreparedStatement ps, SqlTemplate sqlTemplate, M message) throws SQLException {
+        messageBinder.bind(ps, sqlTemplate.getParameters(), message);
+    }
+
+    /**
+     * 从第offset + 1个参数开始绑定，见{@link ProtobufSession}的多语句模式
+     *
+     * @param ps
+     * @param offset
+     * @param sqlTemplate
+     * @param message
+     * @throws SQLException
+     */
+    void populate(PreparedStatement ps, int offset, SqlTemplate sqlTemplate, M message) throws SQLException {
+        messageBinder.bind(ps, offset, sqlTemplate.getParameters(), message);
+    }
+
+    /**
+     * 按值的类型调用对应的setXxx
+     *
+     * @param ps
+     * @param index 从1开始的参数序号
+     * @param o
+     * @throws SQLException
+     */
+    static void setParameter(PreparedStatement ps, int index, Object o) throws SQLException {
+        if (o instanceof Integer) {
+            ps.setInt(index, (int) o);
+        } else if (o instanceof Long) {
+            ps.setLong(index, (long) o);
+        } else if (o instanceof String) {
+            ps.setString(index, (String) o);
+        } else if (o instanceof Date) {
+            ps.setDate(index, (Date) o);
+        } else if (o instanceof Float) {
+            ps.setFloat(index, (Float) o);
+        } else if (o instanceof Double) {
+            ps.setDouble(index, (Double) o);
+        } else if (o instanceof Timestamp) {
+            ps.setTimestamp(index, (Timestamp) o);
+        } else if (o instanceof Descriptors.EnumValueDescriptor) {
+            ps.setInt(index, ((Descriptors.EnumValueDescriptor) o).getNumber());
+        } else if (o instanceof Boolean) {
+            ps.setBoolean(index, (Boolean) o);
+        } else if (o instanceof byte[]) {
+            ps.setBytes(index, (byte[]) o);
+        } else if (o instanceof ByteString) {
+            ByteString bytes = (ByteString) o;
+            ps.setBinaryStream(index, bytes.newInput(), bytes.size());
+        } else {
+            ps.setObject(index, o);
+        }
+    }
+
+    /**
+     * 根据定义列类型进行数据值格式转换
+     * @param columnFieldOption
+     * @param value
+     * @return
+     */
+    static Object convertColumnVal(ColumnFieldOption columnFieldOption, Object value) {
+        if (columnFieldOption.getColumnType() == ColumnType.DATETIME
+                || columnFieldOption.getColumnType() == ColumnType.TIMESTAMP) {// datetime类型
+            if (value != null && (long) value > 0) {
+                return new Timestamp((long) value);
+            }
+        }
+        return value;
+    }
+}
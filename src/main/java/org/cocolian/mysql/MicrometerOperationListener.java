@@ -0,0 +1,104 @@
+package org.cocolian.mysql;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 将操作统计写入Micrometer的监听器，按表名和操作名打标签：
+ * <ul>
+ * <li>jdbc.protobuf.operation：操作总耗时，带outcome标签（success/error），发布直方图</li>
+ * <li>jdbc.protobuf.acquire / execute / mapping：获取连接、执行、行映射三部分的耗时</li>
+ * <li>jdbc.protobuf.rows：读写行数，带direction标签（read/write）</li>
+ * <li>jdbc.protobuf.batch.size：批量操作的记录数</li>
+ * <li>jdbc.protobuf.errors：错误次数，带exception标签</li>
+ * <li>jdbc.protobuf.slow：超过慢语句阈值的次数</li>
+ * </ul>
+ * micrometer-core为可选依赖，使用时需要自行引入。
+ *
+ * @version 1.0.0
+ */
+public class MicrometerOperationListener implements OperationListener {
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, Meters> meters = new ConcurrentHashMap<>();
+
+    public MicrometerOperationListener(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void onOperation(OperationEvent event) {
+        Meters meter = metersOf(event);
+        meter.acquire.record(event.getAcquireNanos(), TimeUnit.NANOSECONDS);
+        meter.execute.record(event.getExecuteNanos(), TimeUnit.NANOSECONDS);
+        meter.mapping.record(event.getMappingNanos(), TimeUnit.NANOSECONDS);
+        if (event.getRows() > 0) {
+            meter.rows.increment(event.getRows());
+        }
+        if (event.getBatchSize() > 0) {
+            meter.batchSize.record(event.getBatchSize());
+        }
+        if (event.isSlow()) {
+            meter.slow.increment();
+        }
+        if (event.getError() == null) {
+            meter.success.record(event.getTotalNanos(), TimeUnit.NANOSECONDS);
+        } else {
+            meter.error.record(event.getTotalNanos(), TimeUnit.NANOSECONDS);
+            Counter.builder("jdbc.protobuf.errors")
+                    .tags("table", event.getTableName(), "operation", event.getOperation(),
+                            "exception", event.getError().getClass().getSimpleName())
+                    .register(registry).increment();
+        }
+    }
+
+    private Meters metersOf(OperationEvent event) {
+        String key = event.getTableName() + '/' + event.getOperation();
+        Meters meter = meters.get(key);
+        if (meter == null) {
+            meter = new Meters(registry, event.getTableName(), event.getOperation(), event.isWrite());
+            Meters existing = meters.putIfAbsent(key, meter);
+            if (existing != null) {
+                meter = existing;
+            }
+        }
+        return meter;
+    }
+
+    /**
+     * 同一个表和操作的指标，缓存起来避免每次查找注册表
+     */
+    private static final class Meters {
+
+        private final Timer success;
+        private final Timer error;
+        private final Timer acquire;
+        private final Timer execute;
+        private final Timer mapping;
+        private final Counter rows;
+        private final DistributionSummary batchSize;
+        private final Counter slow;
+
+        private Meters(MeterRegistry registry, String table, String operation, boolean write) {
+            String[] tags = {"table", table, "operation", operation};
+            success = Timer.builder("jdbc.protobuf.operation").tags(tags).tags("outcome", "success")
+                    .publishPercentileHistogram().register(registry);
+            error = Timer.builder("jdbc.protobuf.operation").tags(tags).tags("outcome", "error")
+                    .publishPercentileHistogram().register(registry);
+            acquire = Timer.builder("jdbc.protobuf.acquire").tags(tags).register(registry);
+            execute = Timer.builder("jdbc.protobuf.execute").tags(tags).register(registry);
+            mapping = Timer.builder("jdbc.protobuf.mapping").tags(tags).register(registry);
+            rows = Counter.builder("jdbc.protobuf.rows").tags(tags).tags("direction", write ? "write" : "read")
+                    .baseUnit("rows").register(registry);
+            batchSize = DistributionSummary.builder("jdbc.protobuf.batch.size").tags(tags)
+                    .baseUnit("rows").register(registry);
+            slow = Counter.builder("jdbc.protobuf.slow").tags(tags).register(registry);
+        }
+    }
+}
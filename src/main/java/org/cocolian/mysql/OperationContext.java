@@ -0,0 +1,128 @@
+package org.cocolian.mysql;
+
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 一次操作的计时上下文，只在设置了监听器或者慢语句阈值时创建。
+ * 操作执行期间绑定到当前线程，{@link InstrumentedDataSource}通过它累计获取连接的耗时。
+ *
+ * @version 1.0.0
+ */
+final class OperationContext {
+
+    private static final ThreadLocal<OperationContext> current = new ThreadLocal<>();
+
+    private final String tableName;
+    private final String operation;
+    private final String sql;
+    private final boolean write;
+    private final long start = System.nanoTime();
+    private OperationContext previous;
+    private long acquireNanos;
+    private long mappingNanos;
+    private long rows;
+    private int batchSize;
+    private Throwable error;
+
+    private OperationContext(String tableName, String operation, String sql, boolean write) {
+        this.tableName = tableName;
+        this.operation = operation;
+        this.sql = sql;
+        this.write = write;
+    }
+
+    /**
+     * 开始一次操作并绑定到当前线程
+     *
+     * @param tableName
+     * @param operation
+     * @param sql
+     * @param write
+     * @return
+     */
+    static OperationContext begin(String tableName, String operation, String sql, boolean write) {
+        OperationContext context = new OperationContext(tableName, operation, sql, write);
+        context.previous = current.get();
+        current.set(context);
+        return context;
+    }
+
+    /**
+     * 当前线程上正在执行的操作
+     *
+     * @return 没有时返回null
+     */
+    static OperationContext current() {
+        return current.get();
+    }
+
+    /**
+     * 解除与当前线程的绑定，流式查询在返回Stream之前调用，之后在读取结果的线程上结束
+     */
+    void detach() {
+        if (current.get() == this) {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+
+    void addAcquireNanos(long nanos) {
+        acquireNanos += nanos;
+    }
+
+    void addRows(long count) {
+        rows += count;
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    void fail(Throwable error) {
+        this.error = error;
+    }
+
+    /**
+     * 包装行映射，累计映射耗时和行数
+     *
+     * @param rowMapper
+     * @return
+     */
+    <T> RowMapper<T> timed(final RowMapper<T> rowMapper) {
+        return new RowMapper<T>() {
+
+            @Override
+            public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+                long mappingStart = System.nanoTime();
+                try {
+                    return rowMapper.mapRow(rs, rowNum);
+                } finally {
+                    mappingNanos += System.nanoTime() - mappingStart;
+                    rows++;
+                }
+            }
+
+        };
+    }
+
+    /**
+     * 结束操作，解除与当前线程的绑定
+     *
+     * @param slowThresholdNanos 小于等于0时不判断慢语句
+     * @return
+     */
+    OperationEvent end(long slowThresholdNanos) {
+        detach();
+        long totalNanos = System.nanoTime() - start;
+        long executeNanos = Math.max(0, totalNanos - acquireNanos - mappingNanos);
+        boolean slow = slowThresholdNanos > 0 && totalNanos > slowThresholdNanos;
+        return new OperationEvent(tableName, operation, sql, write, acquireNanos, executeNanos, mappingNanos,
+                totalNanos, rows, batchSize, error, slow);
+    }
+}
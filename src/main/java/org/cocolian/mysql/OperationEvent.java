@@ -0,0 +1,130 @@
+package org.cocolian.mysql;
+
+/**
+ * 一次模板操作的统计信息。耗时分为获取连接、执行和行映射三部分：
+ * 获取连接的耗时需要使用{@link InstrumentedDataSource}包装数据源，否则为0并计入执行耗时。
+ *
+ * @version 1.0.0
+ */
+public final class OperationEvent {
+
+    private final String tableName;
+    private final String operation;
+    private final String sql;
+    private final boolean write;
+    private final long acquireNanos;
+    private final long executeNanos;
+    private final long mappingNanos;
+    private final long totalNanos;
+    private final long rows;
+    private final int batchSize;
+    private final Throwable error;
+    private final boolean slow;
+
+    OperationEvent(String tableName, String operation, String sql, boolean write, long acquireNanos,
+                   long executeNanos, long mappingNanos, long totalNanos, long rows, int batchSize,
+                   Throwable error, boolean slow) {
+        this.tableName = tableName;
+        this.operation = operation;
+        this.sql = sql;
+        this.write = write;
+        this.acquireNanos = acquireNanos;
+        this.executeNanos = executeNanos;
+        this.mappingNanos = mappingNanos;
+        this.totalNanos = totalNanos;
+        this.rows = rows;
+        this.batchSize = batchSize;
+        this.error = error;
+        this.slow = slow;
+    }
+
+    /**
+     * message配置的表名，分表时为逻辑表名
+     *
+     * @return
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 模板方法名，如get、getAll、query、stream、insert、updateAll
+     *
+     * @return
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * 带占位符的SQL，批量操作时为第一种SQL形状
+     *
+     * @return
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    public boolean isWrite() {
+        return write;
+    }
+
+    public long getAcquireNanos() {
+        return acquireNanos;
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * 读操作为映射的行数，写操作为影响的行数
+     *
+     * @return
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * 批量写入的记录数，非批量操作为0
+     *
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 操作失败时的异常，成功时为null
+     *
+     * @return
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * 总耗时是否超过了慢语句阈值
+     *
+     * @return
+     */
+    public boolean isSlow() {
+        return slow;
+    }
+
+    @Override
+    public String toString() {
+        return "{table:" + tableName + "; operation:" + operation + "; sql:\"" + sql + "\"; acquire:" + acquireNanos
+                + "ns; execute:" + executeNanos + "ns; mapping:" + mappingNanos + "ns; rows:" + rows
+                + (batchSize > 0 ? "; batch:" + batchSize : "") + (error != null ? "; error:" + error : "") + "}";
+    }
+}
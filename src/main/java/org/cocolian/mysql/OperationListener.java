@@ -0,0 +1,28 @@
+package org.cocolian.mysql;
+
+/**
+ * 模板操作的监听器，每个操作结束后收到一个{@link OperationEvent}，用于统计耗时、行数、错误和慢语句。
+ * 实现需要线程安全，且不应抛出异常；默认为{@link #NOOP}，此时不做任何计时。
+ *
+ * @version 1.0.0
+ */
+public interface OperationListener {
+
+    /**
+     * 不做任何处理的监听器
+     */
+    OperationListener NOOP = new OperationListener() {
+
+        @Override
+        public void onOperation(OperationEvent event) {
+        }
+
+    };
+
+    /**
+     * 操作结束时调用，在执行操作的线程上同步调用
+     *
+     * @param event
+     */
+    void onOperation(OperationEvent event);
+}
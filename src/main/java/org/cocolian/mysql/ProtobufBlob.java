@@ -0,0 +1,112 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * <code>PROTOBUF_BLOB</code>列的编码和解码。
+ * message、repeated和map字段按它在父message中的wire格式存储，即带字段tag的一组值，
+ * 读取时直接合并到父message的builder中；bytes字段保存原始字节，不做解析，见{@link LazyMessageBlob}。
+ *
+ * @version 1.0.0
+ */
+final class ProtobufBlob {
+
+    private ProtobufBlob() {
+    }
+
+    /**
+     * 编码字段值，用于绑定参数
+     *
+     * @param message
+     * @param field
+     * @return bytes字段返回原值的ByteString，其它字段返回编码后的byte[]
+     */
+    static Object encode(Message message, FieldDescriptor field) {
+        if (isRawBytes(field)) {
+            return message.getField(field);
+        }
+        // 只包含这一个字段的message，序列化结果就是字段在父message中的wire格式
+        Message single = message.newBuilderForType().setField(field, message.getField(field)).buildPartial();
+        // 按序列化大小一次分配，驱动在执行前可能一直持有参数，所以不能复用缓冲区
+        byte[] bytes = new byte[single.getSerializedSize()];
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        try {
+            single.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error in encoding field " + field.getFullName() + ".", ex);
+        }
+        return bytes;
+    }
+
+    /**
+     * 从结果集的二进制流直接解析，合并到builder中
+     *
+     * @param rs
+     * @param column
+     * @param builder
+     * @throws SQLException
+     */
+    static void merge(ResultSet rs, int column, Message.Builder builder) throws SQLException {
+        InputStream input = rs.getBinaryStream(column);
+        if (input == null) {
+            return;
+        }
+        try {
+            builder.mergeFrom(CodedInputStream.newInstance(input));
+        } catch (IOException ex) {
+            throw new SQLException("Invalid protobuf blob in column " + column + ".", ex);
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * 读取bytes字段的原始字节
+     *
+     * @param rs
+     * @param column
+     * @return 数据库中为NULL时返回null
+     * @throws SQLException
+     */
+    static ByteString read(ResultSet rs, int column) throws SQLException {
+        InputStream input = rs.getBinaryStream(column);
+        if (input == null) {
+            return null;
+        }
+        try {
+            return ByteString.readFrom(input);
+        } catch (IOException ex) {
+            throw new SQLException("Error in reading blob column " + column + ".", ex);
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * bytes类型的非repeated字段保存原始字节
+     *
+     * @param field
+     * @return
+     */
+    static boolean isRawBytes(FieldDescriptor field) {
+        return !field.isRepeated() && field.getJavaType() == FieldDescriptor.JavaType.BYTE_STRING;
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException ex) {
+            // 内存流，忽略
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 工作单元：记录多个{@link JdbcProtobufTemplate}上的insert/update/partialUpdate/upsert，
+ * 在flush时按表和SQL形状分组为JDBC批量语句，在一个事务中执行。
+ * <p>
+ * 分组时一条写入可以提前到前面相同SQL的批次中，但不会越过对同一条记录（同一表、同一主键）的写入，
+ * 所以同一记录上的写入顺序不变。不同表之间有外键约束时，需要关闭reorder，只合并相邻的相同SQL。
+ * 开启multiStatements时（连接需要<code>allowMultiQueries=true</code>），所有语句拼接为一个多语句包发送，
+ * 每个包只需要一次往返。不使用多语句包时，批次只有在连接参数设置了<code>rewriteBatchedStatements=true</code>后
+ * 才会被MySQL驱动改写为一次往返，否则批次中的每条记录仍然单独发送，见{@link SessionResult}。
+ * <p>
+ * 会话不是线程安全的，通常在一个业务操作中创建和使用。已在Spring事务中时加入该事务，否则自己提交或回滚。
+ *
+ * @version 1.0.0
+ */
+public final class ProtobufSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProtobufSession.class);
+
+    public static final int DEFAULT_MAX_STATEMENTS_PER_PACKET = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final List<PendingWrite<?>> pending = new ArrayList<>();
+    private boolean reorder = true;
+    private boolean multiStatements = false;
+    private int maxStatementsPerPacket = DEFAULT_MAX_STATEMENTS_PER_PACKET;
+
+    public ProtobufSession(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public boolean isReorder() {
+        return reorder;
+    }
+
+    /**
+     * 是否允许将写入提前到前面相同SQL的批次中，默认为true；为false时只合并相邻的相同SQL
+     *
+     * @param reorder
+     */
+    public void setReorder(boolean reorder) {
+        this.reorder = reorder;
+    }
+
+    public boolean isMultiStatements() {
+        return multiStatements;
+    }
+
+    /**
+     * 是否将所有语句拼接为多语句包发送，需要在连接参数中设置<code>allowMultiQueries=true</code>，默认为false
+     *
+     * @param multiStatements
+     */
+    public void setMultiStatements(boolean multiStatements) {
+        this.multiStatements = multiStatements;
+    }
+
+    public int getMaxStatementsPerPacket() {
+        return maxStatementsPerPacket;
+    }
+
+    /**
+     * 多语句模式下每个包最多包含的语句数，默认为500
+     *
+     * @param maxStatementsPerPacket
+     */
+    public void setMaxStatementsPerPacket(int maxStatementsPerPacket) {
+        if (maxStatementsPerPacket <= 0) {
+            throw new IllegalArgumentException("maxStatementsPerPacket must be positive: " + maxStatementsPerPacket);
+        }
+        this.maxStatementsPerPacket = maxStatementsPerPacket;
+    }
+
+    /**
+     * 记录一条insert，设置了idGenerator时立即分配主键
+     *
+     * @param template
+     * @param message
+     * @return 操作序号，用于从{@link SessionResult}中取得影响行数
+     */
+    public <M extends Message> int insert(JdbcProtobufTemplate<M> template, M message) {
+        return record(template, SqlShape.Operation.INSERT, template.assignId(message));
+    }
+
+    /**
+     * 记录一条全量更新，见{@link JdbcProtobufTemplate#update(Message)}
+     *
+     * @param template
+     * @param message
+     * @return 操作序号
+     */
+    public <M extends Message> int update(JdbcProtobufTemplate<M> template, M message) {
+        return record(template, SqlShape.Operation.UPDATE, message);
+    }
+
+    /**
+     * 记录一条部分更新，见{@link JdbcProtobufTemplate#partialUpdate(Message)}
+     *
+     * @param template
+     * @param message
+     * @return 操作序号
+     */
+    public <M extends Message> int partialUpdate(JdbcProtobufTemplate<M> template, M message) {
+        return record(template, SqlShape.Operation.PARTIAL_UPDATE, message);
+    }
+
+    /**
+     * 记录一条insert ... on duplicate key update，见{@link JdbcProtobufTemplate#upsert(Message)}
+     *
+     * @param template
+     * @param message
+     * @return 操作序号
+     */
+    public <M extends Message> int upsert(JdbcProtobufTemplate<M> template, M message) {
+        return record(template, SqlShape.Operation.UPSERT, message);
+    }
+
+    /**
+     * 尚未执行的写入数
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 丢弃尚未执行的写入
+     */
+    public void clear() {
+        pending.clear();
+    }
+
+    private <M extends Message> int record(JdbcProtobufTemplate<M> template, SqlShape.Operation operation, M message) {
+        JdbcTemplate jdbc = template.getJdbcTemplate(message);
+        if (jdbc.getDataSource() != jdbcTemplate.getDataSource()) {
+            throw new IllegalArgumentException("Template of table " + template.getTableName(message)
+                    + " uses a different data source from the session.");
+        }
+        FieldDescriptor keyField = template.getPrimaryKeyField();
+        Object key = keyField != null && message.hasField(keyField) ? message.getField(keyField) : null;
+        if (key == null && operation != SqlShape.Operation.INSERT) {
+            throw new IllegalArgumentException(operation + " requires primary key: " + message);
+        }
+        String tableName = template.getTableName(message);
+        MessageSql<M> messageSql = template.getMessageSql();
+        SqlTemplate sqlTemplate = messageSql.getSqlTemplate(messageSql.shapeOf(operation, tableName, message));
+        Object rowKey = key == null ? null : Arrays.asList(tableName, key);
+        pending.add(new PendingWrite<M>(pending.size(), template, message, sqlTemplate, rowKey));
+        return pending.size() - 1;
+    }
+
+    /**
+     * 在一个事务中执行所有记录的写入，执行后清空
+     *
+     * @return 每个操作的影响行数以及执行的语句数
+     */
+    public SessionResult flush() {
+        final List<PendingWrite<?>> writes = new ArrayList<>(pending);
+        pending.clear();
+        int[] updateCounts = new int[writes.size()];
+        if (writes.isEmpty()) {
+            return new SessionResult(updateCounts, 0, 0, 0);
+        }
+        List<Batch> batches = group(writes);
+        DataSource dataSource = jdbcTemplate.getDataSource();
+        Connection con = DataSourceUtils.getConnection(dataSource);
+        boolean transactional = DataSourceUtils.isConnectionTransactional(con, dataSource);
+        boolean autoCommit = false;
+        Executions executions = new Executions();
+        try {
+            if (!transactional) {
+                autoCommit = con.getAutoCommit();
+                if (autoCommit) {
+                    con.setAutoCommit(false);
+                    executions.transactionStatements++;
+                }
+            }
+            if (multiStatements) {
+                executePackets(con, batches, updateCounts, executions);
+            } else {
+                executeBatches(con, batches, updateCounts, executions);
+            }
+            if (!transactional) {
+                con.commit();
+                executions.transactionStatements++;
+            }
+            for (PendingWrite<?> write : writes) {
+                write.evict();
+            }
+            if (autoCommit) {
+                // 恢复autoCommit也需要一次往返
+                executions.transactionStatements++;
+            }
+            SessionResult result = new SessionResult(updateCounts, executions.statements, executions.batches,
+                    executions.transactionStatements);
+            logger.debug("Session flushed: " + result);
+            return result;
+        } catch (SQLException ex) {
+            rollback(con, transactional);
+            throw jdbcTemplate.getExceptionTranslator().translate("SessionFlush", null, ex);
+        } catch (RuntimeException ex) {
+            rollback(con, transactional);
+            throw ex;
+        } finally {
+            if (autoCommit) {
+                try {
+                    con.setAutoCommit(autoCommit);
+                } catch (SQLException ex) {
+                    logger.debug("Could not reset autoCommit.", ex);
+                }
+            }
+            DataSourceUtils.releaseConnection(con, dataSource);
+        }
+    }
+
+    /**
+     * 按当前设置分组后，每个批次中的操作序号，按执行顺序排列。不执行写入
+     *
+     * @return
+     */
+    List<List<Integer>> plan() {
+        List<List<Integer>> plan = new ArrayList<>();
+        for (Batch batch : group(pending)) {
+            List<Integer> operations = new ArrayList<>(batch.writes.size());
+            for (PendingWrite<?> write : batch.writes) {
+                operations.add(write.index);
+            }
+            plan.add(operations);
+        }
+        return plan;
+    }
+
+    /**
+     * 按SQL分组，写入可以加入前面最近的相同SQL的批次，前提是之后的批次中没有同一条记录
+     */
+    private List<Batch> group(List<PendingWrite<?>> writes) {
+        List<Batch> batches = new ArrayList<>();
+        Map<String, Integer> lastBatchBySql = new HashMap<>();
+        for (PendingWrite<?> write : writes) {
+            String sql = write.sqlTemplate.getSql();
+            Integer last = lastBatchBySql.get(sql);
+            boolean join = last != null && (last == batches.size() - 1 || reorder);
+            if (join && write.rowKey != null) {
+                for (int i = last + 1; i < batches.size() && join; i++) {
+                    join = !batches.get(i).rowKeys.contains(write.rowKey);
+                }
+            }
+            Batch batch;
+            if (join) {
+                batch = batches.get(last);
+            } else {
+                batch = new Batch(sql);
+                batches.add(batch);
+                lastBatchBySql.put(sql, batches.size() - 1);
+            }
+            batch.add(write);
+        }
+        return batches;
+    }
+
+    /**
+     * 每个批次执行一次：单条时executeUpdate，多条时executeBatch
+     */
+    private void executeBatches(Connection con, List<Batch> batches, int[] updateCounts, Executions executions)
+            throws SQLException {
+        for (Batch batch : batches) {
+            logger.debug("{sql: \"" + batch.sql + "\"; batch:" + batch.writes.size() + "}");
+            PreparedStatement ps = con.prepareStatement(batch.sql);
+            try {
+                if (batch.writes.size() == 1) {
+                    PendingWrite<?> write = batch.writes.get(0);
+                    write.populate(ps, 0);
+                    updateCounts[write.index] = ps.executeUpdate();
+                } else {
+                    for (PendingWrite<?> write : batch.writes) {
+                        write.populate(ps, 0);
+                        ps.addBatch();
+                    }
+                    int[] counts = ps.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        updateCounts[batch.writes.get(i).index] = counts[i];
+                    }
+                    executions.batches++;
+                }
+                executions.statements++;
+            } finally {
+                JdbcUtils.closeStatement(ps);
+            }
+        }
+    }
+
+    /**
+     * 按批次顺序将语句拼接为多语句包，每包最多maxStatementsPerPacket条语句
+     */
+    private void executePackets(Connection con, List<Batch> batches, int[] updateCounts, Executions executions)
+            throws SQLException {
+        List<PendingWrite<?>> ordered = new ArrayList<>();
+        for (Batch batch : batches) {
+            ordered.addAll(batch.writes);
+        }
+        for (int from = 0; from < ordered.size(); from += maxStatementsPerPacket) {
+            List<PendingWrite<?>> packet = ordered.subList(from, Math.min(from + maxStatementsPerPacket,
+                    ordered.size()));
+            StringBuilder sql = new StringBuilder();
+            for (PendingWrite<?> write : packet) {
+                if (sql.length() > 0) {
+                    sql.append(";\n");
+                }
+                sql.append(write.sqlTemplate.getSql());
+            }
+            logger.debug("{sql: \"" + sql + "\"; statements:" + packet.size() + "}");
+            PreparedStatement ps = con.prepareStatement(sql.toString());
+            try {
+                int offset = 0;
+                for (PendingWrite<?> write : packet) {
+                    write.populate(ps, offset);
+                    offset += write.sqlTemplate.getParameters().length;
+                }
+                ps.execute();
+                for (PendingWrite<?> write : packet) {
+                    updateCounts[write.index] = ps.getUpdateCount();
+                    ps.getMoreResults();
+                }
+                if (packet.size() > 1) {
+                    executions.batches++;
+                }
+                executions.statements++;
+            } finally {
+                JdbcUtils.closeStatement(ps);
+            }
+        }
+    }
+
+    private static void rollback(Connection con, boolean transactional) {
+        if (transactional) {
+            // 由外部事务回滚
+            return;
+        }
+        try {
+            con.rollback();
+        } catch (SQLException ex) {
+            logger.debug("Could not roll back session.", ex);
+        }
+    }
+
+    /**
+     * flush中执行的语句计数
+     */
+    private static final class Executions {
+
+        private int statements = 0;
+        private int batches = 0;
+        private int transactionStatements = 0;
+    }
+
+    /**
+     * 使用同一条SQL的一组写入，以及其中涉及的记录
+     */
+    private static final class Batch {
+
+        private final String sql;
+        private final List<PendingWrite<?>> writes = new ArrayList<>();
+        private final Set<Object> rowKeys = new HashSet<>();
+
+        private Batch(String sql) {
+            this.sql = sql;
+        }
+
+        private void add(PendingWrite<?> write) {
+            writes.add(write);
+            if (write.rowKey != null) {
+                rowKeys.add(write.rowKey);
+            }
+        }
+    }
+
+    /**
+     * 一条记录的写入
+     */
+    private static final class PendingWrite<M extends Message> {
+
+        private final int index;
+        private final JdbcProtobufTemplate<M> template;
+        private final M message;
+        private final SqlTemplate sqlTemplate;
+        private final Object rowKey;
+
+        private PendingWrite(int index, JdbcProtobufTemplate<M> template, M message, SqlTemplate sqlTemplate,
+                             Object rowKey) {
+            this.index = index;
+            this.template = template;
+            this.message = message;
+            this.sqlTemplate = sqlTemplate;
+            this.rowKey = rowKey;
+        }
+
+        private void populate(PreparedStatement ps, int offset) throws SQLException {
+            template.getMessageSql().populate(ps, offset, sqlTemplate, message);
+        }
+
+        private void evict() {
+            template.evict(message);
+        }
+    }
+}
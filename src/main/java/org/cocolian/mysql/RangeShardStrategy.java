@@ -0,0 +1,43 @@
+package org.cocolian.mysql;
+
+import java.util.Arrays;
+
+/**
+ * 按数值区间分片的策略。第i个分片保存小于<code>upperBounds[i]</code>且不小于<code>upperBounds[i-1]</code>的记录。
+ *
+ * @version 1.0.0
+ */
+public class RangeShardStrategy implements ShardStrategy {
+
+    private final long[] upperBounds;
+
+    /**
+     * @param upperBounds 每个分片的上界（不包含），必须递增，个数与分片数量相同
+     */
+    public RangeShardStrategy(long... upperBounds) {
+        for (int i = 1; i < upperBounds.length; i++) {
+            if (upperBounds[i] <= upperBounds[i - 1]) {
+                throw new IllegalArgumentException("upperBounds must be increasing: " + Arrays.toString(upperBounds));
+            }
+        }
+        this.upperBounds = upperBounds.clone();
+    }
+
+    @Override
+    public int shardOf(Object shardKeyValue, int shardCount) {
+        if (upperBounds.length != shardCount) {
+            throw new IllegalArgumentException("Expect " + shardCount + " ranges, but got " + upperBounds.length);
+        }
+        if (!(shardKeyValue instanceof Number)) {
+            throw new IllegalArgumentException("Range shard key must be a number: " + shardKeyValue);
+        }
+        long value = ((Number) shardKeyValue).longValue();
+        int index = Arrays.binarySearch(upperBounds, value);
+        // 等于上界时属于下一个分片
+        int shard = index >= 0 ? index + 1 : -index - 1;
+        if (shard >= upperBounds.length) {
+            throw new IllegalArgumentException("Shard key out of range: " + value);
+        }
+        return shard;
+    }
+}
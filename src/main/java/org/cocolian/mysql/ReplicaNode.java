@@ -0,0 +1,71 @@
+package org.cocolian.mysql;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个只读副本数据源，记录正在执行的查询数和查询耗时的指数移动平均值，供{@link LoadBalancer}选择。
+ *
+ * @version 1.0.0
+ */
+public final class ReplicaNode {
+
+    /**
+     * 耗时移动平均的衰减系数
+     */
+    private static final double ALPHA = 0.2;
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile double latencyNanos = 0;
+
+    ReplicaNode(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = new CancellableJdbcTemplate(dataSource);
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    /**
+     * 正在执行的查询数
+     *
+     * @return
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * 查询耗时的移动平均值，没有查询过时为0
+     *
+     * @return
+     */
+    public double getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    void end(long elapsedNanos) {
+        outstanding.decrementAndGet();
+        double latency = latencyNanos;
+        // 并发更新时可能丢失个别样本，对移动平均没有影响
+        latencyNanos = latency == 0 ? elapsedNanos : latency + ALPHA * (elapsedNanos - latency);
+    }
+
+    @Override
+    public String toString() {
+        return "{outstanding:" + outstanding.get() + "; latency:" + (long) latencyNanos + "ns}";
+    }
+}
@@ -0,0 +1,186 @@
+package org.cocolian.mysql;
+
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并并发的相同读请求（single-flight）：同一个key同时只有一个线程访问数据库，
+ * 其它线程等待并得到同一个结果或者同一个异常。查询结束后立即移除，不做任何缓存，
+ * 之后的请求会重新查询。
+ * <p>
+ * 查询在第一个请求的线程中执行，等待超时只影响等待的线程，不会取消正在执行的查询。
+ * <p>
+ * 每次写入分配一个递增的序号，查询开始时记下当前序号。线程写入之后，只加入在它最近一次写入之后开始的查询，
+ * 否则自己查询并替换掉旧的查询，之后的请求合并到新的查询上，避免写入的线程读到写入之前的结果。
+ *
+ * @version 1.0.0
+ */
+public final class RequestCoalescer {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final long timeoutMillis;
+    private final ConcurrentMap<Object, Flight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong writeEpoch = new AtomicLong();
+    private final ThreadLocal<Long> lastWriteEpoch = new ThreadLocal<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong writeBypasses = new AtomicLong();
+
+    /**
+     * @param timeoutMillis 等待其它线程查询结果的最长时间，为0时一直等待
+     */
+    RequestCoalescer(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 记录当前线程完成了一次写入，应在写入执行之后调用
+     */
+    void recordWrite() {
+        lastWriteEpoch.set(writeEpoch.incrementAndGet());
+    }
+
+    /**
+     * 执行查询，key相同的查询正在执行、并且在当前线程最近一次写入之后才开始时等待它的结果
+     *
+     * @param key    需要正确实现equals和hashCode
+     * @param loader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    <V> V execute(Object key, Callable<V> loader) {
+        Flight flight = new Flight((Callable<Object>) loader, writeEpoch.get());
+        Long lastWrite = lastWriteEpoch.get();
+        while (true) {
+            Flight existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null) {
+                break;
+            }
+            if (lastWrite == null || existing.startEpoch >= lastWrite) {
+                coalesced.incrementAndGet();
+                return (V) await(existing, timeoutMillis);
+            }
+            // 正在执行的查询在本线程写入之前开始，可能读不到这次写入
+            if (inFlight.replace(key, existing, flight)) {
+                writeBypasses.incrementAndGet();
+                break;
+            }
+        }
+        executions.incrementAndGet();
+        try {
+            flight.run();
+        } finally {
+            inFlight.remove(key, flight);
+        }
+        return (V) await(flight, 0);
+    }
+
+    private Object await(Flight task, long timeoutMillis) {
+        try {
+            return timeoutMillis > 0 ? task.get(timeoutMillis, TimeUnit.MILLISECONDS) : task.get();
+        } catch (TimeoutException ex) {
+            timeouts.incrementAndGet();
+            throw new QueryTimeoutException("Timed out after " + timeoutMillis + "ms waiting for coalesced query.", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("Interrupted while waiting for coalesced query.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new DataRetrievalFailureException("Error in coalesced query.", ex.getCause());
+        }
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 实际访问数据库的次数
+     *
+     * @return
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * 没有访问数据库、等待其它线程结果的调用次数
+     *
+     * @return
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * 等待超时的调用次数
+     *
+     * @return
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * 因为正在执行的查询开始于当前线程最近一次写入之前而没有合并、自己查询的次数
+     *
+     * @return
+     */
+    public long getWriteBypasses() {
+        return writeBypasses.get();
+    }
+
+    /**
+     * 被合并的调用占全部调用的比例
+     *
+     * @return
+     */
+    public double getCoalescedRate() {
+        long total = executions.get() + coalesced.get();
+        return total == 0 ? 0 : (double) coalesced.get() / total;
+    }
+
+    /**
+     * 正在执行的查询数
+     *
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "{executions: " + executions.get() + ", coalesced: " + coalesced.get() + ", timeouts: "
+                + timeouts.get() + ", writeBypasses: " + writeBypasses.get() + ", inFlight: " + inFlight.size() + "}";
+    }
+
+    /**
+     * 正在执行的查询，以及开始时的写入序号
+     */
+    private static final class Flight extends FutureTask<Object> {
+
+        private final long startEpoch;
+
+        private Flight(Callable<Object> loader, long startEpoch) {
+            super(loader);
+            this.startEpoch = startEpoch;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.cocolian.mysql;
+
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * 逐行读取结果集的Spliterator，结果集读完或者调用<code>close()</code>时释放结果集、语句和连接。
+ *
+ * @param <T>
+ * @version 1.0.0
+ */
+final class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+
+    private final String sql;
+    private final DataSource dataSource;
+    private final Connection connection;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final RowMapper<T> rowMapper;
+    private final SQLExceptionTranslator exceptionTranslator;
+    private final Runnable onRelease;
+    private int rowNum = 0;
+    private boolean closed = false;
+
+    ResultSetSpliterator(String sql, DataSource dataSource, Connection connection, Statement statement,
+                         ResultSet resultSet, RowMapper<T> rowMapper, SQLExceptionTranslator exceptionTranslator) {
+        this(sql, dataSource, connection, statement, resultSet, rowMapper, exceptionTranslator, null);
+    }
+
+    /**
+     * @param onRelease 释放连接之后执行的回调，可以为null
+     */
+    ResultSetSpliterator(String sql, DataSource dataSource, Connection connection, Statement statement,
+                         ResultSet resultSet, RowMapper<T> rowMapper, SQLExceptionTranslator exceptionTranslator,
+                         Runnable onRelease) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        this.sql = sql;
+        this.dataSource = dataSource;
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.rowMapper = rowMapper;
+        this.exceptionTranslator = exceptionTranslator;
+        this.onRelease = onRelease;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed) {
+            return false;
+        }
+        T row;
+        try {
+            if (!resultSet.next()) {
+                close();
+                return false;
+            }
+            row = rowMapper.mapRow(resultSet, rowNum++);
+        } catch (SQLException ex) {
+            close();
+            throw exceptionTranslator.translate("StreamQuery", sql, ex);
+        }
+        action.accept(row);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            JdbcUtils.closeResultSet(resultSet);
+            JdbcUtils.closeStatement(statement);
+            DataSourceUtils.releaseConnection(connection, dataSource);
+            if (onRelease != null) {
+                onRelease.run();
+            }
+        }
+    }
+}
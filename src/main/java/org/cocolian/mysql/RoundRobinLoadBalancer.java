@@ -0,0 +1,19 @@
+package org.cocolian.mysql;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 依次轮流使用各个副本。
+ *
+ * @version 1.0.0
+ */
+public class RoundRobinLoadBalancer implements LoadBalancer {
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public ReplicaNode choose(List<ReplicaNode> replicas) {
+        return replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+    }
+}
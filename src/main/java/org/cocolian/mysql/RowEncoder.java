@@ -0,0 +1,292 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import org.cocolian.mysql.taglib.ColumnFieldOption;
+import org.cocolian.mysql.taglib.Taglib;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 将结果集的当前行直接编码为message的wire格式，不创建message和builder。
+ * 列和字段的对应关系、读取方式与{@link RowMappingPlan}相同，编码结果解析后与映射得到的message相等；
+ * 列按字段编号排序，所以和<code>message.toByteArray()</code>的字节也相同。
+ * <p>
+ * 每一行先读取所有列并计算编码长度，再由调用方准备好空间写入。读取的值保存在按列复用的数组中，
+ * 数值不装箱。一个编码器只能在一个线程中使用。
+ *
+ * @version 1.0.0
+ */
+final class RowEncoder {
+
+    private final int[] columns;
+    private final FieldDescriptor[] fields;
+    private final ColumnReader[] readers;
+    private final boolean[] writeDefaults;
+    private final boolean[] present;
+    private final long[] longs;
+    private final double[] doubles;
+    private final byte[][] bytes;
+
+    private RowEncoder(List<Column> plan) {
+        int count = plan.size();
+        this.columns = new int[count];
+        this.fields = new FieldDescriptor[count];
+        this.readers = new ColumnReader[count];
+        this.writeDefaults = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            Column column = plan.get(i);
+            columns[i] = column.index;
+            fields[i] = column.field;
+            readers[i] = column.reader;
+            // proto3中默认值不序列化，oneof中的字段除外
+            writeDefaults[i] = column.field.getFile().getSyntax() != FileDescriptor.Syntax.PROTO3
+                    || column.field.getContainingOneof() != null;
+        }
+        this.present = new boolean[count];
+        this.longs = new long[count];
+        this.doubles = new double[count];
+        this.bytes = new byte[count][];
+    }
+
+    /**
+     * 根据结果集元数据生成编码器，列的匹配规则同{@link RowMappingPlan#compile}
+     *
+     * @param descriptor
+     * @param metaData
+     * @return
+     * @throws SQLException
+     */
+    static RowEncoder compile(Descriptors.Descriptor descriptor, ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        List<Column> plan = new ArrayList<>(columnCount);
+        ColumnMappings columnMappings = ColumnMappings.of(descriptor);
+        for (int i = 1; i <= columnCount; i++) {
+            String label = metaData.getColumnLabel(i);
+            ColumnMapping column = columnMappings.getColumn(label);
+            FieldDescriptor fieldDescriptor = column != null ? column.getField() : descriptor.findFieldByName(label);
+            if (fieldDescriptor == null)
+                continue;
+            ColumnFieldOption columnFieldOption = fieldDescriptor.getOptions().getExtension(Taglib.columnOption);
+            ColumnReader reader = ColumnReader.of(fieldDescriptor, columnFieldOption, metaData.getColumnType(i));
+            if (reader == null)
+                continue;
+            plan.add(new Column(i, fieldDescriptor, reader));
+        }
+        Collections.sort(plan, new Comparator<Column>() {
+
+            @Override
+            public int compare(Column o1, Column o2) {
+                return Integer.compare(o1.field.getNumber(), o2.field.getNumber());
+            }
+
+        });
+        return new RowEncoder(plan);
+    }
+
+    /**
+     * 读取当前行的所有列
+     *
+     * @param rs
+     * @return 当前行编码后的字节数
+     * @throws SQLException
+     */
+    int read(ResultSet rs) throws SQLException {
+        int size = 0;
+        for (int i = 0; i < readers.length; i++) {
+            present[i] = readColumn(rs, i);
+            if (present[i]) {
+                size += computeSize(i);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 写入{@link #read}读取的行，写入的字节数等于read的返回值
+     *
+     * @param output
+     * @throws IOException
+     */
+    void write(CodedOutputStream output) throws IOException {
+        for (int i = 0; i < readers.length; i++) {
+            if (present[i]) {
+                writeColumn(output, i);
+            }
+        }
+    }
+
+    /**
+     * 读取一列，数据库中为NULL、未知的枚举值以及不需要序列化的默认值返回false
+     */
+    private boolean readColumn(ResultSet rs, int i) throws SQLException {
+        int column = columns[i];
+        boolean writeDefault = writeDefaults[i];
+        switch (readers[i]) {
+            case INT:
+                longs[i] = rs.getInt(column);
+                return !rs.wasNull() && (writeDefault || longs[i] != 0);
+            case LONG:
+                longs[i] = rs.getLong(column);
+                return !rs.wasNull() && (writeDefault || longs[i] != 0);
+            case DATETIME: {
+                Timestamp value = rs.getTimestamp(column);
+                if (value == null) {
+                    return false;
+                }
+                longs[i] = value.getTime();
+                return writeDefault || longs[i] != 0;
+            }
+            case ENUM:
+                longs[i] = rs.getInt(column);
+                return !rs.wasNull() && fields[i].getEnumType().findValueByNumber((int) longs[i]) != null
+                        && (writeDefault || longs[i] != 0);
+            case BOOLEAN:
+                longs[i] = rs.getBoolean(column) ? 1 : 0;
+                return !rs.wasNull() && (writeDefault || longs[i] != 0);
+            case FLOAT:
+                doubles[i] = rs.getFloat(column);
+                return !rs.wasNull() && (writeDefault || doubles[i] != 0);
+            case DOUBLE:
+                doubles[i] = rs.getDouble(column);
+                return !rs.wasNull() && (writeDefault || doubles[i] != 0);
+            case STRING: {
+                String value = rs.getString(column);
+                if (value == null) {
+                    return false;
+                }
+                bytes[i] = value.getBytes(StandardCharsets.UTF_8);
+                return writeDefault || bytes[i].length > 0;
+            }
+            case BYTES:
+            case BLOB_BYTES:
+                bytes[i] = rs.getBytes(column);
+                return bytes[i] != null && (writeDefault || bytes[i].length > 0);
+            case PROTOBUF_BLOB:
+                // 已经是带tag的wire格式，原样复制
+                bytes[i] = rs.getBytes(column);
+                return bytes[i] != null && bytes[i].length > 0;
+            default:
+                throw new IllegalStateException("Unsupported column reader " + readers[i] + ".");
+        }
+    }
+
+    private int computeSize(int i) {
+        if (readers[i] == ColumnReader.PROTOBUF_BLOB) {
+            return bytes[i].length;
+        }
+        int number = fields[i].getNumber();
+        switch (fields[i].getType()) {
+            case INT32:
+                return CodedOutputStream.computeInt32Size(number, (int) longs[i]);
+            case UINT32:
+                return CodedOutputStream.computeUInt32Size(number, (int) longs[i]);
+            case SINT32:
+                return CodedOutputStream.computeSInt32Size(number, (int) longs[i]);
+            case FIXED32:
+                return CodedOutputStream.computeFixed32Size(number, (int) longs[i]);
+            case SFIXED32:
+                return CodedOutputStream.computeSFixed32Size(number, (int) longs[i]);
+            case ENUM:
+                return CodedOutputStream.computeEnumSize(number, (int) longs[i]);
+            case INT64:
+                return CodedOutputStream.computeInt64Size(number, longs[i]);
+            case UINT64:
+                return CodedOutputStream.computeUInt64Size(number, longs[i]);
+            case SINT64:
+                return CodedOutputStream.computeSInt64Size(number, longs[i]);
+            case FIXED64:
+                return CodedOutputStream.computeFixed64Size(number, longs[i]);
+            case SFIXED64:
+                return CodedOutputStream.computeSFixed64Size(number, longs[i]);
+            case BOOL:
+                return CodedOutputStream.computeBoolSize(number, longs[i] != 0);
+            case FLOAT:
+                return CodedOutputStream.computeFloatSize(number, (float) doubles[i]);
+            case DOUBLE:
+                return CodedOutputStream.computeDoubleSize(number, doubles[i]);
+            default:
+                return CodedOutputStream.computeByteArraySize(number, bytes[i]);
+        }
+    }
+
+    private void writeColumn(CodedOutputStream output, int i) throws IOException {
+        if (readers[i] == ColumnReader.PROTOBUF_BLOB) {
+            output.writeRawBytes(bytes[i], 0, bytes[i].length);
+            return;
+        }
+        int number = fields[i].getNumber();
+        switch (fields[i].getType()) {
+            case INT32:
+                output.writeInt32(number, (int) longs[i]);
+                break;
+            case UINT32:
+                output.writeUInt32(number, (int) longs[i]);
+                break;
+            case SINT32:
+                output.writeSInt32(number, (int) longs[i]);
+                break;
+            case FIXED32:
+                output.writeFixed32(number, (int) longs[i]);
+                break;
+            case SFIXED32:
+                output.writeSFixed32(number, (int) longs[i]);
+                break;
+            case ENUM:
+                output.writeEnum(number, (int) longs[i]);
+                break;
+            case INT64:
+                output.writeInt64(number, longs[i]);
+                break;
+            case UINT64:
+                output.writeUInt64(number, longs[i]);
+                break;
+            case SINT64:
+                output.writeSInt64(number, longs[i]);
+                break;
+            case FIXED64:
+                output.writeFixed64(number, longs[i]);
+                break;
+            case SFIXED64:
+                output.writeSFixed64(number, longs[i]);
+                break;
+            case BOOL:
+                output.writeBool(number, longs[i] != 0);
+                break;
+            case FLOAT:
+                output.writeFloat(number, (float) doubles[i]);
+                break;
+            case DOUBLE:
+                output.writeDouble(number, doubles[i]);
+                break;
+            default:
+                // string和bytes的wire格式相同，string已经按UTF-8编码
+                output.writeByteArray(number, bytes[i]);
+                break;
+        }
+    }
+
+    private static final class Column {
+
+        final int index;
+        final FieldDescriptor field;
+        final ColumnReader reader;
+
+        Column(int index, FieldDescriptor field, ColumnReader reader) {
+            this.index = index;
+            this.field = field;
+            this.reader = reader;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.cocolian.mysql.taglib.ColumnFieldOption;
+import org.cocolian.mysql.taglib.Taglib;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 结果集到message的映射计划。
+ * 每个<code>ResultSet</code>只在第一行时读取一次元数据，确定列序号对应的字段和读取器，
+ * 之后每一行都直接按计划读取，不再访问元数据、也不再按列名查找字段。
+ *
+ * @version 1.0.0
+ */
+final class RowMappingPlan {
+
+    private final int[] columns;
+    private final FieldDescriptor[] fields;
+    private final ColumnReader[] readers;
+
+    private RowMappingPlan(int[] columns, FieldDescriptor[] fields, ColumnReader[] readers) {
+        this.columns = columns;
+        this.fields = fields;
+        this.readers = readers;
+    }
+
+    /**
+     * 根据结果集元数据生成映射计划，列标签先按<code>column_name</code>匹配，再按字段名匹配，
+     * 找不到对应字段或者类型不支持的列会被忽略
+     *
+     * @param descriptor
+     * @param metaData
+     * @return
+     * @throws SQLException
+     */
+    static RowMappingPlan compile(Descriptors.Descriptor descriptor, ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();// 列个数
+        List<Integer> columns = new ArrayList<>(columnCount);
+        List<FieldDescriptor> fields = new ArrayList<>(columnCount);
+        List<ColumnReader> readers = new ArrayList<>(columnCount);
+        ColumnMappings columnMappings = ColumnMappings.of(descriptor);
+        for (int i = 1; i <= columnCount; i++) {
+            String label = metaData.getColumnLabel(i);
+            ColumnMapping column = columnMappings.getColumn(label);
+            FieldDescriptor fieldDescriptor = column != null ? column.getField() : descriptor.findFieldByName(label);
+            if (fieldDescriptor == null)
+                continue;// 如果为空，继续下一个
+            ColumnFieldOption columnFieldOption = fieldDescriptor.getOptions().getExtension(Taglib.columnOption);
+            ColumnReader reader = ColumnReader.of(fieldDescriptor, columnFieldOption, metaData.getColumnType(i));
+            if (reader == null)
+                continue;
+            columns.add(i);
+            fields.add(fieldDescriptor);
+            readers.add(reader);
+        }
+        int[] columnIndexes = new int[columns.size()];
+        for (int i = 0; i < columnIndexes.length; i++) {
+            columnIndexes[i] = columns.get(i);
+        }
+        return new RowMappingPlan(columnIndexes, fields.toArray(new FieldDescriptor[fields.size()]),
+                readers.toArray(new ColumnReader[readers.size()]));
+    }
+
+    /**
+     * 按计划将当前行写入builder
+     *
+     * @param rs
+     * @param builder
+     * @throws SQLException
+     */
+    void populate(ResultSet rs, Message.Builder builder) throws SQLException {
+        for (int i = 0; i < readers.length; i++) {
+            readers[i].readInto(rs, columns[i], fields[i], builder);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * 使用固定SQL写入一条记录，供子类（例如protoc-gen-dao生成的DAO）按类型绑定参数，
+ * 见{@link JdbcProtobufTemplate#write}和{@link JdbcProtobufTemplate#writeAll}。
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public interface RowWriter<M extends Message> {
+
+    /**
+     * 写入给定表的SQL，有分表时表名由{@link JdbcProtobufTemplate#getTableName}按记录决定
+     *
+     * @param tableName
+     * @return
+     */
+    String getSql(String tableName);
+
+    /**
+     * 按SQL的参数顺序绑定记录的值
+     *
+     * @param ps
+     * @param message
+     * @throws SQLException
+     */
+    void bind(PreparedStatement ps, M message) throws SQLException;
+}
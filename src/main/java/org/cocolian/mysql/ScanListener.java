@@ -0,0 +1,17 @@
+package org.cocolian.mysql;
+
+/**
+ * 主键范围扫描的进度监听器，见{@link KeysetScanner#scan}。
+ * 并行扫描时由各个分段的线程调用，实现需要线程安全。
+ *
+ * @version 1.0.0
+ */
+public interface ScanListener {
+
+    /**
+     * 每个分段每读完一页调用一次，保存{@link ScanProgress#getCheckpoint()}可以在中断后继续扫描
+     *
+     * @param progress 分段当前的进度
+     */
+    void onProgress(ScanProgress progress);
+}
@@ -0,0 +1,102 @@
+package org.cocolian.mysql;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 主键范围扫描的参数，见{@link KeysetScanner#scan}
+ *
+ * @version 1.0.0
+ */
+public final class ScanOptions {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int parallelism = 1;
+    private Executor executor;
+    private Object startAfter;
+    private List<ScanSlice> slices = Collections.emptyList();
+    private ScanListener listener;
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * 每页的记录数，即每次查询的limit
+     *
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * 并行的分段数。主键为整数时按最小值到最大值等分为多个分段，每个分段使用一个连接；
+     * 其它类型的主键只能顺序扫描。默认为1。
+     *
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 执行分段的线程池，默认为<code>ForkJoinPool.commonPool()</code>
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Object getStartAfter() {
+        return startAfter;
+    }
+
+    /**
+     * 从大于该主键的记录开始扫描，用于从单个检查点继续
+     *
+     * @param startAfter
+     */
+    public void setStartAfter(Object startAfter) {
+        this.startAfter = startAfter;
+    }
+
+    public List<ScanSlice> getSlices() {
+        return slices;
+    }
+
+    /**
+     * 直接指定分段，通常是上次扫描保存的{@link ScanProgress#getCheckpoint()}。设置后忽略startAfter和parallelism。
+     *
+     * @param slices
+     */
+    public void setSlices(List<ScanSlice> slices) {
+        this.slices = slices == null ? Collections.<ScanSlice>emptyList() : slices;
+    }
+
+    public ScanListener getListener() {
+        return listener;
+    }
+
+    public void setListener(ScanListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,81 @@
+package org.cocolian.mysql;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主键范围扫描中一个分段的进度和吞吐量
+ *
+ * @version 1.0.0
+ */
+public final class ScanProgress {
+
+    private final ScanSlice slice;
+    private final Object lastKey;
+    private final long rows;
+    private final long pages;
+    private final long elapsedNanos;
+    private final boolean finished;
+
+    ScanProgress(ScanSlice slice, Object lastKey, long rows, long pages, long elapsedNanos, boolean finished) {
+        this.slice = slice;
+        this.lastKey = lastKey;
+        this.rows = rows;
+        this.pages = pages;
+        this.elapsedNanos = elapsedNanos;
+        this.finished = finished;
+    }
+
+    /**
+     * 本次扫描开始时的分段
+     *
+     * @return
+     */
+    public ScanSlice getSlice() {
+        return slice;
+    }
+
+    /**
+     * 已处理的最后一条记录的主键，还没有读到记录时为null
+     *
+     * @return
+     */
+    public Object getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * 剩余未扫描的范围，用于继续扫描
+     *
+     * @return
+     */
+    public ScanSlice getCheckpoint() {
+        return new ScanSlice(slice.getIndex(), lastKey != null ? lastKey : slice.getStartAfter(), slice.getEndAt());
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getPages() {
+        return pages;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public double getRowsPerSecond() {
+        return elapsedNanos <= 0 ? 0 : rows * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "{slice: " + slice.getIndex() + ", lastKey: " + lastKey + ", rows: " + rows + ", pages: " + pages
+                + ", elapsedMillis: " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + ", rowsPerSecond: "
+                + String.format("%.1f", getRowsPerSecond()) + ", finished: " + finished + "}";
+    }
+}
@@ -0,0 +1,42 @@
+package org.cocolian.mysql;
+
+/**
+ * 主键范围扫描的一个分段，范围为 (startAfter, endAt]，null表示不限。
+ * 保存每个分段的检查点，通过{@link ScanOptions#setSlices}可以从中断处继续扫描。
+ *
+ * @version 1.0.0
+ */
+public final class ScanSlice {
+
+    private final int index;
+    private final Object startAfter;
+    private final Object endAt;
+
+    /**
+     * @param index      分段序号
+     * @param startAfter 从大于该主键的记录开始，null表示从第一条开始
+     * @param endAt      到小于等于该主键的记录为止，null表示到最后一条
+     */
+    public ScanSlice(int index, Object startAfter, Object endAt) {
+        this.index = index;
+        this.startAfter = startAfter;
+        this.endAt = endAt;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Object getStartAfter() {
+        return startAfter;
+    }
+
+    public Object getEndAt() {
+        return endAt;
+    }
+
+    @Override
+    public String toString() {
+        return "{index: " + index + ", startAfter: " + startAfter + ", endAt: " + endAt + "}";
+    }
+}
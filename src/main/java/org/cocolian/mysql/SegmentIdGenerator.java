@@ -0,0 +1,293 @@
+package org.cocolian.mysql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 号段（hi-lo）方式的ID生成器：每次在一个事务中从序列表租用step个连续的ID，在内存中递增分配。
+ * 当前号段用掉prefetchRatio后，在后台线程中预取下一个号段，号段切换时通常不需要等待数据库。
+ * 分配ID只是对AtomicLong的递增，不加锁；进程重启时未用完的号段被丢弃，ID不连续但不会重复。
+ * <p>
+ * 序列表结构：
+ * <pre>
+ * create table id_segment (
+ *     name varchar(64) not null primary key,
+ *     max_id bigint not null
+ * );
+ * </pre>
+ * 名称不存在时自动插入，从1开始分配。
+ *
+ * @version 1.0.0
+ */
+public final class SegmentIdGenerator implements IdGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentIdGenerator.class);
+
+    public static final String DEFAULT_TABLE_NAME = "id_segment";
+    public static final double DEFAULT_PREFETCH_RATIO = 0.2;
+
+    private final DataSource dataSource;
+    private final String name;
+    private final int step;
+    private final String updateSql;
+    private final String selectSql;
+    private final String insertSql;
+    private volatile double prefetchRatio = DEFAULT_PREFETCH_RATIO;
+    private volatile Segment current = Segment.EMPTY;
+    private FutureTask<Segment> prefetch;
+    private final AtomicLong leases = new AtomicLong();
+
+    public SegmentIdGenerator(DataSource dataSource, String name, int step) {
+        this(dataSource, DEFAULT_TABLE_NAME, name, step);
+    }
+
+    /**
+     * @param dataSource 租用号段使用独立的连接，不参与调用方的事务
+     * @param tableName  序列表
+     * @param name       序列名称，通常为表名
+     * @param step       每个号段的ID数
+     */
+    public SegmentIdGenerator(DataSource dataSource, String tableName, String name, int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("step must be positive: " + step);
+        }
+        this.dataSource = dataSource;
+        this.name = name;
+        this.step = step;
+        this.updateSql = "update " + tableName + " set max_id = max_id + ? where name = ?";
+        this.selectSql = "select max_id from " + tableName + " where name = ?";
+        this.insertSql = "insert ignore into " + tableName + "(name, max_id) values(?, 0)";
+    }
+
+    public double getPrefetchRatio() {
+        return prefetchRatio;
+    }
+
+    /**
+     * 当前号段剩余不足该比例时预取下一个号段，默认为0.2；为0时不预取，号段用完时同步租用
+     *
+     * @param prefetchRatio
+     */
+    public void setPrefetchRatio(double prefetchRatio) {
+        this.prefetchRatio = prefetchRatio;
+    }
+
+    /**
+     * 已从数据库租用的号段数
+     *
+     * @return
+     */
+    public long getLeases() {
+        return leases.get();
+    }
+
+    @Override
+    public long nextId() {
+        while (true) {
+            Segment segment = current;
+            long id = segment.next.getAndIncrement();
+            if (id < segment.end) {
+                checkPrefetch(segment, id, id + 1);
+                return id;
+            }
+            switchSegment(segment);
+        }
+    }
+
+    /**
+     * 在当前号段中一次取得连续的count个ID，号段不足时剩余部分从下一个号段取
+     */
+    @Override
+    public long[] nextIds(int count) {
+        long[] ids = new long[count];
+        int filled = 0;
+        while (filled < count) {
+            Segment segment = current;
+            int n = count - filled;
+            long first = segment.next.getAndAdd(n);
+            long last = Math.min(first + n, segment.end);
+            for (long id = first; id < last; id++) {
+                ids[filled++] = id;
+            }
+            checkPrefetch(segment, first, last);
+            if (first + n > segment.end) {
+                switchSegment(segment);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 取到的 [from, to) 中包含预取点时触发预取
+     */
+    private void checkPrefetch(Segment segment, long from, long to) {
+        long prefetchId = segment.end - segment.prefetchAt;
+        if (segment.prefetchAt > 0 && from <= prefetchId && prefetchId < to) {
+            // 只有取到预取点的线程触发一次预取
+            startPrefetch();
+        }
+    }
+
+    private synchronized void startPrefetch() {
+        if (prefetch != null) {
+            return;
+        }
+        prefetch = new FutureTask<>(new Callable<Segment>() {
+
+            @Override
+            public Segment call() throws Exception {
+                return lease();
+            }
+
+        });
+        Thread thread = new Thread(prefetch, "id-segment-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 号段用完时切换到预取的号段，没有预取时同步租用
+     */
+    private synchronized void switchSegment(Segment exhausted) {
+        if (current != exhausted) {
+            // 其它线程已经切换
+            return;
+        }
+        Segment next = null;
+        if (prefetch != null) {
+            try {
+                next = prefetch.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new DataAccessResourceFailureException("Interrupted while leasing id segment " + name + ".", ex);
+            } catch (ExecutionException ex) {
+                logger.warn("Error in prefetching id segment " + name + ", retrying.", ex.getCause());
+            } finally {
+                prefetch = null;
+            }
+        }
+        current = next != null ? next : lease();
+    }
+
+    /**
+     * 在一个事务中将max_id增加step，返回 (旧max_id, 新max_id] 的号段
+     */
+    private Segment lease() {
+        Connection con = null;
+        boolean autoCommit = true;
+        try {
+            con = dataSource.getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            if (update(con) == 0) {
+                execute(con, insertSql);
+                if (update(con) == 0) {
+                    throw new DataAccessResourceFailureException("Could not lease id segment " + name + ".");
+                }
+            }
+            long max;
+            PreparedStatement ps = con.prepareStatement(selectSql);
+            try {
+                ps.setString(1, name);
+                ResultSet rs = ps.executeQuery();
+                try {
+                    rs.next();
+                    max = rs.getLong(1);
+                } finally {
+                    JdbcUtils.closeResultSet(rs);
+                }
+            } finally {
+                JdbcUtils.closeStatement(ps);
+            }
+            con.commit();
+            leases.incrementAndGet();
+            logger.debug("Leased id segment " + name + ": (" + (max - step) + ", " + max + "]");
+            return new Segment(max - step + 1, max + 1, (long) Math.ceil(step * prefetchRatio));
+        } catch (SQLException ex) {
+            rollback(con);
+            throw new SQLErrorCodeSQLExceptionTranslator(dataSource).translate("LeaseIdSegment", updateSql, ex);
+        } catch (RuntimeException ex) {
+            rollback(con);
+            throw ex;
+        } finally {
+            if (con != null) {
+                try {
+                    con.setAutoCommit(autoCommit);
+                } catch (SQLException ex) {
+                    logger.debug("Could not reset autoCommit.", ex);
+                }
+                JdbcUtils.closeConnection(con);
+            }
+        }
+    }
+
+    private int update(Connection con) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(updateSql);
+        try {
+            ps.setInt(1, step);
+            ps.setString(2, name);
+            return ps.executeUpdate();
+        } finally {
+            JdbcUtils.closeStatement(ps);
+        }
+    }
+
+    private void execute(Connection con, String sql) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(sql);
+        try {
+            ps.setString(1, name);
+            ps.executeUpdate();
+        } finally {
+            JdbcUtils.closeStatement(ps);
+        }
+    }
+
+    private static void rollback(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.rollback();
+        } catch (SQLException ex) {
+            logger.debug("Could not roll back id segment lease.", ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        Segment segment = current;
+        return "{name: " + name + ", step: " + step + ", next: " + segment.next.get() + ", end: " + segment.end
+                + ", leases: " + leases.get() + "}";
+    }
+
+    /**
+     * 号段 [next, end)，剩余prefetchAt个ID时触发预取
+     */
+    private static final class Segment {
+
+        static final Segment EMPTY = new Segment(0, 0, -1);
+
+        final AtomicLong next;
+        final long end;
+        final long prefetchAt;
+
+        Segment(long start, long end, long prefetchAt) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.cocolian.mysql;
+
+import java.util.Arrays;
+
+/**
+ * {@link ProtobufSession#flush()}的结果：每个操作的影响行数，以及执行的语句数和批次数。
+ * <p>
+ * 这里统计的是JDBC层的语句执行次数，不是网络往返次数：MySQL驱动只有在<code>rewriteBatchedStatements=true</code>时
+ * 才把一个批次改写为一条多值语句发送，否则executeBatch中的每一行仍然是一次单独的往返。
+ *
+ * @version 1.0.0
+ */
+public final class SessionResult {
+
+    private final int[] updateCounts;
+    private final int statements;
+    private final int batches;
+    private final int transactionStatements;
+
+    SessionResult(int[] updateCounts, int statements, int batches, int transactionStatements) {
+        this.updateCounts = updateCounts;
+        this.statements = statements;
+        this.batches = batches;
+        this.transactionStatements = transactionStatements;
+    }
+
+    /**
+     * 按记录顺序的影响行数，JDBC批量执行时可能为<code>Statement.SUCCESS_NO_INFO</code>
+     *
+     * @return
+     */
+    public int[] getUpdateCounts() {
+        return updateCounts.clone();
+    }
+
+    /**
+     * 操作的影响行数
+     *
+     * @param operation 记录时返回的操作序号
+     * @return
+     */
+    public int getUpdateCount(int operation) {
+        return updateCounts[operation];
+    }
+
+    public int getOperations() {
+        return updateCounts.length;
+    }
+
+    /**
+     * 执行写入的次数：executeUpdate、executeBatch以及多语句包的execute各计一次
+     *
+     * @return
+     */
+    public int getStatements() {
+        return statements;
+    }
+
+    /**
+     * 其中包含多个操作的批次（executeBatch或者多语句包）数
+     *
+     * @return
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * 会话自己开启和提交事务时执行的setAutoCommit和commit次数，加入外部事务时为0
+     *
+     * @return
+     */
+    public int getTransactionStatements() {
+        return transactionStatements;
+    }
+
+    @Override
+    public String toString() {
+        return "{operations: " + updateCounts.length + ", statements: " + statements + ", batches: " + batches
+                + ", transactionStatements: " + transactionStatements + ", updateCounts: "
+                + Arrays.toString(updateCounts) + "}";
+    }
+}
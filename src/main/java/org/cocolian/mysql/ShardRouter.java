@@ -0,0 +1,141 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.apache.commons.lang3.StringUtils;
+import org.cocolian.mysql.taglib.TableMessageOption;
+import org.cocolian.mysql.taglib.Taglib;
+import org.springframework.beans.InvalidPropertyException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 按<code>table_option</code>中的<code>name_pattern</code>、<code>shard_key</code>和<code>shard_count</code>
+ * 将记录路由到物理表和数据源。
+ * <p>
+ * name_pattern使用<code>String.format</code>格式，第一个参数为分片序号，第二个参数为数据源序号，
+ * 例如 "foo_%02d" 或者 "db%2$d.foo_%1$02d"。分片按顺序平均分配到各个数据源上。
+ *
+ * @version 1.0.0
+ */
+public class ShardRouter {
+
+    /**
+     * 分片查询SQL中表名的占位符
+     */
+    public static final String TABLE_PLACEHOLDER = "{table}";
+
+    /**
+     * 一个分片：物理表以及所在的数据源
+     */
+    public static final class Shard {
+        private final int index;
+        private final String tableName;
+        private final JdbcTemplate jdbcTemplate;
+
+        Shard(int index, String tableName, JdbcTemplate jdbcTemplate) {
+            this.index = index;
+            this.tableName = tableName;
+            this.jdbcTemplate = jdbcTemplate;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public JdbcTemplate getJdbcTemplate() {
+            return jdbcTemplate;
+        }
+
+        @Override
+        public String toString() {
+            return tableName + "#" + index;
+        }
+    }
+
+    private final FieldDescriptor shardKeyField;
+    private final ShardStrategy strategy;
+    private final List<Shard> shards;
+
+    /**
+     * @param descriptor message的描述，需要配置name_pattern和shard_key
+     * @param databases  分库的数据源，只分表不分库时只有一个
+     * @param strategy   分片策略，为null时使用{@link HashShardStrategy}
+     */
+    public ShardRouter(Descriptors.Descriptor descriptor, List<JdbcTemplate> databases, ShardStrategy strategy) {
+        TableMessageOption tableMessageOption = descriptor.getOptions().getExtension(Taglib.tableOption);
+        if (tableMessageOption == null || StringUtils.isBlank(tableMessageOption.getNamePattern())
+                || StringUtils.isBlank(tableMessageOption.getShardKey())) {
+            throw new InvalidPropertyException(ShardRouter.class, "table_option",
+                    "Message " + descriptor.getFullName() + " doesn't set 'name_pattern' and 'shard_key'.");
+        }
+        if (databases == null || databases.isEmpty()) {
+            throw new IllegalArgumentException("At least one database is required.");
+        }
+        this.shardKeyField = descriptor.findFieldByName(tableMessageOption.getShardKey());
+        if (this.shardKeyField == null) {
+            throw new InvalidPropertyException(ShardRouter.class, "shard_key",
+                    "Could not found shard key field " + tableMessageOption.getShardKey() + ".");
+        }
+        this.strategy = strategy == null ? new HashShardStrategy() : strategy;
+        int shardCount = tableMessageOption.getShardCount() > 0 ? tableMessageOption.getShardCount() : databases.size();
+        if (shardCount < databases.size()) {
+            throw new IllegalArgumentException("shard_count " + shardCount + " is less than databases " + databases.size());
+        }
+        List<Shard> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int database = (int) ((long) i * databases.size() / shardCount);
+            String tableName = String.format(tableMessageOption.getNamePattern(), i, database);
+            shards.add(new Shard(i, tableName, databases.get(database)));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    public FieldDescriptor getShardKeyField() {
+        return shardKeyField;
+    }
+
+    /**
+     * 所有分片
+     *
+     * @return
+     */
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * 根据分片字段的值路由
+     *
+     * @param shardKeyValue
+     * @return
+     */
+    public Shard route(Object shardKeyValue) {
+        if (shardKeyValue == null) {
+            throw new InvalidDataAccessApiUsageException("Shard key " + shardKeyField.getName() + " is required.");
+        }
+        return shards.get(strategy.shardOf(shardKeyValue, shards.size()));
+    }
+
+    /**
+     * 根据message中分片字段的值路由
+     *
+     * @param message
+     * @return
+     */
+    public Shard route(Message message) {
+        if (!message.hasField(shardKeyField)) {
+            throw new InvalidDataAccessApiUsageException("Shard key " + shardKeyField.getName() + " is required.");
+        }
+        return route(message.getField(shardKeyField));
+    }
+}
@@ -0,0 +1,18 @@
+package org.cocolian.mysql;
+
+/**
+ * 分片策略，根据分片字段的值计算所在的分片。
+ *
+ * @version 1.0.0
+ */
+public interface ShardStrategy {
+
+    /**
+     * 计算分片序号
+     *
+     * @param shardKeyValue 分片字段的值，不为null
+     * @param shardCount    分片数量
+     * @return 分片序号，从0开始，小于shardCount
+     */
+    int shardOf(Object shardKeyValue, int shardCount);
+}
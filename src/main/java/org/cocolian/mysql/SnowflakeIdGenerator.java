@@ -0,0 +1,116 @@
+package org.cocolian.mysql;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按时间生成的ID：41位毫秒时间戳（从2017-08-09开始）、10位节点号、12位序号，同一节点上单调递增。
+ * 不访问数据库，每个进程需要配置不同的节点号。
+ * 状态保存在一个AtomicLong中，通过CAS递增，不加锁；
+ * 同一毫秒内序号用完或者时钟回拨时，继续使用上一个时间戳之后的逻辑时间，不等待。
+ *
+ * @version 1.0.0
+ */
+public final class SnowflakeIdGenerator implements IdGenerator {
+
+    /**
+     * 2017-08-09 00:00:00 UTC
+     */
+    public static final long EPOCH = 1502236800000L;
+    public static final int WORKER_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long workerId;
+    /**
+     * 时间戳和序号：(millis - EPOCH) << SEQUENCE_BITS | sequence
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * @param workerId 节点号，0到{@link #MAX_WORKER_ID}
+     */
+    public SnowflakeIdGenerator(long workerId) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId must be between 0 and " + MAX_WORKER_ID + ": " + workerId);
+        }
+        this.workerId = workerId;
+    }
+
+    @Override
+    public long nextId() {
+        return toId(nextState(1));
+    }
+
+    @Override
+    public long[] nextIds(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; ) {
+            // 每次在同一毫秒内取尽可能多的序号
+            int n = (int) Math.min(count - i, SEQUENCE_MASK + 1);
+            long last = nextState(n);
+            for (long s = last - n + 1; s <= last; s++) {
+                ids[i++] = toId(s);
+            }
+        }
+        return ids;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * 从ID中取出生成时间
+     *
+     * @param id
+     * @return 毫秒时间戳
+     */
+    public static long getTimestamp(long id) {
+        return (id >>> (WORKER_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * 分配同一毫秒内连续的n个序号，返回最后一个的状态
+     */
+    private long nextState(int n) {
+        while (true) {
+            long current = state.get();
+            long next = nextState(current, System.currentTimeMillis(), n);
+            if (state.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * 根据当前状态和时钟计算分配n个序号之后的状态
+     *
+     * @param current 当前状态
+     * @param millis  当前时钟
+     * @param n       序号个数，不超过一毫秒内的序号数
+     * @return 最后一个序号的状态
+     */
+    static long nextState(long current, long millis, int n) {
+        long now = (millis - EPOCH) << SEQUENCE_BITS;
+        if (now > current) {
+            return now + n - 1;
+        }
+        if ((current & SEQUENCE_MASK) + n <= SEQUENCE_MASK) {
+            return current + n;
+        }
+        // 序号用完或者时钟回拨，进入下一个逻辑毫秒
+        return ((current >>> SEQUENCE_BITS) + 1 << SEQUENCE_BITS) + n - 1;
+    }
+
+    private long toId(long s) {
+        return (s >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS
+                | (s & SEQUENCE_MASK);
+    }
+
+    @Override
+    public String toString() {
+        return "{workerId: " + workerId + ", state: " + state.get() + "}";
+    }
+}
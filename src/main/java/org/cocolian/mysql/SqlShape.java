@@ -0,0 +1,75 @@
+package org.cocolian.mysql;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 生成SQL的形状，由操作类型、表名、参与的字段集合（按field index的位图）及附加条件决定。
+ * 相同形状的message生成完全相同的SQL，用作{@link SqlTemplateCache}的键。
+ *
+ * @version 1.0.0
+ */
+final class SqlShape {
+
+    enum Operation {
+        INSERT, UPDATE, PARTIAL_UPDATE, GUARDED_UPDATE, UPDATE_BY_CONDITION, SELECT, GET, GET_ALL, SCAN, UPSERT
+    }
+
+    private final Operation operation;
+    private final String tableName;
+    private final BitSet fields;
+    private final String[] extras;
+    private final int hash;
+
+    SqlShape(Operation operation, String tableName, BitSet fields, String... extras) {
+        this.operation = operation;
+        this.tableName = tableName;
+        this.fields = fields;
+        this.extras = extras;
+        int h = operation.hashCode();
+        h = 31 * h + (tableName == null ? 0 : tableName.hashCode());
+        h = 31 * h + fields.hashCode();
+        h = 31 * h + Arrays.hashCode(extras);
+        this.hash = h;
+    }
+
+    Operation getOperation() {
+        return operation;
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    BitSet getFields() {
+        return fields;
+    }
+
+    String[] getExtras() {
+        return extras;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SqlShape)) {
+            return false;
+        }
+        SqlShape other = (SqlShape) obj;
+        return hash == other.hash && operation == other.operation
+                && (tableName == null ? other.tableName == null : tableName.equals(other.tableName))
+                && fields.equals(other.fields) && Arrays.equals(extras, other.extras);
+    }
+
+    @Override
+    public String toString() {
+        return operation + "@" + tableName + fields + Arrays.toString(extras);
+    }
+}
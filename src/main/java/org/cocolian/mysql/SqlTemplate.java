@@ -0,0 +1,37 @@
+package org.cocolian.mysql;
+
+import java.util.List;
+
+/**
+ * 缓存的SQL语句，以及按占位符顺序需要绑定的message字段。
+ *
+ * @version 1.0.0
+ */
+final class SqlTemplate {
+
+    private final String sql;
+    private final ColumnMapping[] parameters;
+
+    SqlTemplate(String sql, List<ColumnMapping> parameters) {
+        this.sql = sql;
+        this.parameters = parameters.toArray(new ColumnMapping[parameters.size()]);
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    /**
+     * 按占位符顺序排列的字段，不包括调用方额外传入的条件参数
+     *
+     * @return
+     */
+    ColumnMapping[] getParameters() {
+        return parameters;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
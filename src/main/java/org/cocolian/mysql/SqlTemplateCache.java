@@ -0,0 +1,62 @@
+package org.cocolian.mysql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.List;
+
+/**
+ * 模板的SQL缓存，按{@link SqlShape}缓存生成好的SQL和参数字段顺序。
+ * 生成的SQL包含模板的主键列名等可以被子类覆盖的设置，所以每个模板实例一个，不在模板之间共享；
+ * 字段映射只与message类型有关，见{@link ColumnMappings}。
+ * 缓存有容量上限，按LRU淘汰， 多线程共享。
+ *
+ * @version 1.0.0
+ */
+final class SqlTemplateCache {
+
+    static final long DEFAULT_MAXIMUM_SIZE = 512;
+
+    private final ColumnMappings columns;
+    private final Cache<SqlShape, SqlTemplate> templates;
+
+    SqlTemplateCache(ColumnMappings columns) {
+        this(columns, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    SqlTemplateCache(ColumnMappings columns, long maximumSize) {
+        this.columns = columns;
+        this.templates = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * 按field number排序的字段映射
+     *
+     * @return
+     */
+    List<ColumnMapping> getColumns() {
+        return columns.getColumns();
+    }
+
+    /**
+     * 按列名查找字段映射，列名不区分大小写
+     *
+     * @param columnName
+     * @return 没有对应的列时返回null
+     */
+    ColumnMapping getColumn(String columnName) {
+        return columns.getColumn(columnName);
+    }
+
+    SqlTemplate get(SqlShape shape) {
+        return templates.getIfPresent(shape);
+    }
+
+    void put(SqlShape shape, SqlTemplate template) {
+        templates.put(shape, template);
+    }
+
+    long size() {
+        return templates.size();
+    }
+}
@@ -0,0 +1,282 @@
+package org.cocolian.mysql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在事务持有的连接上缓存<code>PreparedStatement</code>，每个连接按SQL文本做LRU淘汰。
+ * <p>
+ * 语句总是通过连接池借出的连接创建，连接池仍然跟踪这些语句，归还连接时照常关闭并回滚未提交的修改。
+ * 缓存按连接池借出的连接区分，<code>JdbcTemplate</code>传给回调的连接代理先取出其目标连接，
+ * 因此事务中的单条语句和批量语句共用同一份缓存。
+ * <p>
+ * <b>只有事务中的调用才在调用之间复用语句</b>：在Spring事务同步中，连接在事务结束前一直被当前线程持有，
+ * 事务结束时关闭该连接上缓存的所有语句。事务之外每次调用都会借还连接，连接池归还连接时会关闭其上的语句，
+ * 因此不缓存，语句直接创建，计为未命中，包括<code>update(String, List)</code>等非事务调用。
+ * 取出的语句是一个代理，<code>close()</code>时清除参数并放回缓存，因此可以直接交给<code>JdbcTemplate</code>使用。
+ * 同一条SQL在嵌套调用中同时使用时，第二次取出会创建新的语句，放回时多余的语句被关闭。
+ * <p>
+ * 跨连接借还的复用以及服务端预编译由MySQL驱动负责，在JDBC URL中设置
+ * <code>cachePrepStmts=true&amp;useServerPrepStmts=true</code>。
+ *
+ * @version 1.0.0
+ */
+public final class StatementCache {
+
+    private static Logger logger = LoggerFactory.getLogger(StatementCache.class);
+
+    private final int maxStatementsPerConnection;
+    private final Map<Connection, Statements> connections = new IdentityHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    StatementCache(int maxStatementsPerConnection) {
+        this.maxStatementsPerConnection = maxStatementsPerConnection;
+    }
+
+    /**
+     * 取出或者创建语句，使用完后调用close放回缓存
+     *
+     * @param con 连接池借出的连接
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        con = targetOf(con);
+        Statements statements = statementsOf(con);
+        if (statements == null) {
+            misses.incrementAndGet();
+            return con.prepareStatement(sql);
+        }
+        PreparedStatement ps = statements.take(sql);
+        if (ps != null && ps.isClosed()) {
+            ps = null;
+        }
+        if (ps == null) {
+            misses.incrementAndGet();
+            ps = con.prepareStatement(sql);
+        } else {
+            hits.incrementAndGet();
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new CachedStatement(statements, sql, ps));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 因为超过每个连接的缓存上限而关闭的语句数
+     *
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * 当前缓存了语句的连接数，即正在进行中的事务数
+     *
+     * @return
+     */
+    public int getConnectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    public int getMaxStatementsPerConnection() {
+        return maxStatementsPerConnection;
+    }
+
+    /**
+     * JdbcTemplate在ConnectionCallback中传入的是每次调用新建的代理，取出连接池借出的连接。
+     * 语句也在目标连接上创建，不经过代理对语句的设置
+     */
+    private static Connection targetOf(Connection con) {
+        while (con instanceof ConnectionProxy) {
+            con = ((ConnectionProxy) con).getTargetConnection();
+        }
+        return con;
+    }
+
+    /**
+     * 连接上的语句缓存，不在事务同步中时返回null。第一次使用连接时注册事务同步，事务结束时移除并关闭语句
+     */
+    private Statements statementsOf(final Connection con) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        synchronized (connections) {
+            Statements statements = connections.get(con);
+            if (statements == null) {
+                statements = new Statements();
+                connections.put(con, statements);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        evict(con);
+                    }
+
+                });
+            }
+            return statements;
+        }
+    }
+
+    /**
+     * 连接归还连接池之前关闭其上缓存的语句
+     */
+    private void evict(Connection con) {
+        Statements statements;
+        synchronized (connections) {
+            statements = connections.remove(con);
+        }
+        if (statements != null) {
+            statements.closeAll();
+        }
+    }
+
+    /**
+     * 一个连接上缓存的语句，按访问顺序淘汰
+     */
+    private final class Statements {
+
+        private final LinkedHashMap<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > maxStatementsPerConnection) {
+                            evictions.incrementAndGet();
+                            JdbcUtils.closeStatement(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+
+                };
+
+        synchronized PreparedStatement take(String sql) {
+            return statements.remove(sql);
+        }
+
+        synchronized void release(String sql, PreparedStatement ps) {
+            if (statements.containsKey(sql)) {
+                JdbcUtils.closeStatement(ps);
+            } else {
+                statements.put(sql, ps);
+            }
+        }
+
+        synchronized void closeAll() {
+            for (PreparedStatement ps : statements.values()) {
+                JdbcUtils.closeStatement(ps);
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * 取出的语句代理，close时放回缓存，并恢复被修改过的语句设置
+     */
+    private static final class CachedStatement implements InvocationHandler {
+
+        private final Statements statements;
+        private final String sql;
+        private final PreparedStatement target;
+        private boolean closed = false;
+        private boolean maxRowsChanged = false;
+        private boolean queryTimeoutChanged = false;
+        private boolean fetchSizeChanged = false;
+
+        private CachedStatement(Statements statements, String sql, PreparedStatement target) {
+            this.statements = statements;
+            this.sql = sql;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || target.isClosed();
+                case "setMaxRows":
+                    maxRowsChanged = true;
+                    break;
+                case "setQueryTimeout":
+                    queryTimeoutChanged = true;
+                    break;
+                case "setFetchSize":
+                    fetchSizeChanged = true;
+                    break;
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed.");
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        private void release() {
+            try {
+                target.clearParameters();
+                target.clearBatch();
+                if (maxRowsChanged) {
+                    target.setMaxRows(0);
+                }
+                if (queryTimeoutChanged) {
+                    target.setQueryTimeout(0);
+                }
+                if (fetchSizeChanged) {
+                    target.setFetchSize(0);
+                }
+                statements.release(sql, target);
+            } catch (SQLException ex) {
+                // 连接已失效，不再缓存
+                logger.debug("Could not reset cached statement, closing it.", ex);
+                JdbcUtils.closeStatement(target);
+            }
+        }
+    }
+}
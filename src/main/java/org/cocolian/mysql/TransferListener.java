@@ -0,0 +1,17 @@
+package org.cocolian.mysql;
+
+/**
+ * 导出和导入的进度监听器，见{@link MessageFileTransfer#exportTo}和{@link MessageFileTransfer#importFrom}。
+ * 导入时由多个写入线程调用，实现需要线程安全。
+ *
+ * @version 1.0.0
+ */
+public interface TransferListener {
+
+    /**
+     * 导出时每写入一定条数调用一次，导入时每次提交后调用一次
+     *
+     * @param stats 当前的进度
+     */
+    void onProgress(TransferStats stats);
+}
@@ -0,0 +1,64 @@
+package org.cocolian.mysql;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 导出或者导入的进度和吞吐量
+ *
+ * @version 1.0.0
+ */
+public final class TransferStats {
+
+    private final long messages;
+    private final long bytes;
+    private final long elapsedNanos;
+    private final boolean finished;
+
+    TransferStats(long messages, long bytes, long elapsedNanos, boolean finished) {
+        this.messages = messages;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+        this.finished = finished;
+    }
+
+    /**
+     * 导出时为已写入文件的记录数，导入时为已提交到数据库的记录数
+     *
+     * @return
+     */
+    public long getMessages() {
+        return messages;
+    }
+
+    /**
+     * 已写入或者已读取的文件字节数，包括长度前缀
+     *
+     * @return
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public double getMessagesPerSecond() {
+        return elapsedNanos <= 0 ? 0 : messages * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedNanos <= 0 ? 0 : bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "{messages: " + messages + ", bytes: " + bytes + ", elapsedMillis: "
+                + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + ", messagesPerSecond: "
+                + String.format("%.1f", getMessagesPerSecond()) + ", finished: " + finished + "}";
+    }
+}
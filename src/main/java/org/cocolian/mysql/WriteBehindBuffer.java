@@ -0,0 +1,523 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * partialUpdate的延迟写入缓冲区，适用于同一主键被频繁部分更新的表，如状态、计数字段。
+ * <ul>
+ * <li>同一主键的多次部分更新按<code>mergeFrom</code>的语义合并，后设置的字段覆盖先设置的字段</li>
+ * <li>缓冲的主键数达到<code>flushSize</code>或者距上次写入超过<code>flushIntervalMillis</code>时，
+ * 通过{@link JdbcProtobufTemplate#partialUpdateAll(java.util.Collection)}按SQL形状分组批量写入</li>
+ * <li>缓冲的主键数达到<code>maxPending</code>时，{@link #partialUpdate(Message)}阻塞直到写入腾出空间</li>
+ * <li>{@link #close()}时同步写入所有缓冲的记录</li>
+ * <li>写入失败的记录放回缓冲区，与失败期间同一主键的新修改合并（新修改覆盖），定时写入按指数退避重试；
+ * 同一主键连续失败超过<code>maxRetries</code>次后放弃，交给{@link WriteFailureListener}</li>
+ * </ul>
+ * 缓冲中尚未写入的修改对查询不可见。部分更新只设置字段的值，重复写入是幂等的，
+ * 所以批量写入部分成功时只重试失败和未执行的记录。
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public class WriteBehindBuffer<M extends Message> implements AutoCloseable {
+
+    private static Logger logger = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_MAX_RETRY_BACKOFF_MILLIS = 30000;
+
+    private final JdbcProtobufTemplate<M> template;
+    private final FieldDescriptor keyField;
+    private final int flushSize;
+    private final int maxPending;
+    private final long flushIntervalMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private LinkedHashMap<Object, M> pending = new LinkedHashMap<>();
+    private final Map<Object, Integer> attempts = new HashMap<>();
+    private volatile boolean closed = false;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long maxRetryBackoffMillis = DEFAULT_MAX_RETRY_BACKOFF_MILLIS;
+    private WriteFailureListener<M> failureListener;
+    private int consecutiveFailures = 0;
+    private volatile long retryAtNanos = 0;
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private volatile long lastFlushNanos = 0;
+
+    /**
+     * @param template            执行写入的模板，message必须配置primary_key
+     * @param flushSize           缓冲的主键数达到此值时触发写入
+     * @param maxPending          缓冲的最大主键数，达到时写入方阻塞
+     * @param flushIntervalMillis 定时写入的间隔（毫秒）
+     */
+    public WriteBehindBuffer(JdbcProtobufTemplate<M> template, int flushSize, int maxPending, long flushIntervalMillis) {
+        if (flushSize <= 0 || maxPending < flushSize) {
+            throw new IllegalArgumentException("Require 0 < flushSize <= maxPending: " + flushSize + ", " + maxPending);
+        }
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("flushIntervalMillis must be positive: " + flushIntervalMillis);
+        }
+        this.keyField = template.getPrimaryKeyField();
+        if (keyField == null) {
+            throw new IllegalArgumentException("This ProtoBuf file doesn't set 'primary_key' field.");
+        }
+        this.template = template;
+        this.flushSize = flushSize;
+        this.maxPending = maxPending;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "write-behind-" + keyField.getContainingType().getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                flushQuietly();
+            }
+
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 同一主键连续写入失败的最大重试次数，超过后放弃并通知{@link WriteFailureListener}，
+     * 默认为{@link #DEFAULT_MAX_RETRIES}
+     *
+     * @param maxRetries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getMaxRetryBackoffMillis() {
+        return maxRetryBackoffMillis;
+    }
+
+    /**
+     * 写入失败后定时写入的等待时间从flushIntervalMillis开始每次加倍，不超过此值，
+     * 默认为{@link #DEFAULT_MAX_RETRY_BACKOFF_MILLIS}
+     *
+     * @param maxRetryBackoffMillis
+     */
+    public void setMaxRetryBackoffMillis(long maxRetryBackoffMillis) {
+        this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+    }
+
+    public WriteFailureListener<M> getFailureListener() {
+        return failureListener;
+    }
+
+    /**
+     * 放弃写入时的回调，没有设置时只记录日志
+     *
+     * @param failureListener
+     */
+    public void setFailureListener(WriteFailureListener<M> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * 缓冲一次部分更新，与同一主键尚未写入的修改合并
+     *
+     * @param message 必须设置主键
+     * @throws InterruptedException 等待缓冲区空间时被中断
+     */
+    public void partialUpdate(M message) throws InterruptedException {
+        if (!message.hasField(keyField)) {
+            throw new IllegalArgumentException("Primary key is not set: " + keyField.getName());
+        }
+        Object key = message.getField(keyField);
+        boolean triggerFlush;
+        lock.lockInterruptibly();
+        try {
+            if (closed) {
+                throw new IllegalStateException("WriteBehindBuffer is closed.");
+            }
+            M previous = pending.get(key);
+            while (previous == null && pending.size() >= maxPending) {
+                requestFlush();
+                notFull.await();
+                if (closed) {
+                    throw new IllegalStateException("WriteBehindBuffer is closed.");
+                }
+                previous = pending.get(key);
+            }
+            if (previous == null) {
+                pending.put(key, message);
+            } else {
+                @SuppressWarnings("unchecked")
+                M merged = (M) previous.toBuilder().mergeFrom(message).build();
+                pending.put(key, merged);
+                coalescedCount.incrementAndGet();
+            }
+            receivedCount.incrementAndGet();
+            triggerFlush = pending.size() >= flushSize;
+        } finally {
+            lock.unlock();
+        }
+        if (triggerFlush) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * 同步写入当前缓冲的所有记录，不受重试退避的限制。失败的记录放回缓冲区等待重试
+     *
+     * @return 按写入顺序的每条记录的影响行数
+     * @throws MessageBatchUpdateException 有记录写入失败时
+     */
+    public int[] flush() {
+        synchronized (flushLock) {
+            List<M> rows = drain();
+            if (rows.isEmpty()) {
+                return new int[0];
+            }
+            long start = System.nanoTime();
+            try {
+                int[] updateCounts = template.partialUpdateAll(rows);
+                flushedCount.addAndGet(rows.size());
+                succeeded(rows);
+                retryAtNanos = 0;
+                return updateCounts;
+            } catch (RuntimeException ex) {
+                failed(rows, ex);
+                throw ex;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                lastFlushNanos = elapsed;
+                flushNanos.addAndGet(elapsed);
+                flushCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 停止定时写入，并同步写入所有缓冲的记录
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            // 关闭后不再重试，放回缓冲区的记录也一并放弃
+            List<M> dropped = drain();
+            lock.lock();
+            try {
+                attempts.clear();
+            } finally {
+                lock.unlock();
+            }
+            drop(dropped, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * 整批写入成功，结束退避
+     */
+    private void succeeded(List<M> rows) {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+        } finally {
+            lock.unlock();
+        }
+        clearAttempts(rows);
+    }
+
+    /**
+     * 清除已经写入的主键的失败次数
+     */
+    private void clearAttempts(List<M> rows) {
+        lock.lock();
+        try {
+            if (!attempts.isEmpty()) {
+                for (M row : rows) {
+                    attempts.remove(row.getField(keyField));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写入失败：失败和未执行的记录放回缓冲区，推迟下一次定时写入
+     */
+    private void failed(List<M> rows, RuntimeException ex) {
+        List<M> failed = new ArrayList<>(rows.size());
+        List<M> written = new ArrayList<>();
+        if (ex instanceof MessageBatchUpdateException) {
+            int[] updateCounts = ((MessageBatchUpdateException) ex).getUpdateCounts();
+            for (int i = 0; i < rows.size(); i++) {
+                if (updateCounts[i] == Statement.EXECUTE_FAILED
+                        || updateCounts[i] == MessageBatchUpdateException.NOT_EXECUTED) {
+                    failed.add(rows.get(i));
+                } else {
+                    written.add(rows.get(i));
+                }
+            }
+        } else {
+            failed.addAll(rows);
+        }
+        failedCount.addAndGet(failed.size());
+        flushedCount.addAndGet(written.size());
+        clearAttempts(written);
+        List<M> dropped = requeue(failed);
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            long backoff = flushIntervalMillis << Math.min(consecutiveFailures, 20);
+            retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(backoff, maxRetryBackoffMillis));
+        } finally {
+            lock.unlock();
+        }
+        drop(dropped, ex);
+    }
+
+    /**
+     * 将失败的记录放回缓冲区，排在失败期间新增的记录之前；同一主键的新修改合并在失败的记录之上
+     *
+     * @param failed
+     * @return 超过重试次数而放弃的记录
+     */
+    @SuppressWarnings("unchecked")
+    private List<M> requeue(List<M> failed) {
+        List<M> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            LinkedHashMap<Object, M> merged = new LinkedHashMap<>();
+            for (M row : failed) {
+                Object key = row.getField(keyField);
+                Integer attempt = attempts.get(key);
+                attempt = attempt == null ? 1 : attempt + 1;
+                if (attempt > maxRetries) {
+                    attempts.remove(key);
+                    dropped.add(row);
+                } else {
+                    attempts.put(key, attempt);
+                    merged.put(key, row);
+                }
+            }
+            for (Map.Entry<Object, M> entry : pending.entrySet()) {
+                M older = merged.get(entry.getKey());
+                merged.put(entry.getKey(),
+                        older == null ? entry.getValue() : (M) older.toBuilder().mergeFrom(entry.getValue()).build());
+            }
+            pending = merged;
+            retriedCount.addAndGet(failed.size() - dropped.size());
+        } finally {
+            lock.unlock();
+        }
+        return dropped;
+    }
+
+    private void drop(List<M> dropped, RuntimeException cause) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        droppedCount.addAndGet(dropped.size());
+        logger.error("Dropped " + dropped.size() + " write-behind updates of " + keyField.getContainingType().getName()
+                + ".", cause);
+        if (failureListener != null) {
+            try {
+                failureListener.onDropped(dropped, cause);
+            } catch (RuntimeException ex) {
+                logger.warn("Error in write-behind failure listener.", ex);
+            }
+        }
+    }
+
+    private List<M> drain() {
+        lock.lock();
+        try {
+            List<M> rows = new ArrayList<>(pending.values());
+            pending = new LinkedHashMap<>();
+            notFull.signalAll();
+            return rows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void requestFlush() {
+        if (!closed && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flushRequested.set(false);
+                        flushQuietly();
+                    }
+
+                });
+            } catch (RejectedExecutionException ex) {
+                // 已经关闭，由close()同步写入
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * 定时和按数量触发的写入，写入失败后在退避时间内跳过
+     */
+    private void flushQuietly() {
+        if (retryAtNanos != 0 && System.nanoTime() - retryAtNanos < 0) {
+            return;
+        }
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            logger.error("Error in write-behind flush of " + keyField.getContainingType().getName() + ".", ex);
+        }
+    }
+
+    /**
+     * 当前缓冲的主键数
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 合并比例：接收的部分更新次数 / 合并后的记录数，没有接收时为1
+     *
+     * @return
+     */
+    public double getCoalescingRatio() {
+        long received = receivedCount.get();
+        if (received == 0) {
+            return 1.0;
+        }
+        return (double) received / (received - coalescedCount.get());
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * 被合并到同一主键已有修改中的部分更新次数
+     *
+     * @return
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    /**
+     * 写入失败的记录数，包括之后重试成功的
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 失败后放回缓冲区重试的记录数
+     *
+     * @return
+     */
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * 放弃写入的记录数
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * 平均每次写入的耗时（纳秒）
+     *
+     * @return
+     */
+    public long getAverageFlushNanos() {
+        long count = flushCount.get();
+        return count == 0 ? 0 : flushNanos.get() / count;
+    }
+
+    public long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "{queueDepth:" + getQueueDepth() + "; coalescingRatio:" + getCoalescingRatio()
+                + "; averageFlushNanos:" + getAverageFlushNanos() + "}";
+    }
+}
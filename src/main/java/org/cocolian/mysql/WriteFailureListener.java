@@ -0,0 +1,23 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.Message;
+
+import java.util.List;
+
+/**
+ * {@link WriteBehindBuffer}放弃写入时的回调，见{@link WriteBehindBuffer#setFailureListener}。
+ * 由写入线程或者调用close的线程调用，实现需要线程安全。
+ *
+ * @param <M> message的数据类型
+ * @version 1.0.0
+ */
+public interface WriteFailureListener<M extends Message> {
+
+    /**
+     * 重试次数用完或者关闭时仍未写入的记录
+     *
+     * @param messages 放弃写入的记录，每个主键一条，是合并后的部分更新
+     * @param cause    最后一次写入的异常
+     */
+    void onDropped(List<M> messages, RuntimeException cause);
+}
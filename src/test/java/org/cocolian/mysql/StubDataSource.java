@@ -0,0 +1,138 @@
+package org.cocolian.mysql;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的数据源，基于动态代理实现，不访问数据库。
+ * 每次getConnection返回一个新的连接，与连接池借出的连接一样；语句的executeUpdate和executeBatch中的每条记录影响1行。
+ * 记录借出的连接数和创建的语句数。
+ *
+ * @version 1.0.0
+ */
+final class StubDataSource {
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger preparedCount = new AtomicInteger();
+    private final DataSource dataSource = proxy(DataSource.class, new StubHandler() {
+
+        @Override
+        Object handle(Method method, Object[] args) {
+            if (method.getName().equals("getConnection")) {
+                connectionCount.incrementAndGet();
+                return newConnection();
+            }
+            return StubResultSet.defaultValue(method.getReturnType());
+        }
+
+    });
+
+    DataSource getDataSource() {
+        return dataSource;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    int getPreparedCount() {
+        return preparedCount.get();
+    }
+
+    private Connection newConnection() {
+        return proxy(Connection.class, new StubHandler() {
+
+            private boolean autoCommit = true;
+            private boolean closed = false;
+
+            @Override
+            Object handle(Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        preparedCount.incrementAndGet();
+                        return newStatement();
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    case "close":
+                        closed = true;
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    default:
+                        return StubResultSet.defaultValue(method.getReturnType());
+                }
+            }
+
+        });
+    }
+
+    private static PreparedStatement newStatement() {
+        return proxy(PreparedStatement.class, new StubHandler() {
+
+            private int batch = 0;
+            private boolean closed = false;
+
+            @Override
+            Object handle(Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "addBatch":
+                        batch++;
+                        return null;
+                    case "clearBatch":
+                        batch = 0;
+                        return null;
+                    case "executeBatch":
+                        int[] counts = new int[batch];
+                        Arrays.fill(counts, 1);
+                        batch = 0;
+                        return counts;
+                    case "executeUpdate":
+                        return 1;
+                    case "close":
+                        closed = true;
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    default:
+                        return StubResultSet.defaultValue(method.getReturnType());
+                }
+            }
+
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StubDataSource.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * 代理对象按引用比较，其它方法交给handle
+     */
+    private abstract static class StubHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + System.identityHashCode(proxy);
+                default:
+                    return handle(method, args);
+            }
+        }
+
+        abstract Object handle(Method method, Object[] args);
+    }
+}
@@ -0,0 +1,103 @@
+package org.cocolian.mysql;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+/**
+ * 测试用的内存结果集，基于动态代理实现，不访问数据库。
+ * getXxx按列序号返回预先准备的值，getBinaryStream返回byte[]值的输入流，null表示NULL。
+ *
+ * @version 1.0.0
+ */
+final class StubResultSet {
+
+    private StubResultSet() {
+    }
+
+    /**
+     * @param labels   列标签
+     * @param sqlTypes 列类型，见{@link java.sql.Types}
+     * @param rows     每行按列顺序的值
+     * @return
+     */
+    static ResultSet of(final String[] labels, final int[] sqlTypes, final Object[][] rows) {
+        final ResultSetMetaData metaData = proxy(ResultSetMetaData.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getColumnCount":
+                        return labels.length;
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return labels[(Integer) args[0] - 1];
+                    case "getColumnType":
+                        return sqlTypes[(Integer) args[0] - 1];
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+
+        });
+        return proxy(ResultSet.class, new InvocationHandler() {
+
+            private int cursor = -1;
+            private boolean wasNull;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                switch (name) {
+                    case "next":
+                        return ++cursor < rows.length;
+                    case "getMetaData":
+                        return metaData;
+                    case "wasNull":
+                        return wasNull;
+                    default:
+                        break;
+                }
+                if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                    Object value = rows[cursor][(Integer) args[0] - 1];
+                    wasNull = value == null;
+                    if (value == null) {
+                        return defaultValue(method.getReturnType());
+                    }
+                    if (name.equals("getBinaryStream")) {
+                        return new ByteArrayInputStream((byte[]) value);
+                    }
+                    return value;
+                }
+                return defaultValue(method.getReturnType());
+            }
+
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StubResultSet.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0D;
+        }
+        if (type == float.class) {
+            return 0F;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,86 @@
+package org.cocolian.mysql;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * KeysetScanner按主键范围分段：分段首尾相接，覆盖整个范围，边界类型与主键相同
+ *
+ * @version 1.0.0
+ */
+public class TestKeysetScanner {
+
+    @Test
+    public void evenSlices() {
+        List<ScanSlice> slices = KeysetScanner.split(null, 1, 100, 4, false);
+        assertBounds(slices, null, 26L, 52L, 78L, null);
+        for (int i = 0; i < slices.size(); i++) {
+            assertEquals(i, slices.get(i).getIndex());
+        }
+    }
+
+    @Test
+    public void negativeKeys() {
+        assertBounds(KeysetScanner.split(null, -10, 10, 4, false), null, -6L, -1L, 4L, null);
+    }
+
+    @Test
+    public void startAfter() {
+        assertBounds(KeysetScanner.split(1000L, 1001, 1010, 2, false), 1000L, 1006L, null);
+    }
+
+    @Test
+    public void intKey() {
+        List<ScanSlice> slices = KeysetScanner.split(null, 0, 99, 2, true);
+        assertBounds(slices, null, 49, null);
+        assertTrue(slices.get(0).getEndAt() instanceof Integer);
+    }
+
+    @Test
+    public void fewerKeysThanSlices() {
+        assertBounds(KeysetScanner.split(null, 5, 5, 4, false), null, null);
+        assertBounds(KeysetScanner.split(null, 5, 6, 4, false), null, 5L, null);
+    }
+
+    @Test
+    public void fullLongRange() {
+        assertBounds(KeysetScanner.split(null, Long.MIN_VALUE, Long.MAX_VALUE, 2, false), null, -1L, null);
+        List<ScanSlice> slices = KeysetScanner.split(null, Long.MIN_VALUE, Long.MAX_VALUE, 8, false);
+        assertEquals(8, slices.size());
+        assertContiguous(slices, null);
+    }
+
+    @Test
+    public void nearMaxValue() {
+        List<ScanSlice> slices = KeysetScanner.split(null, Long.MAX_VALUE - 2, Long.MAX_VALUE, 8, false);
+        assertBounds(slices, null, Long.MAX_VALUE - 2, Long.MAX_VALUE - 1, null);
+    }
+
+    /**
+     * 依次为第一个分段的起点和每个分段的终点
+     */
+    private static void assertBounds(List<ScanSlice> slices, Object... bounds) {
+        assertEquals(bounds.length - 1, slices.size());
+        assertContiguous(slices, bounds[0]);
+        for (int i = 0; i < slices.size(); i++) {
+            assertEquals(bounds[i + 1], slices.get(i).getEndAt());
+        }
+    }
+
+    private static void assertContiguous(List<ScanSlice> slices, Object startAfter) {
+        Object lower = startAfter;
+        for (ScanSlice slice : slices) {
+            assertEquals(lower, slice.getStartAfter());
+            if (lower != null && slice.getEndAt() != null) {
+                assertTrue(((Number) slice.getEndAt()).longValue() > ((Number) lower).longValue());
+            }
+            lower = slice.getEndAt();
+        }
+        assertNull(slices.get(slices.size() - 1).getEndAt());
+    }
+}
@@ -0,0 +1,110 @@
+package org.cocolian.mysql;
+
+import org.apache.commons.lang3.StringUtils;
+import org.cocolian.mysql.foo.Foo;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 导入时按窗口映射文件：记录和长度前缀跨越窗口边界、记录大于窗口时都能完整解析，不访问数据库
+ *
+ * @version 1.0.0
+ */
+public class TestMessageFileTransfer {
+
+    private static final int BATCH_SIZE = 3;
+
+    @Test
+    public void remapAcrossWindows() throws Exception {
+        List<Foo> foos = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            // 长度从几个字节到超过窗口，长度前缀为1到2个字节
+            foos.add(Foo.newBuilder().setCol1(StringUtils.repeat('x', i * 37 % 300)).setCol2(i).build());
+        }
+        Path file = write(foos);
+        try {
+            for (long window : new long[]{5, 7, 16, 64, 1024, 1024 * 1024}) {
+                assertEquals("window " + window, foos, read(file, window));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        Path file = write(new ArrayList<Foo>());
+        try {
+            assertTrue(read(file, 16).isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        List<Foo> foos = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            foos.add(Foo.newBuilder().setCol1("foo-" + i).setCol2(i).build());
+        }
+        Path file = write(foos);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try {
+            read(file, 16);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Truncated message"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static Path write(List<Foo> foos) throws IOException {
+        Path file = Files.createTempFile("test_foo", ".pb");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (Foo foo : foos) {
+                foo.writeDelimitedTo(out);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 使用给定的窗口大小读取文件，检查批大小和读取的字节数，返回所有记录
+     */
+    private static List<Foo> read(Path file, long window) throws Exception {
+        JdbcProtobufTemplate<Foo> template = new JdbcProtobufTemplate<Foo>(new JdbcTemplate(), Foo.class);
+        template.setBatchSize(BATCH_SIZE);
+        MessageFileTransfer<Foo> transfer = new MessageFileTransfer<Foo>(template, window);
+        LinkedBlockingQueue<List<Foo>> queue = new LinkedBlockingQueue<>();
+        AtomicLong bytesRead = new AtomicLong();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            transfer.readBatches(channel, queue, new AtomicReference<Throwable>(), bytesRead);
+        }
+        assertEquals(Files.size(file), bytesRead.get());
+        List<Foo> foos = new ArrayList<>();
+        for (List<Foo> batch : queue) {
+            assertTrue(batch.size() <= BATCH_SIZE && !batch.isEmpty());
+            foos.addAll(batch);
+        }
+        return foos;
+    }
+}
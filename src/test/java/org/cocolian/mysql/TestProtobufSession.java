@@ -0,0 +1,76 @@
+package org.cocolian.mysql;
+
+import org.cocolian.mysql.foo.Foo;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ProtobufSession的批次分组：相同SQL的写入可以提前到前面的批次，但不能越过同一条记录的写入
+ *
+ * @version 1.0.0
+ */
+public class TestProtobufSession {
+
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate();
+    private final JdbcProtobufTemplate<Foo> foos = new JdbcProtobufTemplate<Foo>(jdbcTemplate, Foo.class);
+
+    @Test
+    public void reorderBySql() {
+        ProtobufSession session = new ProtobufSession(jdbcTemplate);
+        session.update(foos, foo("a"));
+        session.insert(foos, foo("b"));
+        session.update(foos, foo("c"));
+        session.insert(foos, foo("d"));
+        assertEquals(Arrays.asList(Arrays.asList(0, 2), Arrays.asList(1, 3)), session.plan());
+    }
+
+    @Test
+    public void keepOrderOfSameRow() {
+        ProtobufSession session = new ProtobufSession(jdbcTemplate);
+        session.update(foos, foo("a"));
+        session.upsert(foos, foo("a"));
+        session.update(foos, foo("a"));
+        session.update(foos, foo("b"));
+        // 第3个操作不能越过第2个操作中的同一条记录，第4个操作可以加入最近的update批次
+        assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1), Arrays.asList(2, 3)), session.plan());
+    }
+
+    @Test
+    public void sameRowInOneBatch() {
+        ProtobufSession session = new ProtobufSession(jdbcTemplate);
+        session.update(foos, foo("a"));
+        session.update(foos, foo("a"));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1)), session.plan());
+    }
+
+    @Test
+    public void adjacentOnlyWithoutReorder() {
+        ProtobufSession session = new ProtobufSession(jdbcTemplate);
+        session.setReorder(false);
+        session.update(foos, foo("a"));
+        session.update(foos, foo("b"));
+        session.insert(foos, foo("c"));
+        session.update(foos, foo("d"));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2), Arrays.asList(3)), session.plan());
+    }
+
+    @Test
+    public void shapeSplitsBatches() {
+        ProtobufSession session = new ProtobufSession(jdbcTemplate);
+        session.partialUpdate(foos, foo("a"));
+        session.partialUpdate(foos, Foo.newBuilder().setCol1("b").setCol2(2).build());
+        session.partialUpdate(foos, foo("c"));
+        List<List<Integer>> plan = session.plan();
+        assertEquals(Arrays.asList(Arrays.asList(0, 2), Arrays.asList(1)), plan);
+        assertEquals(3, session.getPendingCount());
+    }
+
+    private static Foo foo(String key) {
+        return Foo.newBuilder().setCol1(key).setCol2(1).setCol3(1.5D).build();
+    }
+}
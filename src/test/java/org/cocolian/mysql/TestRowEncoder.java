@@ -0,0 +1,84 @@
+package org.cocolian.mysql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import org.cocolian.mysql.foo.Bar;
+import org.cocolian.mysql.foo.Foo;
+import org.cocolian.mysql.foo.Tag;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.Types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * RowEncoder的编码结果与行映射得到的message序列化结果逐字节相同，不访问数据库
+ *
+ * @version 1.0.0
+ */
+public class TestRowEncoder {
+
+    @Test
+    public void scalarColumns() throws Exception {
+        // 列顺序与字段编号不同，编码时按字段编号排序
+        ResultSet rs = StubResultSet.of(new String[]{"col3", "col1", "col2"},
+                new int[]{Types.DOUBLE, Types.VARCHAR, Types.INTEGER},
+                new Object[][]{
+                        {1.5D, "foo", 7},
+                        {null, "bar", null},
+                        {0D, "", 0},
+                        {-2.25D, "中文", -1}
+                });
+        assertEquals(4, assertSameBytes(new JdbcProtobufTemplate<Foo>(new JdbcTemplate(), Foo.class),
+                Foo.getDescriptor(), rs));
+    }
+
+    @Test
+    public void blobColumns() throws Exception {
+        Tag tag = Tag.newBuilder().setName("tag").setWeight(3).build();
+        Bar bar = Bar.newBuilder().setId("1").setTag(tag).addTags(tag).addTags(Tag.newBuilder().setName("other"))
+                .putCounters("a", 1).putCounters("b", 2).setLazyTag(tag.toByteString()).build();
+        ResultSet rs = StubResultSet.of(new String[]{"id", "tag", "tags", "counters", "lazy_tag"},
+                new int[]{Types.VARCHAR, Types.LONGVARBINARY, Types.LONGVARBINARY, Types.LONGVARBINARY,
+                        Types.LONGVARBINARY},
+                new Object[][]{
+                        {"1", blob(bar, "tag"), blob(bar, "tags"), blob(bar, "counters"), blob(bar, "lazy_tag")},
+                        {"2", null, null, null, null}
+                });
+        assertEquals(2, assertSameBytes(new JdbcProtobufTemplate<Bar>(new JdbcTemplate(), Bar.class),
+                Bar.getDescriptor(), rs));
+    }
+
+    /**
+     * 逐行比较，返回比较的行数
+     */
+    private static <M extends Message> int assertSameBytes(JdbcProtobufTemplate<M> template,
+                                                           Descriptors.Descriptor descriptor, ResultSet rs)
+            throws Exception {
+        RowMapper<M> rowMapper = template.newRowMapper();
+        RowEncoder encoder = RowEncoder.compile(descriptor, rs.getMetaData());
+        int rows = 0;
+        while (rs.next()) {
+            M message = rowMapper.mapRow(rs, rows++);
+            byte[] encoded = new byte[encoder.read(rs)];
+            CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+            encoder.write(output);
+            output.checkNoSpaceLeft();
+            assertArrayEquals(message.toByteArray(), encoded);
+        }
+        return rows;
+    }
+
+    private static byte[] blob(Message message, String fieldName) {
+        FieldDescriptor field = message.getDescriptorForType().findFieldByName(fieldName);
+        Object value = ProtobufBlob.encode(message, field);
+        return value instanceof byte[] ? (byte[]) value : ((ByteString) value).toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+package org.cocolian.mysql;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SnowflakeIdGenerator的序号分配：同一毫秒内递增，序号用完和时钟回拨时进入下一个逻辑毫秒
+ *
+ * @version 1.0.0
+ */
+public class TestSnowflakeIdGenerator {
+
+    private static final long MILLIS = SnowflakeIdGenerator.EPOCH + 1000;
+    private static final long MAX_SEQUENCE = (1L << SnowflakeIdGenerator.SEQUENCE_BITS) - 1;
+
+    @Test
+    public void newMillisecond() {
+        assertEquals(state(1000, 0), SnowflakeIdGenerator.nextState(0, MILLIS, 1));
+        assertEquals(state(1000, 9), SnowflakeIdGenerator.nextState(state(999, 3), MILLIS, 10));
+    }
+
+    @Test
+    public void sameMillisecond() {
+        assertEquals(state(1000, 1), SnowflakeIdGenerator.nextState(state(1000, 0), MILLIS, 1));
+        assertEquals(state(1000, MAX_SEQUENCE), SnowflakeIdGenerator.nextState(state(1000, 0), MILLIS,
+                (int) MAX_SEQUENCE));
+    }
+
+    @Test
+    public void sequenceOverflow() {
+        assertEquals(state(1001, 0), SnowflakeIdGenerator.nextState(state(1000, MAX_SEQUENCE), MILLIS, 1));
+        // 剩余的序号不够n个时，n个序号都在下一个逻辑毫秒中分配
+        assertEquals(state(1001, 1), SnowflakeIdGenerator.nextState(state(1000, MAX_SEQUENCE - 1), MILLIS, 2));
+        assertEquals(state(1001, MAX_SEQUENCE), SnowflakeIdGenerator.nextState(state(1000, 1), MILLIS,
+                (int) MAX_SEQUENCE + 1));
+    }
+
+    @Test
+    public void clockRollback() {
+        long current = state(1000, 5);
+        assertEquals(state(1000, 6), SnowflakeIdGenerator.nextState(current, MILLIS - 100, 1));
+        assertEquals(state(1001, 0), SnowflakeIdGenerator.nextState(state(1000, MAX_SEQUENCE), MILLIS - 100, 1));
+        // 逻辑时间超前于时钟时，时钟追上之前继续使用逻辑时间
+        current = state(1001, 0);
+        assertEquals(state(1001, 1), SnowflakeIdGenerator.nextState(current, MILLIS, 1));
+        assertEquals(state(1001, 1), SnowflakeIdGenerator.nextState(current, MILLIS + 1, 1));
+        assertEquals(state(1002, 0), SnowflakeIdGenerator.nextState(current, MILLIS + 2, 1));
+    }
+
+    @Test
+    public void idsIncrease() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_WORKER_ID);
+        long start = System.currentTimeMillis();
+        long first = generator.nextId();
+        long[] ids = generator.nextIds(3 * (int) (MAX_SEQUENCE + 1) + 7);
+        assertTrue(SnowflakeIdGenerator.getTimestamp(first) >= start);
+        assertTrue(ids[0] > first);
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i] > ids[i - 1]);
+            assertEquals(SnowflakeIdGenerator.MAX_WORKER_ID,
+                    ids[i] >>> SnowflakeIdGenerator.SEQUENCE_BITS & SnowflakeIdGenerator.MAX_WORKER_ID);
+        }
+        assertTrue(generator.nextId() > ids[ids.length - 1]);
+    }
+
+    private static long state(long millis, long sequence) {
+        return millis << SnowflakeIdGenerator.SEQUENCE_BITS | sequence;
+    }
+}
@@ -0,0 +1,70 @@
+package org.cocolian.mysql;
+
+import org.cocolian.mysql.foo.Foo;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * StatementCache在事务中跨调用复用语句，批量写入经过JdbcTemplate的连接代理时也能命中，使用不访问数据库的数据源
+ *
+ * @version 1.0.0
+ */
+public class TestStatementCache {
+
+    private final StubDataSource stub = new StubDataSource();
+    private final JdbcProtobufTemplate<Foo> template =
+            new JdbcProtobufTemplate<Foo>(new JdbcTemplate(stub.getDataSource()), Foo.class);
+    private final List<Foo> foos = Arrays.asList(foo("a"), foo("b"), foo("c"));
+
+    @Test
+    public void batchHitsInTransaction() {
+        template.setStatementCacheSize(8);
+        final StatementCache cache = template.getStatementCache();
+        new TransactionTemplate(new DataSourceTransactionManager(stub.getDataSource())).execute(
+                new TransactionCallback<Object>() {
+
+                    @Override
+                    public Object doInTransaction(TransactionStatus status) {
+                        assertArrayEquals(new int[]{1, 1, 1}, template.updateAll(foos));
+                        assertArrayEquals(new int[]{1, 1, 1}, template.updateAll(foos));
+                        // 单条更新与批量更新的SQL相同，使用同一个缓存的语句
+                        assertEquals(1, template.update(foos.get(0)));
+                        assertEquals(1, cache.getConnectionCount());
+                        return null;
+                    }
+
+                });
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, stub.getPreparedCount());
+        assertEquals(1, stub.getConnectionCount());
+        // 事务结束时关闭缓存的语句
+        assertEquals(0, cache.getConnectionCount());
+    }
+
+    @Test
+    public void noReuseOutsideTransaction() {
+        template.setStatementCacheSize(8);
+        StatementCache cache = template.getStatementCache();
+        template.updateAll(foos);
+        template.updateAll(foos);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, stub.getPreparedCount());
+        assertEquals(0, cache.getConnectionCount());
+    }
+
+    private static Foo foo(String key) {
+        return Foo.newBuilder().setCol1(key).setCol2(1).setCol3(1.5D).build();
+    }
+}
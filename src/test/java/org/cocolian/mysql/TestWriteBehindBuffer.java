@@ -0,0 +1,149 @@
+package org.cocolian.mysql;
+
+import org.cocolian.mysql.foo.Foo;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * WriteBehindBuffer的合并和失败重试，模板的批量写入在内存中记录，不访问数据库
+ *
+ * @version 1.0.0
+ */
+public class TestWriteBehindBuffer {
+
+    private static final long FLUSH_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    public void mergeSameKey() throws Exception {
+        RecordingTemplate template = new RecordingTemplate();
+        try (WriteBehindBuffer<Foo> buffer = new WriteBehindBuffer<Foo>(template, 100, 100, FLUSH_INTERVAL_MILLIS)) {
+            buffer.partialUpdate(Foo.newBuilder().setCol1("a").setCol2(1).build());
+            buffer.partialUpdate(Foo.newBuilder().setCol1("a").setCol3(2.5D).build());
+            buffer.partialUpdate(Foo.newBuilder().setCol1("b").setCol2(3).build());
+            buffer.partialUpdate(Foo.newBuilder().setCol1("a").setCol2(4).build());
+            assertEquals(2, buffer.getQueueDepth());
+
+            assertEquals(2, buffer.flush().length);
+            assertEquals(1, template.writes.size());
+            assertEquals(Arrays.asList(Foo.newBuilder().setCol1("a").setCol2(4).setCol3(2.5D).build(),
+                    Foo.newBuilder().setCol1("b").setCol2(3).build()), template.writes.get(0));
+            assertEquals(4, buffer.getReceivedCount());
+            assertEquals(2, buffer.getCoalescedCount());
+            assertEquals(2.0D, buffer.getCoalescingRatio(), 0D);
+            assertEquals(2, buffer.getFlushedCount());
+            assertEquals(0, buffer.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void requeueFailedRows() throws Exception {
+        RecordingTemplate template = new RecordingTemplate();
+        try (WriteBehindBuffer<Foo> buffer = new WriteBehindBuffer<Foo>(template, 100, 100, FLUSH_INTERVAL_MILLIS)) {
+            template.failing.add("a");
+            buffer.partialUpdate(Foo.newBuilder().setCol1("a").setCol2(1).setCol3(1.5D).build());
+            buffer.partialUpdate(Foo.newBuilder().setCol1("b").setCol2(2).build());
+            try {
+                buffer.flush();
+                fail("Expected MessageBatchUpdateException");
+            } catch (MessageBatchUpdateException ex) {
+                assertEquals(Arrays.asList(0), ex.getFailedRows());
+            }
+            // 只有失败的记录放回缓冲区
+            assertEquals(1, buffer.getQueueDepth());
+            assertEquals(1, buffer.getFlushedCount());
+            assertEquals(1, buffer.getFailedCount());
+            assertEquals(1, buffer.getRetriedCount());
+
+            // 失败期间的新修改合并在失败的记录之上，失败的记录排在新记录之前
+            buffer.partialUpdate(Foo.newBuilder().setCol1("c").setCol2(3).build());
+            buffer.partialUpdate(Foo.newBuilder().setCol1("a").setCol3(9D).build());
+            template.failing.clear();
+            buffer.flush();
+            assertEquals(Arrays.asList(Foo.newBuilder().setCol1("a").setCol2(1).setCol3(9D).build(),
+                    Foo.newBuilder().setCol1("c").setCol2(3).build()), template.writes.get(1));
+            assertEquals(0, buffer.getQueueDepth());
+            assertEquals(3, buffer.getFlushedCount());
+        }
+    }
+
+    @Test
+    public void dropAfterMaxRetries() throws Exception {
+        RecordingTemplate template = new RecordingTemplate();
+        final List<Foo> dropped = new ArrayList<>();
+        try (WriteBehindBuffer<Foo> buffer = new WriteBehindBuffer<Foo>(template, 100, 100, FLUSH_INTERVAL_MILLIS)) {
+            buffer.setMaxRetries(1);
+            buffer.setFailureListener(new WriteFailureListener<Foo>() {
+
+                @Override
+                public void onDropped(List<Foo> messages, RuntimeException cause) {
+                    dropped.addAll(messages);
+                }
+
+            });
+            template.failing.add("a");
+            Foo foo = Foo.newBuilder().setCol1("a").setCol2(1).build();
+            buffer.partialUpdate(foo);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    buffer.flush();
+                    fail("Expected MessageBatchUpdateException");
+                } catch (MessageBatchUpdateException ex) {
+                    assertTrue(ex.getFailedRows().contains(0));
+                }
+            }
+            assertEquals(Arrays.asList(foo), dropped);
+            assertEquals(1, buffer.getDroppedCount());
+            assertEquals(1, buffer.getRetriedCount());
+            assertEquals(0, buffer.getQueueDepth());
+        }
+        assertEquals(2, template.writes.size());
+    }
+
+    /**
+     * 记录每次批量部分更新，主键在failing中的记录写入失败
+     */
+    private static final class RecordingTemplate extends JdbcProtobufTemplate<Foo> {
+
+        private final List<List<Foo>> writes = new ArrayList<>();
+        private final Set<String> failing = new HashSet<>();
+
+        private RecordingTemplate() {
+            super(new JdbcTemplate(), Foo.class);
+        }
+
+        @Override
+        public int[] partialUpdateAll(Collection<Foo> messages) {
+            List<Foo> rows = new ArrayList<>(messages);
+            writes.add(rows);
+            int[] updateCounts = new int[rows.size()];
+            List<Integer> failedRows = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                if (failing.contains(rows.get(i).getCol1())) {
+                    updateCounts[i] = Statement.EXECUTE_FAILED;
+                    failedRows.add(i);
+                } else {
+                    updateCounts[i] = 1;
+                }
+            }
+            if (!failedRows.isEmpty()) {
+                throw new MessageBatchUpdateException("update test_foo", updateCounts, failedRows,
+                        new SQLException("Write failed."));
+            }
+            return updateCounts;
+        }
+    }
+}
@@ -14,5 +14,7 @@ public class AllUnitTest {
     /**
      * create database cocolian;
      * create table test_foo (col1 varchar(200) primary key,col2 int ,col3 decimal(16,2));
+     * create table test_bar (id varchar(64) primary key,tag blob,tags blob,counters blob,lazy_tag blob);
+     * create table id_segment (name varchar(64) not null primary key, max_id bigint not null);
      */
 }
@@ -1,14 +1,32 @@
 package org.cocolian.test;
 
 import org.cocolian.mysql.JdbcProtobufTemplate;
+import org.cocolian.mysql.LazyMessageBlob;
+import org.cocolian.mysql.MessageFileTransfer;
+import org.cocolian.mysql.SegmentIdGenerator;
+import org.cocolian.mysql.SnowflakeIdGenerator;
+import org.cocolian.mysql.foo.Bar;
 import org.cocolian.mysql.foo.Foo;
+import org.cocolian.mysql.foo.Tag;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 
 public class TestInsertMethod {
     private static Logger logger = LoggerFactory.getLogger(TestInsertMethod.class);
@@ -28,4 +46,124 @@ public class TestInsertMethod {
 
     }
 
+    @Test
+    public void insertAll() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        jdbc.setBatchSize(50);
+
+        int[] ret = jdbc.insertAll(newFoos(200));
+        logger.debug(Arrays.toString(ret));
+    }
+
+    @Test
+    public void multiRowInsertAll() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        jdbc.setMultiRowInsert(true);
+
+        int[] ret = jdbc.insertAll(newFoos(200));
+        logger.debug(Arrays.toString(ret));
+    }
+
+    @Test
+    public void insertBlob() throws Exception {
+        JdbcProtobufTemplate<Bar> jdbc = new JdbcProtobufTemplate<Bar>(TestDataSource.getJdbcTemplate(), Bar.class);
+
+        Tag tag = Tag.newBuilder().setName("cocolian").setWeight(1).build();
+        Bar.Builder bar = Bar.newBuilder();
+        bar.setId("cocolian" + UUID.randomUUID().toString());
+        bar.setTag(tag);
+        bar.addTags(tag).addTags(tag.toBuilder().setWeight(2));
+        bar.putCounters("read", 10);
+        bar.setLazyTag(tag.toByteString());
+        logger.debug(String.valueOf(jdbc.insert(bar.build())));
+
+        Bar saved = jdbc.get(bar.getId());
+        logger.debug(saved.toString());
+        logger.debug(LazyMessageBlob.of(saved.getLazyTag(), Tag.parser()).get().toString());
+    }
+
+    @Test
+    public void upsert() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+
+        Foo.Builder foo = Foo.newBuilder();
+        foo.setCol1("cocolian" + UUID.randomUUID().toString());
+        foo.setCol2(new Random().nextInt(Integer.MAX_VALUE));
+        logger.debug(String.valueOf(jdbc.upsert(foo.build())));
+        foo.setCol3(new Random().nextDouble());
+        logger.debug(String.valueOf(jdbc.upsert(foo.build())));
+
+        List<Foo> foos = newFoos(100);
+        jdbc.insertAll(foos);
+        logger.debug(Arrays.toString(jdbc.upsertAll(foos)));
+    }
+
+    @Test
+    public void exportImport() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        MessageFileTransfer<Foo> transfer = new MessageFileTransfer<Foo>(jdbc);
+        Path file = Files.createTempFile("test_foo", ".pb");
+        try {
+            logger.debug(String.valueOf(transfer.exportTo(file, "select * from test_foo limit ?", 1000)));
+
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (Foo foo : newFoos(1000)) {
+                    foo.writeDelimitedTo(out);
+                }
+            }
+            transfer.setImportThreads(2);
+            transfer.setImportCommitInterval(200);
+            logger.debug(String.valueOf(transfer.importFrom(file)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void idGenerator() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        SegmentIdGenerator segments = new SegmentIdGenerator(TestDataSource.getDS(), "test_foo", 100);
+        jdbc.setIdGenerator(segments);
+        // col1为required，没有主键的记录不能build
+        Foo foo = jdbc.assignId(Foo.newBuilder().setCol2(1));
+        assertFalse(foo.getCol1().isEmpty());
+        jdbc.insert(foo);
+        List<Foo> foos = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            foos.add(Foo.newBuilder().setCol2(i).buildPartial());
+        }
+        foos = jdbc.assignIds(foos);
+        Set<String> ids = new HashSet<>();
+        ids.add(foo.getCol1());
+        for (Foo assigned : foos) {
+            assertTrue(assigned.hasCol1());
+            ids.add(assigned.getCol1());
+        }
+        assertEquals(251, ids.size());
+        assertEquals(250, jdbc.insertAll(foos).length);
+        logger.debug(segments.toString());
+
+        JdbcProtobufTemplate<Bar> bars = new JdbcProtobufTemplate<Bar>(TestDataSource.getJdbcTemplate(), Bar.class);
+        bars.setIdGenerator(new SnowflakeIdGenerator(1));
+        Bar bar = bars.assignId(Bar.newBuilder().setTag(Tag.newBuilder().setName("snowflake").build()));
+        assertTrue(Long.parseLong(bar.getId()) > 0);
+        Bar next = bars.assignId(Bar.newBuilder().setTag(Tag.newBuilder().setName("snowflake").build()).buildPartial());
+        assertTrue(Long.parseLong(next.getId()) > Long.parseLong(bar.getId()));
+        bars.insertAll(Arrays.asList(bar, next));
+    }
+
+    private List<Foo> newFoos(int count) {
+        List<Foo> foos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Foo.Builder foo = Foo.newBuilder();
+            foo.setCol1("cocolian" + UUID.randomUUID().toString());
+            if (i % 2 == 0) {
+                foo.setCol2(new Random().nextInt(Integer.MAX_VALUE));
+            }
+            foo.setCol3(new Random().nextDouble());
+            foos.add(foo.build());
+        }
+        return foos;
+    }
+
 }
@@ -1,10 +1,45 @@
 package org.cocolian.test;
 
+import com.google.protobuf.FieldMask;
+import org.cocolian.mysql.AsyncJdbcProtobufTemplate;
+import org.cocolian.mysql.InstrumentedDataSource;
 import org.cocolian.mysql.JdbcProtobufTemplate;
+import org.cocolian.mysql.KeysetScanner;
+import org.cocolian.mysql.LatencyWeightedLoadBalancer;
+import org.cocolian.mysql.MessageBatch;
+import org.cocolian.mysql.MessageCache;
+import org.cocolian.mysql.OperationEvent;
+import org.cocolian.mysql.OperationListener;
+import org.cocolian.mysql.RequestCoalescer;
+import org.cocolian.mysql.ScanListener;
+import org.cocolian.mysql.ScanOptions;
+import org.cocolian.mysql.ScanProgress;
+import org.cocolian.mysql.StatementCache;
+import org.cocolian.mysql.foo.Bar;
 import org.cocolian.mysql.foo.Foo;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 
 public class TestSelectMethod {
@@ -19,4 +54,197 @@ public class TestSelectMethod {
 
     }
 
+    @Test
+    public void getByPKCached() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        MessageCache<Foo> cache = MessageCache.bySize(1000, 10, TimeUnit.MINUTES);
+        cache.setCacheNegative(true);
+        jdbc.setMessageCache(cache);
+
+        jdbc.get("lxp1");
+        jdbc.get("lxp1");
+        jdbc.get("not-exists");
+        logger.debug(cache.getStats().toString());
+    }
+
+    @Test
+    public void getAll() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        jdbc.setMultiGetChunkSize(2);
+
+        Map<String, Foo> foos = jdbc.getAll(Arrays.asList("lxp1", "lxp2", "lxp3"), Executors.newFixedThreadPool(2));
+        logger.debug(foos.toString());
+    }
+
+    @Test
+    public void stream() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+
+        try (Stream<Foo> foos = jdbc.stream("select * from test_foo where col2 > ?", 0)) {
+            logger.debug(String.valueOf(foos.limit(10).count()));
+        }
+        jdbc.forEach("select * from test_foo", new Consumer<Foo>() {
+
+            @Override
+            public void accept(Foo foo) {
+                logger.debug(foo.getCol1());
+            }
+
+        });
+    }
+
+    @Test
+    public void readReplicas() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getDS(),
+                Arrays.asList(TestDataSource.getDS(), TestDataSource.getDS()), Foo.class);
+        jdbc.setLoadBalancer(new LatencyWeightedLoadBalancer());
+        jdbc.setReadYourWritesWindow(1000);
+
+        for (int i = 0; i < 10; i++) {
+            jdbc.get("lxp1");
+        }
+        logger.debug(jdbc.getReplicas().toString());
+    }
+
+    @Test
+    public void getAsync() throws Exception {
+        JdbcTemplate jdbcTemplate = TestDataSource.getJdbcTemplate();
+        AsyncJdbcProtobufTemplate<Foo> jdbc = new AsyncJdbcProtobufTemplate<Foo>(jdbcTemplate, Foo.class,
+                Executors.newFixedThreadPool(4));
+        jdbc.getConcurrencyLimiter().setMaxConcurrency(jdbcTemplate.getDataSource(), 2);
+        jdbc.setTimeoutMillis(5000);
+
+        CompletableFuture<Foo> foo = jdbc.getAsync("lxp1");
+        CompletableFuture<List<Foo>> foos = jdbc.queryAsync("select * from test_foo where col2 > ?", 0);
+        logger.debug(foo.get() + " " + foos.get().size());
+    }
+
+    @Test
+    public void getProjection() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        FieldMask mask = FieldMask.newBuilder().addPaths("col1").addPaths("col2").build();
+
+        logger.debug(String.valueOf(jdbc.get("lxp1", mask)));
+        logger.debug(String.valueOf(jdbc.query(mask, "col2 > ? order by col2 limit 10", 0)));
+    }
+
+    @Test
+    public void operationListener() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new InstrumentedDataSource(TestDataSource.getDS()));
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(jdbcTemplate, Foo.class);
+        jdbc.setSlowStatementMillis(100);
+        jdbc.setOperationListener(new OperationListener() {
+
+            @Override
+            public void onOperation(OperationEvent event) {
+                logger.debug(event.toString());
+            }
+
+        });
+
+        jdbc.get("lxp1");
+        jdbc.query("select * from test_foo where col2 > ?", 0);
+    }
+
+    @Test
+    public void statementCache() throws Exception {
+        final JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(new JdbcTemplate(TestDataSource.getDS()), Foo.class);
+        jdbc.setStatementCacheSize(16);
+
+        // 只在事务持有的连接上缓存
+        new TransactionTemplate(new DataSourceTransactionManager(TestDataSource.getDS())).execute(new TransactionCallback<Object>() {
+
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                for (int i = 0; i < 10; i++) {
+                    jdbc.get("lxp1");
+                    jdbc.query("select * from test_foo where col2 > ?", i);
+                }
+                return null;
+            }
+
+        });
+        StatementCache cache = jdbc.getStatementCache();
+        logger.debug("connections: " + cache.getConnectionCount() + ", hits: " + cache.getHits() + ", misses: " + cache.getMisses() + ", hit rate: " + cache.getHitRate());
+    }
+
+    @Test
+    public void scan() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        final AtomicLong count = new AtomicLong();
+        ScanOptions options = new ScanOptions();
+        options.setPageSize(100);
+        List<ScanProgress> progress = new KeysetScanner<Foo>(jdbc).scan(options, new Consumer<Foo>() {
+
+            @Override
+            public void accept(Foo foo) {
+                count.incrementAndGet();
+            }
+
+        });
+        logger.debug(count + " " + progress);
+
+        JdbcProtobufTemplate<Bar> bars = new JdbcProtobufTemplate<Bar>(TestDataSource.getJdbcTemplate(), Bar.class);
+        options.setParallelism(4);
+        options.setListener(new ScanListener() {
+
+            @Override
+            public void onProgress(ScanProgress progress) {
+                logger.debug(progress.toString());
+            }
+
+        });
+        progress = new KeysetScanner<Bar>(bars).scan(options, new Consumer<Bar>() {
+
+            @Override
+            public void accept(Bar bar) {
+                count.incrementAndGet();
+            }
+
+        });
+        for (ScanProgress slice : progress) {
+            logger.debug(String.valueOf(slice.getCheckpoint()));
+        }
+    }
+
+    @Test
+    public void queryBatch() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        try (MessageBatch<Foo> batch = jdbc.queryBatch("select * from test_foo where col2 > ?", 0)) {
+            logger.debug(batch.toString());
+            if (!batch.isEmpty()) {
+                Foo foo = batch.get(0);
+                ByteBuffer bytes = batch.getBytes(0);
+                logger.debug(foo + " " + bytes.remaining() + " " + foo.getSerializedSize());
+            }
+        }
+        logger.debug(jdbc.getBufferPool().toString());
+    }
+
+    @Test
+    public void coalesceReads() throws Exception {
+        final JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        jdbc.setCoalesceTimeoutMillis(2000);
+        jdbc.setCoalesceReads(true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Foo>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(new Callable<Foo>() {
+
+                @Override
+                public Foo call() {
+                    return jdbc.get("lxp1");
+                }
+
+            }));
+        }
+        for (Future<Foo> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        RequestCoalescer coalescer = jdbc.getRequestCoalescer();
+        logger.debug(coalescer + " coalesced rate: " + coalescer.getCoalescedRate());
+    }
+
 }
@@ -1,12 +1,18 @@
 package org.cocolian.test;
 
 import org.cocolian.mysql.JdbcProtobufTemplate;
+import org.cocolian.mysql.ProtobufSession;
+import org.cocolian.mysql.SessionResult;
+import org.cocolian.mysql.WriteBehindBuffer;
+import org.cocolian.mysql.foo.Bar;
 import org.cocolian.mysql.foo.Foo;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 import java.util.Random;
+import java.util.UUID;
 
 
 public class TestUpdateMethod {
@@ -36,4 +42,48 @@ public class TestUpdateMethod {
         logger.debug(String.valueOf(ret));
 
     }
+
+    @Test
+    public void diffUpdate() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        Foo before = jdbc.get("cocolian38b8b3fb-4e4d-467b-8e7e-935f4838a9bc");
+        if (before == null) {
+            return;
+        }
+        int unchanged = jdbc.update(before, before);
+        logger.debug(String.valueOf(unchanged));
+        Foo after = before.toBuilder().setCol3(new Random().nextDouble()).build();
+        int ret = jdbc.update(before, after, true);
+        logger.debug(String.valueOf(ret));
+        int conflict = jdbc.update(before, after, true);
+        logger.debug(String.valueOf(conflict));
+    }
+
+    @Test
+    public void session() throws Exception {
+        JdbcTemplate jdbcTemplate = TestDataSource.getJdbcTemplate();
+        JdbcProtobufTemplate<Foo> foos = new JdbcProtobufTemplate<Foo>(jdbcTemplate, Foo.class);
+        JdbcProtobufTemplate<Bar> bars = new JdbcProtobufTemplate<Bar>(jdbcTemplate, Bar.class);
+        ProtobufSession session = new ProtobufSession(jdbcTemplate);
+        String col1 = "cocolian" + UUID.randomUUID().toString();
+        int insert = session.insert(foos, Foo.newBuilder().setCol1(col1).setCol2(1).build());
+        session.insert(bars, Bar.newBuilder().setId("cocolian" + UUID.randomUUID().toString()).build());
+        for (int i = 0; i < 3; i++) {
+            session.partialUpdate(foos, Foo.newBuilder().setCol1(col1).setCol2(i + 2).build());
+        }
+        SessionResult result = session.flush();
+        logger.debug(result.getUpdateCount(insert) + " " + result);
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        JdbcProtobufTemplate<Foo> jdbc = new JdbcProtobufTemplate<Foo>(TestDataSource.getJdbcTemplate(), Foo.class);
+        try (WriteBehindBuffer<Foo> buffer = new WriteBehindBuffer<Foo>(jdbc, 100, 1000, 200)) {
+            for (int i = 0; i < 50; i++) {
+                buffer.partialUpdate(Foo.newBuilder().setCol1("cocolian38b8b3fb-4e4d-467b-8e7e-935f4838a9bc")
+                        .setCol2(i).build());
+            }
+            logger.debug(buffer.toString());
+        }
+    }
 }